@@ -0,0 +1,83 @@
+package za.ac.sun.cs.regex.jmh;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A JSON list of patterns and their exploit strings, in the form of
+ * data/&lt;dataset&gt;/regexes_with_pivot_nodes.json and of the output of
+ * ExploitGenerator.
+ */
+final class Dataset {
+
+    private static class PatternString {
+        private String pattern;
+        private ExploitString exploitString;
+    }
+
+    private static class ExploitString {
+        private String[] separators;
+        private String[] pumps;
+        private String suffix;
+        private String exampleString;
+    }
+
+    private static final Type PATTERN_STRING_TYPE = new TypeToken<List<PatternString>>() {}.getType();
+
+    /** A pattern and the input to match it against. */
+    static final class Entry {
+        final String pattern;
+        final String input;
+
+        Entry(String pattern, String input) {
+            this.pattern = pattern;
+            this.input = input;
+        }
+    }
+
+    private Dataset() {
+    }
+
+    /**
+     * Reads the entries of the file, with the input rebuilt from the
+     * separators, each pump repeated the given number of times, and the
+     * suffix. The example string is used where there are no parts.
+     */
+    static List<Entry> read(String file, int pumps) throws IOException {
+        List<PatternString> data;
+        try (JsonReader reader = new JsonReader(new FileReader(file))) {
+            data = new Gson().fromJson(reader, PATTERN_STRING_TYPE);
+        }
+        List<Entry> entries = new ArrayList<>();
+        for (PatternString ps : data) {
+            ExploitString e = ps.exploitString;
+            if (ps.pattern == null || e == null) {
+                continue;
+            }
+            entries.add(new Entry(ps.pattern, input(e, pumps)));
+        }
+        return entries;
+    }
+
+    private static String input(ExploitString e, int n) {
+        if (e.separators == null || e.pumps == null || e.suffix == null
+                || e.pumps.length == 0 || e.separators.length != e.pumps.length) {
+            return e.exampleString == null ? "" : e.exampleString;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < e.pumps.length; i++) {
+            sb.append(e.separators[i]);
+            for (int k = 0; k < n; k++) {
+                sb.append(e.pumps[i]);
+            }
+        }
+        return sb.append(e.suffix).toString();
+    }
+}
@@ -0,0 +1,59 @@
+package za.ac.sun.cs.regex.jmh;
+
+/**
+ * The engine versions under benchmark. Each is built with its package
+ * relocated to za.ac.sun.cs.regex.v&lt;version&gt;, so that all of them can
+ * be loaded side by side.
+ */
+public enum Engine {
+
+    JDK8 {
+        Object compile(String regex) {
+            return za.ac.sun.cs.regex.v8.Pattern.compile(regex);
+        }
+
+        boolean matches(Object pattern, CharSequence input) {
+            return ((za.ac.sun.cs.regex.v8.Pattern) pattern).matcher(input).matches();
+        }
+    },
+
+    JDK9 {
+        Object compile(String regex) {
+            return za.ac.sun.cs.regex.v9.Pattern.compile(regex);
+        }
+
+        boolean matches(Object pattern, CharSequence input) {
+            return ((za.ac.sun.cs.regex.v9.Pattern) pattern).matcher(input).matches();
+        }
+    },
+
+    JDK11 {
+        Object compile(String regex) {
+            return za.ac.sun.cs.regex.v11.Pattern.compile(regex);
+        }
+
+        boolean matches(Object pattern, CharSequence input) {
+            return ((za.ac.sun.cs.regex.v11.Pattern) pattern).matcher(input).matches();
+        }
+    },
+
+    JDK11_MODIFIED {
+        Object compile(String regex) {
+            return za.ac.sun.cs.regex.v11_modified.Pattern.compile(regex);
+        }
+
+        boolean matches(Object pattern, CharSequence input) {
+            return ((za.ac.sun.cs.regex.v11_modified.Pattern) pattern).matcher(input).matches();
+        }
+    };
+
+    /**
+     * Compiles the regex, throwing an exception if this version cannot.
+     */
+    abstract Object compile(String regex);
+
+    /**
+     * Matches a pattern compiled by this version against the whole input.
+     */
+    abstract boolean matches(Object pattern, CharSequence input);
+}
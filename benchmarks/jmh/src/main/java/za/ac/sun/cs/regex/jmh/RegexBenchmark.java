@@ -0,0 +1,139 @@
+package za.ac.sun.cs.regex.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compile time and warm match time of every engine version on the patterns
+ * of a dataset. Each operation compiles, or matches, all of the patterns
+ * that every version compiles and matches within MAX_MATCH_MILLIS, so that
+ * the versions are measured on the same work. Run with -prof gc for the
+ * allocation per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class RegexBenchmark {
+
+    @Param({"JDK8", "JDK9", "JDK11", "JDK11_MODIFIED"})
+    private Engine engine;
+
+    /* a path, relative to benchmarks/jmh, or absolute */
+    @Param({"../data/regexlib/regexes_with_pivot_nodes.json",
+            "../data/polyglot/regexes_with_pivot_nodes.json"})
+    private String dataset;
+
+    /*
+     * How many times each pump is repeated. Kept small, so that the versions
+     * that backtrack exponentially still finish.
+     */
+    @Param({"8"})
+    private int pumps;
+
+    /* entries that take any version longer than this to match are left out */
+    private static final long MAX_MATCH_MILLIS = 10;
+
+    private String[] regexes;
+    private Object[] patterns;
+    private String[] inputs;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        List<Dataset.Entry> common = new ArrayList<>();
+        for (Dataset.Entry entry : Dataset.read(dataset, pumps)) {
+            if (runsEverywhere(entry)) {
+                common.add(entry);
+            }
+        }
+        int n = common.size();
+        regexes = new String[n];
+        patterns = new Object[n];
+        inputs = new String[n];
+        for (int i = 0; i < n; i++) {
+            regexes[i] = common.get(i).pattern;
+            patterns[i] = engine.compile(regexes[i]);
+            inputs[i] = common.get(i).input;
+        }
+    }
+
+    private static boolean runsEverywhere(Dataset.Entry entry) {
+        for (Engine e : Engine.values()) {
+            try {
+                Object pattern = e.compile(entry.pattern);
+                e.matches(pattern, Deadline.in(entry.input, MAX_MATCH_MILLIS));
+            } catch (RuntimeException | StackOverflowError x) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* Throws from charAt once the time is up, which aborts the match. */
+    private static final class Deadline implements CharSequence {
+        private final CharSequence s;
+        private final long deadline;
+
+        private Deadline(CharSequence s, long deadline) {
+            this.s = s;
+            this.deadline = deadline;
+        }
+
+        /* Wraps s so that reading it fails once millis have passed. */
+        static Deadline in(CharSequence s, long millis) {
+            return new Deadline(s, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+
+        public char charAt(int index) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("timed out");
+            }
+            return s.charAt(index);
+        }
+
+        public int length() {
+            return s.length();
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            return new Deadline(s.subSequence(start, end), deadline);
+        }
+
+        @Override
+        public String toString() {
+            return s.toString();
+        }
+    }
+
+    @Benchmark
+    public void compile(Blackhole bh) {
+        for (String regex : regexes) {
+            bh.consume(engine.compile(regex));
+        }
+    }
+
+    @Benchmark
+    public void matches(Blackhole bh) {
+        for (int i = 0; i < patterns.length; i++) {
+            bh.consume(engine.matches(patterns[i], inputs[i]));
+        }
+    }
+}
@@ -8,6 +8,7 @@ import org.apache.commons.cli.*;
 
 import java.io.*;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.*;
 
@@ -15,6 +16,14 @@ public class Main {
 
     private static int TIMEOUT = 30;
 
+    /* scaling mode: the largest pump count and input length tried */
+    private static final int MAX_PUMPS = 1 << 16;
+    private static final int MAX_INPUT_LENGTH = 1 << 22;
+    /* scaling mode: each size is matched repeatedly for at least this long */
+    private static final long MIN_SAMPLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    /* scaling mode: faster matches are left out of the fit as noise */
+    private static final long MIN_FIT_NANOS = TimeUnit.MICROSECONDS.toNanos(20);
+
     private static class Report {
         private PatternString patternString;
         private String time;
@@ -112,6 +121,32 @@ public class Main {
                 return sb.toString();
 
             }
+
+            private boolean canPump() {
+                return separators != null && pumps != null && suffix != null
+                        && pumps.length > 0 && separators.length == pumps.length;
+            }
+
+            private int pumpLength() {
+                int length = 0;
+                for (int i = 0; i < pumps.length; i++) {
+                    length += pumps[i].length();
+                }
+                return length;
+            }
+
+            /* the separators, each pump repeated n times, and the suffix */
+            private String build(int n) {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < pumps.length; i++) {
+                    sb.append(separators[i]);
+                    for (int k = 0; k < n; k++) {
+                        sb.append(pumps[i]);
+                    }
+                }
+                sb.append(suffix);
+                return sb.toString();
+            }
         }
 
         private static PatternString makeWithExample(String pattern, String exampleExploitString) {
@@ -184,6 +219,201 @@ public class Main {
         }
     }
 
+    /* Aborts a match when the thread running it is interrupted on a timeout. */
+    private static class InterruptibleCharSequence implements CharSequence {
+        private final CharSequence s;
+
+        InterruptibleCharSequence(CharSequence s) {
+            this.s = s;
+        }
+
+        public char charAt(int index) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new CancellationException();
+            }
+            return s.charAt(index);
+        }
+
+        public int length() {
+            return s.length();
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            return new InterruptibleCharSequence(s.subSequence(start, end));
+        }
+
+        @Override
+        public String toString() {
+            return s.toString();
+        }
+    }
+
+    private static class Measurement {
+        private int pumps;
+        private long time;
+        private long memoryUsed;
+    }
+
+    private static long usedMemory() {
+        return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+    }
+
+    /*
+     * Matches the input once to measure the memory the matcher holds on to,
+     * which is mostly its memo, and then as often as it takes to time it.
+     */
+    private static Measurement measure(Pattern pattern, String input, int pumps) {
+        CharSequence text = new InterruptibleCharSequence(input);
+        Measurement m = new Measurement();
+        m.pumps = pumps;
+
+        GcFinalization.awaitFullGc();
+        long memBefore = usedMemory();
+        long startTime = System.nanoTime();
+        Matcher matcher = pattern.matcher(text);
+        matcher.matches();
+        long total = System.nanoTime() - startTime;
+        GcFinalization.awaitFullGc();
+        m.memoryUsed = Math.max(0, usedMemory() - memBefore);
+        matcher.reset(); /* keeps the matcher reachable until measured */
+
+        int runs = 1;
+        if (total < MIN_SAMPLE_NANOS) {
+            total = 0;
+            runs = 0;
+            while (total < MIN_SAMPLE_NANOS) {
+                startTime = System.nanoTime();
+                pattern.matcher(text).matches();
+                total += System.nanoTime() - startTime;
+                runs++;
+            }
+        }
+        m.time = total / runs;
+        return m;
+    }
+
+    /* the pump counts tried: 1, 2, 3, 4, 6, 8, 12, 16, ... */
+    private static int nextPumps(int n) {
+        if (n < 2) {
+            return n + 1;
+        }
+        return Integer.bitCount(n) == 1 ? n + n / 2 : Integer.highestOneBit(n) * 2;
+    }
+
+    private static class Fit {
+        private double slope;
+        private double r2;
+    }
+
+    private static Fit leastSquares(List<double[]> points) {
+        int n = points.size();
+        double sx = 0, sy = 0, sxx = 0, sxy = 0, syy = 0;
+        for (double[] p : points) {
+            sx += p[0];
+            sy += p[1];
+            sxx += p[0] * p[0];
+            sxy += p[0] * p[1];
+            syy += p[1] * p[1];
+        }
+        double vx = n * sxx - sx * sx;
+        double vy = n * syy - sy * sy;
+        double cxy = n * sxy - sx * sy;
+        Fit fit = new Fit();
+        fit.slope = vx == 0 ? 0 : cxy / vx;
+        fit.r2 = vx == 0 || vy == 0 ? 1 : cxy * cxy / (vx * vy);
+        return fit;
+    }
+
+    /*
+     * Fits log(time) to log(pumps), for time a power of the input length,
+     * and to pumps, for time exponential in it, and reports the better fit.
+     * The degree is that of the polynomial ambiguity the growth implies:
+     * time proportional to n^(degree + 1).
+     */
+    private static String fitGrowth(List<Measurement> measurements, boolean timedOut) {
+        List<double[]> power = new ArrayList<>();
+        List<double[]> exponential = new ArrayList<>();
+        for (Measurement m : measurements) {
+            if (m.time < MIN_FIT_NANOS) {
+                continue;
+            }
+            power.add(new double[] { Math.log(m.pumps), Math.log(m.time) });
+            exponential.add(new double[] { m.pumps, Math.log(m.time) });
+        }
+        if (power.size() < 3) {
+            /* too fast to measure at every size, or too slow at all but a few */
+            return timedOut ? "UNKNOWN" : "LINEAR 0 NA";
+        }
+        Fit p = leastSquares(power);
+        Fit e = leastSquares(exponential);
+        String exponent = String.format("%.2f", p.slope);
+        if (p.slope >= 1.5 && e.r2 > p.r2) {
+            return "EXPONENTIAL 0 " + exponent;
+        }
+        if (p.slope < 1.5) {
+            return "LINEAR 0 " + exponent;
+        }
+        return "POLYNOMIAL " + (Math.round(p.slope) - 1) + " " + exponent;
+    }
+
+    /*
+     * Rebuilds the input with more and more pumps, measuring each size until
+     * one takes longer than the timeout, and fits the growth of the time.
+     */
+    private static void runScalingBenchmark(PatternString ps) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("regex: ");
+        sb.append(ps.pattern);
+        sb.append("\n");
+        if (!ps.exploitString.canPump()) {
+            sb.append("fit: UNKNOWN");
+            System.out.println(sb.toString());
+            return;
+        }
+
+        final Pattern pattern = Pattern.compile(ps.pattern);
+        List<Measurement> measurements = new ArrayList<>();
+        boolean timedOut = false;
+        int pumpLength = Math.max(1, ps.exploitString.pumpLength());
+        for (int n = 1; n <= MAX_PUMPS && (long)n * pumpLength <= MAX_INPUT_LENGTH;
+             n = nextPumps(n)) {
+            final String input = ps.exploitString.build(n);
+            final int pumps = n;
+            final ExecutorService executor = Executors.newSingleThreadExecutor();
+            final Future<Measurement> future = executor.submit(() -> measure(pattern, input, pumps));
+            executor.shutdown();
+            try {
+                measurements.add(future.get(TIMEOUT, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                sb.append("InterruptedException\n");
+                break;
+            } catch (ExecutionException ee) {
+                /* typically a StackOverflowError at the larger sizes */
+                sb.append("ExecutionException ");
+                sb.append(ee.getCause().getClass().getSimpleName());
+                sb.append("\n");
+                break;
+            } catch (TimeoutException te) {
+                future.cancel(true); /* interrupts the match, see InterruptibleCharSequence */
+                executor.shutdownNow();
+                timedOut = true;
+                sb.append("scaling: ").append(n).append(" timeout timeout\n");
+                break;
+            }
+            Measurement m = measurements.get(measurements.size() - 1);
+            sb.append("scaling: ").append(m.pumps).append(' ')
+              .append(m.time).append(' ').append(m.memoryUsed).append("\n");
+        }
+        sb.append("fit: ").append(fitGrowth(measurements, timedOut));
+        System.out.println(sb.toString());
+    }
+
+    private static void runScalingBenchmarks(List<PatternString> data) {
+        for (PatternString ps : data) {
+            runScalingBenchmark(ps);
+        }
+    }
+
     private static void runBenchmarks(List<PatternString> data) {
         for (PatternString ps : data) {
             runBenchmark(ps);
@@ -226,8 +456,15 @@ public class Main {
                 .longOpt("timeout")
                 .build();
 
+        Option scaling = Option.builder()
+                .desc("time each regex on its exploit string pumped 1, 2, 3, 4, 6, 8, ... times"
+                        + " and fit the growth of the time (with --jsonfile)")
+                .longOpt("scaling")
+                .build();
+
         Options options = new Options();
         options.addOption(jsonFile);
+        options.addOption(scaling);
         options.addOption(regex);
         options.addOption(inputString);
         options.addOption(timeout);
@@ -263,7 +500,11 @@ public class Main {
                 System.exit(2);
             }
             List<PatternString> data = readJsonFromFile(jsonFile);
-            runBenchmarks(data);
+            if (line.hasOption("scaling")) {
+                runScalingBenchmarks(data);
+            } else {
+                runBenchmarks(data);
+            }
         } else if (line.hasOption("regex") && line.hasOption("input")) {
             String regex = line.getOptionValue("regex");
             String inputString = line.getOptionValue("input");
@@ -26,6 +26,9 @@ assert ENGINE_VERSIONS.is_dir()
 
 PACKAGE_NAME = '/src/main/java/za/ac/sun/cs/regex/'
 
+JMH_DIR = Path(os.path.dirname(os.path.realpath(__file__)) + '/jmh').resolve()
+assert JMH_DIR.is_dir()
+
 
 def get_last(path: Union[str, Path]):
     if not isinstance(path, str):
@@ -34,7 +37,7 @@ def get_last(path: Union[str, Path]):
 
 
 def run_version_benchmarks(path_to_src: Path, results: List[Dict[str, List[Dict[str, str]]]],
-                           data_file: Path):
+                           data_file: Path, scaling: bool = False):
     assert path_to_src.is_dir()
     curr_dir = os.getcwd()
     os.chdir(str(path_to_src))
@@ -51,6 +54,8 @@ def run_version_benchmarks(path_to_src: Path, results: List[Dict[str, List[Dict[
 
     benchmark_jar = '{}/target/java-regex-v{}-1.0-SNAPSHOT-jar-with-dependencies.jar --jsonfile {} --timeout {}'\
         .format(path_to_src, version_nr, data_file, 5)
+    if scaling:
+        benchmark_jar += ' --scaling'
     cmd = Command('java -jar {}'.format(benchmark_jar), path_to_src)
     print('Running {}'.format(cmd.cmd))
     sig, out, err = cmd.run()
@@ -58,6 +63,8 @@ def run_version_benchmarks(path_to_src: Path, results: List[Dict[str, List[Dict[
         print('\'{}\' returned exit code {}'.format(cmd.cmd, sig))
         print(err)
         sys.exit(2)
+    elif scaling:
+        process_scaling_output(out.split('\n'), version_nr, results)
     else:
         process_output(out.split('\n'), version_nr, results)
 
@@ -66,10 +73,11 @@ def run_version_benchmarks(path_to_src: Path, results: List[Dict[str, List[Dict[
     os.chdir(curr_dir)
 
 
-def run_benchmarks(results: List[Dict[str, List[Dict[str, str]]]], data_file: Path):
+def run_benchmarks(results: List[Dict[str, List[Dict[str, str]]]], data_file: Path,
+                   scaling: bool = False):
     for version in os.listdir(ENGINE_VERSIONS):
         run_version_benchmarks(Path('{}/{}'.format(ENGINE_VERSIONS, version)),
-                               results, data_file)
+                               results, data_file, scaling)
 
 
 def process_output(out: List[str], java_version: str, results: List[Dict[str, List[Dict[str, str]]]]):
@@ -108,16 +116,101 @@ def process_output(out: List[str], java_version: str, results: List[Dict[str, Li
     results.append({java_version: data})
 
 
-def write_results(results: List[Dict[str, List[Dict[str, str]]]], data_dir: Path):
-    with open('{}/java_benchmarks.json'.format(data_dir), 'w', encoding='utf-8') as f:
+def process_scaling_output(out: List[str], java_version: str, results: List[Dict[str, List[Dict[str, str]]]]):
+    current = None
+    data = []
+    for line in map(lambda l: l.strip(), out):
+        print(line)
+        if line.startswith('regex: '):
+            current = {'pattern': line[7:], 'points': [], 'error': None}
+        elif current is None:
+            continue
+        elif line.startswith('scaling: '):
+            pumps, time, memory = line[9:].split()
+            current['points'].append({
+                'pumps': pumps,
+                'time': time,
+                'memory': memory,
+            })
+        elif line.startswith('InterruptedException') or line.startswith('ExecutionException'):
+            current['error'] = line
+        elif line.startswith('fit: '):
+            fit = line[5:].split()
+            current['fit'] = fit[0]
+            current['degree'] = fit[1] if len(fit) > 1 else 'NA'
+            current['exponent'] = fit[2] if len(fit) > 2 else 'NA'
+            data.append(current)
+            current = None
+    results.append({java_version: data})
+
+
+def write_results(results: List[Dict[str, List[Dict[str, str]]]], data_dir: Path,
+                  file_name: str = 'java_benchmarks.json'):
+    with open('{}/{}'.format(data_dir, file_name), 'w', encoding='utf-8') as f:
         json.dump(results, f, indent=2)
 
 
+def print_fits(results: List[Dict[str, List[Dict[str, str]]]]):
+    fits = {}
+    versions = []
+    for result in results:
+        for version, data in result.items():
+            versions.append(version)
+            for d in data:
+                fit = d['fit'] if d['fit'] != 'POLYNOMIAL' else 'POLYNOMIAL({})'.format(d['degree'])
+                fits.setdefault(d['pattern'], {})[version] = fit
+    print('\t'.join(['jdk{}'.format(v) for v in versions] + ['pattern']))
+    for pattern, by_version in fits.items():
+        print('\t'.join([by_version.get(v, 'NA') for v in versions] + [pattern]))
+
+
+def run_jmh_benchmarks(data_dir: Path):
+    """
+    Installs every engine version, with its package relocated, builds the JMH
+    module against all of them and runs it with the gc profiler on the
+    dataset in data_dir.
+    """
+    for version in os.listdir(ENGINE_VERSIONS):
+        path_to_src = Path('{}/{}'.format(ENGINE_VERSIONS, version))
+        sig, _, err = Command('mvn clean install -DskipTests', path_to_src).run()
+        if sig != 0:
+            print('\'mvn clean install\' failed for version jdk{}!'.format(version))
+            print(err)
+            sys.exit(1)
+        print('jdk{} installed successfully!'.format(version))
+
+    sig, _, err = Command('mvn clean package', JMH_DIR).run()
+    if sig != 0:
+        print('\'mvn clean package\' failed for the JMH benchmarks!')
+        print(err)
+        sys.exit(1)
+
+    cmd = Command('java -jar target/benchmarks.jar -prof gc -p dataset={}/regexes_with_pivot_nodes.json '
+                  '-rf json -rff {}/jmh_benchmarks.json'.format(data_dir, data_dir), JMH_DIR)
+    print('Running {}'.format(cmd.cmd))
+    sig, out, err = cmd.run(timeout=None)
+    print(out)
+    if sig != 0:
+        print('\'{}\' returned exit code {}'.format(cmd.cmd, sig))
+        print(err)
+        sys.exit(2)
+
+
 def main():
+    if '--jmh' in sys.argv[1:]:
+        for data_dir in DATA_DIRS:
+            run_jmh_benchmarks(data_dir)
+        return
+
+    scaling = '--scaling' in sys.argv[1:]
     for data_file, data_dir in zip(DATA_FILES, DATA_DIRS):
         results = []
-        run_benchmarks(results, data_file)
-        write_results(results, data_dir)
+        run_benchmarks(results, data_file, scaling)
+        if scaling:
+            write_results(results, data_dir, 'java_scaling.json')
+            print_fits(results)
+        else:
+            write_results(results, data_dir)
 
 
 if __name__ == '__main__':
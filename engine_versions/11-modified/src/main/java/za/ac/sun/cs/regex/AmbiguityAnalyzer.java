@@ -0,0 +1,1304 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package za.ac.sun.cs.regex;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import za.ac.sun.cs.regex.Pattern.CharPredicate;
+import za.ac.sun.cs.regex.Pattern.Node;
+import za.ac.sun.cs.regex.PatternAnalysis.Complexity;
+
+/**
+ * Finds the infinite ambiguity of a compiled pattern, which is what makes
+ * a backtracking matcher take more than linear time.
+ *
+ * The node tree is translated into a program for a nondeterministic
+ * automaton, much as for the {@link PikeVM}, but one that only tells
+ * which input the pattern can read. Counted repetitions are unrolled and
+ * every unbounded repetition becomes a loop. The states of the automaton
+ * are the instructions that read a char, and there is a transition from
+ * one to another for every path between them that reads nothing. Paths
+ * that come back to an instruction they passed are left out: the
+ * backtracker ends a repetition once an iteration matches nothing.
+ *
+ * The chars a state reads are kept as a set of classes of BMP chars that
+ * every predicate of the pattern treats alike, so that two states can be
+ * told to read a common char exactly.
+ *
+ * The automaton has exponential degree of ambiguity (EDA) if a state can
+ * go around a loop and back to itself along two different paths that
+ * read the same string. This is looked for in the product of each loop
+ * with itself, from the innermost loops out, as a strongly connected
+ * component that holds a pair of equal states together with a pair of
+ * different ones, or two equal pairs joined by two parallel transitions.
+ * It has infinite polynomial degree of ambiguity (IDA) if, for two
+ * states p and q in different loops, some string takes p to itself, p to
+ * q and q to itself; this is looked for in the product of the automaton
+ * with itself twice over. The degree is the longest chain of loops that
+ * are so related.
+ *
+ * For the ambiguity found, an input that makes a backtracking matcher
+ * try every way of reading it is put together from words read along the
+ * paths in the product automaton, and a suffix after which no state is
+ * left that can reach the end of the pattern.
+ *
+ * The analysis is an approximation where the backtracker does not only
+ * read input: lookarounds and back references are taken to match
+ * nothing, and possessive and independent groups, which commit to the
+ * first way they match, are taken to be unambiguous inside.
+ */
+final class AmbiguityAnalyzer {
+
+    /**
+     * The largest program analyzed. A pattern whose counted repetitions
+     * unroll to more is analyzed again with them cut short.
+     */
+    static final int MAX_PROGRAM = 1 << 14;
+
+    /**
+     * The most optional iterations, and the most required ones, kept of
+     * a counted repetition when cutting them short.
+     */
+    private static final int[] CLIPS = { Pattern.MAX_REPS, 4, 1 };
+
+    /**
+     * The most pairs or triples of states visited in all. Past this the
+     * analysis gives up and is no longer exact.
+     */
+    private static final int MAX_WORK = 1 << 22;
+
+    private static final int BMP_SIZE = Character.MAX_VALUE + 1;
+
+    // Reads one char that satisfies the predicate in pred, then
+    // continues at the next instruction.
+    private static final int CHAR  = 0;
+    // Continues at x and at y.
+    private static final int SPLIT = 1;
+    // Continues at x.
+    private static final int JMP   = 2;
+    // The end of the pattern.
+    private static final int MATCH = 3;
+
+    private static final CharPredicate ANY = ch -> true;
+    private static final CharPredicate CR = ch -> ch == '\r';
+    private static final CharPredicate LF = ch -> ch == '\n';
+    private static final CharPredicate LINE_TERMINATOR =
+        ch -> ch == 0x0A || ch == 0x0B || ch == 0x0C || ch == 0x0D ||
+              ch == 0x85 || ch == 0x2028 || ch == 0x2029;
+
+    /**
+     * The most sets of states visited looking for a suffix.
+     */
+    private static final int MAX_SUFFIX_SETS = 1 << 12;
+
+    private static final BitSet NONE = new BitSet();
+
+    /**
+     * An unbounded repetition, compiled to the loop from the SPLIT at lo,
+     * which enters it, to the SPLIT at hi, which goes around again.
+     */
+    private static final class Repeat {
+        final Node node;
+        final Repeat parent;
+        final int depth;
+        int lo, hi;
+        // set if it, or a repetition inside it, is exponentially ambiguous
+        boolean ambiguous;
+
+        Repeat(Node node, Repeat parent) {
+            this.node = node;
+            this.parent = parent;
+            this.depth = parent == null ? 0 : parent.depth + 1;
+        }
+    }
+
+    /**
+     * A string that takes p back to p, p to q, and q back to q.
+     */
+    private static final class Link {
+        final int p, q;
+        final String word;
+
+        Link(int p, int q, String word) {
+            this.p = p;
+            this.q = q;
+            this.word = word;
+        }
+    }
+
+    /**
+     * Thrown when the program grows past MAX_PROGRAM.
+     */
+    private static final class TooLarge extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        TooLarge() {
+            super(null, null, false, false);
+        }
+    }
+
+    int[] op = new int[16];
+    int[] x = new int[16];
+    int[] y = new int[16];
+    CharPredicate[] pred = new CharPredicate[16];
+    int size;
+
+    /**
+     * The innermost repetition each instruction is part of, or null.
+     */
+    private Repeat[] owner = new Repeat[16];
+
+    /**
+     * Set for the instructions inside a possessive or independent group.
+     */
+    private boolean[] atomic = new boolean[16];
+
+    private final Map<Node, String> sources;
+    private final List<Repeat> repeats = new ArrayList<>();
+    private final Map<Long, CharPredicate> sliceChars = new HashMap<>();
+    private final int clip;
+    private Repeat current;
+    private int atomicDepth;
+    private boolean exact = true;
+    private int work;
+
+    /**
+     * The chars read by each CHAR instruction, as classes of chars, the
+     * class of each char, and one char of each class. The classes are
+     * listed in order, with those of letters and digits first.
+     */
+    BitSet[] label;
+    int[] cls;
+    int[] classChar;
+    int[] order;
+
+    /**
+     * The CHAR instructions reached from each CHAR instruction after
+     * reading its char, and from the start of the program.
+     */
+    int[][] succ;
+    int[] startSucc;
+
+    /**
+     * Set for the CHAR instructions that can be reached and can read
+     * some char.
+     */
+    boolean[] live;
+
+    /**
+     * Set for the CHAR instructions after which the end of the pattern
+     * can be reached without reading a char, and if it can be reached
+     * from the start.
+     */
+    boolean[] accepts;
+    boolean startAccepts;
+
+    /**
+     * The state that the last exponential ambiguity found comes back to,
+     * and a string it can read in two ways to get there.
+     */
+    private int pivot;
+    private String pump;
+
+    /**
+     * The strings that relate each loop of the last chain found to the
+     * one before it.
+     */
+    private Link[] links;
+
+    // Scratch space for closure()
+    private int[] seen, stack;
+    private BitSet[] once, twice, single;
+    private int epoch;
+
+    private AmbiguityAnalyzer(Map<Node, String> sources, int clip) {
+        this.sources = sources;
+        this.clip = clip;
+    }
+
+    /**
+     * Analyzes the pattern that starts at matchRoot. The source text of
+     * its repetitions is looked up in sources.
+     */
+    static PatternAnalysis analyze(Node matchRoot, Map<Node, String> sources) {
+        AmbiguityAnalyzer a = build(matchRoot, sources);
+        if (a == null)
+            return new PatternAnalysis(Complexity.LINEAR, 0, List.of(), false);
+        // without an unbounded repetition there is no infinite ambiguity;
+        // TreeInfo cannot tell, as CharPropertyGreedy leaves maxValid set
+        if (a.repeats.isEmpty())
+            return new PatternAnalysis(Complexity.LINEAR, 0, List.of(), a.exact);
+        a.automaton();
+        return a.result();
+    }
+
+    /**
+     * Compiles the pattern that starts at matchRoot, cutting its counted
+     * repetitions shorter until the program fits, and returns null if it
+     * does not fit even then.
+     */
+    static AmbiguityAnalyzer build(Node matchRoot, Map<Node, String> sources) {
+        for (int clip : CLIPS) {
+            AmbiguityAnalyzer a = new AmbiguityAnalyzer(sources, clip);
+            try {
+                a.compile(matchRoot, null);
+                return a;
+            } catch (TooLarge e) {
+                // try again with less unrolled
+            }
+        }
+        return null;
+    }
+
+    //
+    // Compiler
+    //
+
+    private int emit(int o, int a, int b, CharPredicate p) {
+        if (size == MAX_PROGRAM)
+            throw new TooLarge();
+        if (size == op.length) {
+            op = Arrays.copyOf(op, size * 2);
+            x = Arrays.copyOf(x, size * 2);
+            y = Arrays.copyOf(y, size * 2);
+            pred = Arrays.copyOf(pred, size * 2);
+            owner = Arrays.copyOf(owner, size * 2);
+            atomic = Arrays.copyOf(atomic, size * 2);
+        }
+        op[size] = o;
+        x[size] = a;
+        y[size] = b;
+        pred[size] = p;
+        owner[size] = current;
+        atomic[size] = atomicDepth > 0;
+        return size++;
+    }
+
+    /**
+     * Emits the code for the nodes from node on, up to but not including
+     * stop, or up to the end of the pattern.
+     */
+    private void compile(Node node, Node stop) {
+        while (node != stop && node != null && node != Pattern.accept) {
+            if (node == Pattern.lastAccept) {
+                emit(MATCH, 0, 0, null);
+                return;
+            } else if (node instanceof Pattern.CharProperty) {
+                emit(CHAR, 0, 0, ((Pattern.CharProperty)node).predicate);
+            } else if (node instanceof Pattern.CharPropertyGreedy) {
+                Pattern.CharPropertyGreedy cpg = (Pattern.CharPropertyGreedy)node;
+                repeat(node, () -> emit(CHAR, 0, 0, cpg.predicate),
+                       cpg.cmin, Pattern.MAX_REPS, false);
+            } else if (node instanceof Pattern.SliceNode) {
+                slice((Pattern.SliceNode)node);
+            } else if (node instanceof Pattern.LineEnding) {
+                int split = emit(SPLIT, size + 1, 0, null);
+                emit(CHAR, 0, 0, CR);
+                emit(CHAR, 0, 0, LF);
+                int jmp = emit(JMP, 0, 0, null);
+                y[split] = size;
+                emit(CHAR, 0, 0, LINE_TERMINATOR);
+                x[jmp] = size;
+            } else if (node instanceof Pattern.Branch) {
+                branch((Pattern.Branch)node);
+                node = ((Pattern.Branch)node).conn;
+            } else if (node instanceof Pattern.Ques) {
+                Pattern.Ques q = (Pattern.Ques)node;
+                boolean commits = q.type == Pattern.Qtype.POSSESSIVE ||
+                                  q.type == Pattern.Qtype.INDEPENDENT;
+                if (commits)
+                    atomicDepth++;
+                int split = q.type == Pattern.Qtype.INDEPENDENT
+                    ? -1 : emit(SPLIT, size + 1, 0, null);
+                compile(q.atom, Pattern.accept);
+                if (split != -1)
+                    y[split] = size;
+                if (commits)
+                    atomicDepth--;
+            } else if (node instanceof Pattern.Curly) {
+                Pattern.Curly c = (Pattern.Curly)node;
+                repeat(node, () -> compile(c.atom, Pattern.accept), c.cmin,
+                       c.cmax, c.type == Pattern.Qtype.POSSESSIVE);
+            } else if (node instanceof Pattern.GroupCurly) {
+                Pattern.GroupCurly gc = (Pattern.GroupCurly)node;
+                repeat(node, () -> compile(gc.atom, Pattern.accept), gc.cmin,
+                       gc.cmax, gc.type == Pattern.Qtype.POSSESSIVE);
+            } else if (node instanceof Pattern.Prolog) {
+                Pattern.Loop loop = ((Pattern.Prolog)node).loop;
+                repeat(node, () -> compile(loop.body, loop), loop.cmin,
+                       loop.cmax, false);
+                node = loop;
+            } else if (node instanceof Pattern.Pos ||
+                       node instanceof Pattern.Neg ||
+                       node instanceof Pattern.Behind ||
+                       node instanceof Pattern.NotBehind ||
+                       node instanceof Pattern.BackRef ||
+                       node instanceof Pattern.CIBackRef) {
+                exact = false;
+            } else if (!(node instanceof Pattern.GroupHead ||
+                         node instanceof Pattern.GroupTail ||
+                         node instanceof Pattern.BranchConn ||
+                         node instanceof Pattern.Begin ||
+                         node instanceof Pattern.End ||
+                         node instanceof Pattern.Caret ||
+                         node instanceof Pattern.UnixCaret ||
+                         node instanceof Pattern.Dollar ||
+                         node instanceof Pattern.UnixDollar ||
+                         node instanceof Pattern.LastMatch ||
+                         node instanceof Pattern.Bound ||
+                         node instanceof Pattern.GraphemeBound)) {
+                // grapheme clusters and canonical equivalents: taken to
+                // read any one char
+                exact = false;
+                emit(CHAR, 0, 0, ANY);
+            }
+            node = node.next;
+        }
+    }
+
+    private void slice(Pattern.SliceNode node) {
+        int kind = node instanceof Pattern.SliceUS ? 4
+                 : node instanceof Pattern.SliceIS ? 3
+                 : node instanceof Pattern.SliceU ? 2
+                 : node instanceof Pattern.SliceI ? 1 : 0;
+        for (int c : node.buffer) {
+            CharPredicate p = sliceChars.computeIfAbsent(
+                ((long)kind << 32) | c, k -> {
+                    switch (kind) {
+                    case 1:
+                        return ch -> c == ch || c == ASCII.toLower(ch);
+                    case 2:
+                        return ch -> c == ch ||
+                            c == Character.toLowerCase(Character.toUpperCase(ch));
+                    case 3:
+                    case 4:
+                        Pattern.SliceIS sis = (Pattern.SliceIS)node;
+                        return ch -> c == ch || c == sis.toLower(ch);
+                    default:
+                        return ch -> c == ch;
+                    }
+                });
+            emit(CHAR, 0, 0, p);
+        }
+    }
+
+    private void branch(Pattern.Branch b) {
+        int[] jumps = new int[b.size];
+        for (int n = 0; n < b.size; n++) {
+            int split = -1;
+            if (n < b.size - 1)
+                split = emit(SPLIT, size + 1, 0, null);
+            if (b.atoms[n] != null)
+                compile(b.atoms[n], b.conn);
+            jumps[n] = emit(JMP, 0, 0, null);
+            if (split != -1)
+                y[split] = size;
+        }
+        for (int n = 0; n < b.size; n++)
+            x[jumps[n]] = size;
+    }
+
+    /**
+     * Emits a repetition of the code emitted by body, between cmin and
+     * cmax times. The required and optional iterations are unrolled, the
+     * unbounded tail, if any, becomes a loop.
+     */
+    private void repeat(Node node, Runnable body, int cmin, int cmax,
+                        boolean possessive) {
+        int optional = cmax == Pattern.MAX_REPS ? 0 : cmax - cmin;
+        if (cmin > clip || optional > clip) {
+            exact = false;
+            cmin = Math.min(cmin, clip);
+            optional = Math.min(optional, clip);
+        }
+        if (cmin > MAX_PROGRAM || optional > MAX_PROGRAM)
+            throw new TooLarge();
+        if (possessive)
+            atomicDepth++;
+        for (int k = 0; k < cmin; k++)
+            body.run();
+        if (cmax == Pattern.MAX_REPS) {
+            Repeat r = new Repeat(node, current);
+            repeats.add(r);
+            current = r;
+            r.lo = emit(SPLIT, size + 1, 0, null);
+            body.run();
+            r.hi = emit(SPLIT, r.lo + 1, 0, null);
+            y[r.lo] = y[r.hi] = size;
+            current = r.parent;
+        } else {
+            int[] exits = new int[optional];
+            for (int k = 0; k < optional; k++) {
+                exits[k] = emit(SPLIT, size + 1, 0, null);
+                body.run();
+            }
+            for (int pc : exits)
+                y[pc] = size;
+        }
+        if (possessive)
+            atomicDepth--;
+    }
+
+    //
+    // The automaton
+    //
+
+    /**
+     * Labels the CHAR instructions with the classes of chars they read,
+     * and finds the transitions between them.
+     */
+    void automaton() {
+        classify();
+        seen = new int[size];
+        stack = new int[2 * size + 2];
+        once = new BitSet[size];
+        twice = new BitSet[size];
+        single = new BitSet[size];
+        succ = new int[size][];
+        accepts = new boolean[size];
+        for (int pc = 0; pc < size; pc++) {
+            if (op[pc] == CHAR && !label[pc].isEmpty()) {
+                BitSet reached = closure(pc + 1, 0, size - 1)[0];
+                succ[pc] = targets(reached);
+                accepts[pc] = hasMatch(reached);
+            }
+        }
+        BitSet reached = closure(0, 0, size - 1)[0];
+        startSucc = targets(reached);
+        startAccepts = hasMatch(reached);
+        live = new boolean[size];
+        ArrayDeque<Integer> work = new ArrayDeque<>();
+        for (int pc : startSucc) {
+            live[pc] = true;
+            work.add(pc);
+        }
+        while (!work.isEmpty()) {
+            for (int pc : succ[work.poll()]) {
+                if (!live[pc]) {
+                    live[pc] = true;
+                    work.add(pc);
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits the BMP into the classes of chars that all predicates of the
+     * pattern treat alike, and labels every CHAR instruction with the
+     * classes it reads.
+     */
+    private void classify() {
+        Map<CharPredicate, BitSet> labels = new IdentityHashMap<>();
+        for (int pc = 0; pc < size; pc++) {
+            if (op[pc] == CHAR)
+                labels.put(pred[pc], null);
+        }
+        cls = new int[BMP_SIZE];
+        int count = 1;
+        for (CharPredicate p : labels.keySet()) {
+            int[] remap = new int[count * 2];
+            Arrays.fill(remap, -1);
+            int next = 0;
+            for (int c = 0; c < BMP_SIZE; c++) {
+                int k = cls[c] * 2 + (p.is(c) ? 1 : 0);
+                if (remap[k] < 0)
+                    remap[k] = next++;
+                cls[c] = remap[k];
+            }
+            count = next;
+        }
+        // prefers chars that are easy to read in an exploit string
+        classChar = new int[count];
+        Arrays.fill(classChar, -1);
+        order = new int[count];
+        int n = 0;
+        for (String range : new String[] { "az", "AZ", "09", "!~", "  " }) {
+            for (int c = range.charAt(0); c <= range.charAt(1); c++) {
+                if (classChar[cls[c]] < 0) {
+                    classChar[cls[c]] = c;
+                    order[n++] = cls[c];
+                }
+            }
+        }
+        for (int c = 0; c < BMP_SIZE; c++) {
+            if (classChar[cls[c]] < 0) {
+                classChar[cls[c]] = c;
+                order[n++] = cls[c];
+            }
+        }
+        for (Map.Entry<CharPredicate, BitSet> e : labels.entrySet()) {
+            BitSet bs = new BitSet(count);
+            for (int k = 0; k < count; k++) {
+                if (e.getKey().is(classChar[k]))
+                    bs.set(k);
+            }
+            // only reads supplementary chars, if any
+            if (bs.isEmpty())
+                exact = false;
+            e.setValue(bs);
+        }
+        label = new BitSet[size];
+        for (int pc = 0; pc < size; pc++) {
+            if (op[pc] == CHAR)
+                label[pc] = labels.get(pred[pc]);
+        }
+    }
+
+    private int[] targets(BitSet reached) {
+        return reached.stream()
+                      .filter(pc -> op[pc] == CHAR && !label[pc].isEmpty())
+                      .toArray();
+    }
+
+    private boolean hasMatch(BitSet reached) {
+        return reached.stream().anyMatch(pc -> op[pc] == MATCH);
+    }
+
+    /**
+     * Returns a char of the first class, in order, that is in all of the
+     * given labels, or -1 if there is none.
+     */
+    private int common(BitSet... labels) {
+        for (int k : order) {
+            boolean all = true;
+            for (BitSet l : labels)
+                all &= l.get(k);
+            if (all)
+                return classChar[k];
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the CHAR and MATCH instructions that can be reached from the
+     * instruction at from without reading a char, or leaving lo..hi.
+     * Returns them, and those of them that can be reached along two or
+     * more paths. A path that comes back to an instruction it passed is
+     * cut there.
+     */
+    BitSet[] closure(int from, int lo, int hi) {
+        epoch += 2;
+        int done = epoch + 1;
+        int sp = 0;
+        stack[sp++] = from;
+        while (sp > 0) {
+            int pc = stack[sp - 1];
+            if (seen[pc] < epoch) {
+                // first visit: pushes the instructions it goes on to
+                seen[pc] = epoch;
+                if (op[pc] == CHAR || op[pc] == MATCH) {
+                    if (single[pc] == null) {
+                        single[pc] = new BitSet();
+                        single[pc].set(pc);
+                    }
+                    once[pc] = single[pc];
+                    twice[pc] = NONE;
+                    seen[pc] = done;
+                    sp--;
+                    continue;
+                }
+                if (x[pc] >= lo && x[pc] <= hi && seen[x[pc]] < epoch)
+                    stack[sp++] = x[pc];
+                if (op[pc] == SPLIT && y[pc] >= lo && y[pc] <= hi &&
+                    seen[y[pc]] < epoch)
+                    stack[sp++] = y[pc];
+                continue;
+            }
+            sp--;
+            if (seen[pc] == done)
+                continue;
+            int a = x[pc];
+            boolean hasA = a >= lo && a <= hi && seen[a] == done;
+            int b = y[pc];
+            boolean hasB = op[pc] == SPLIT && b >= lo && b <= hi &&
+                           seen[b] == done;
+            if (hasA && hasB) {
+                BitSet o = (BitSet)once[a].clone();
+                o.or(once[b]);
+                BitSet t = (BitSet)once[a].clone();
+                t.and(once[b]);
+                t.or(twice[a]);
+                t.or(twice[b]);
+                once[pc] = o;
+                twice[pc] = t;
+            } else if (hasA || hasB) {
+                once[pc] = once[hasA ? a : b];
+                twice[pc] = twice[hasA ? a : b];
+            } else {
+                once[pc] = twice[pc] = NONE;
+            }
+            seen[pc] = done;
+        }
+        return new BitSet[] { once[from], twice[from] };
+    }
+
+    //
+    // Exponential ambiguity
+    //
+
+    /**
+     * Tells whether the loop of the repetition can read a string in two
+     * ways that both come back to the same state, going around inside the
+     * repetition only.
+     */
+    private boolean exponential(Repeat r) {
+        int lo = r.lo, hi = r.hi;
+        int[][] out = new int[size][];
+        BitSet[] parallel = new BitSet[size];
+        for (int pc = lo; pc <= hi; pc++) {
+            if (op[pc] != CHAR || !live[pc])
+                continue;
+            BitSet[] reached = closure(pc + 1, lo, hi);
+            out[pc] = reached[0].stream()
+                                .filter(t -> op[t] == CHAR && live[t])
+                                .toArray();
+            parallel[pc] = reached[1];
+        }
+        int[] comp = new int[size];
+        for (int[] states : members(comp, components(out, comp))) {
+            if (cyclic(states, out) && exponential(states, out, parallel))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Looks for the two paths in the product of a strongly connected
+     * component of the loop with itself.
+     */
+    private boolean exponential(int[] states, int[][] out, BitSet[] parallel) {
+        int k = states.length;
+        if ((long)k * k > MAX_WORK - work) {
+            exact = false;
+            return false;
+        }
+        int[] local = new int[size];
+        Arrays.fill(local, -1);
+        for (int i = 0; i < k; i++)
+            local[states[i]] = i;
+        int[][] pairs = new int[k * k][];
+        List<int[]> doubled = new ArrayList<>();
+        for (int i = 0; i < k; i++) {
+            for (int j = 0; j < k; j++) {
+                int p = states[i], q = states[j];
+                if (!pairable(p, q))
+                    continue;
+                int[] buf = new int[4];
+                int n = 0;
+                for (int p2 : out[p]) {
+                    if (local[p2] < 0)
+                        continue;
+                    for (int q2 : out[q]) {
+                        if (local[q2] < 0 || !pairable(p2, q2))
+                            continue;
+                        if (++work > MAX_WORK) {
+                            exact = false;
+                            return false;
+                        }
+                        if (n == buf.length)
+                            buf = Arrays.copyOf(buf, n * 2);
+                        buf[n++] = local[p2] * k + local[q2];
+                        if (p == q && p2 == q2 && !atomic[p2] &&
+                            parallel[p].get(p2))
+                            doubled.add(new int[] { i * k + i, local[p2] * k + local[p2] });
+                    }
+                }
+                pairs[i * k + j] = Arrays.copyOf(buf, n);
+            }
+        }
+        int[] comp = new int[k * k];
+        int comps = components(pairs, comp);
+        boolean[] diagonal = new boolean[comps];
+        boolean[] other = new boolean[comps];
+        for (int i = 0; i < k; i++) {
+            for (int j = 0; j < k; j++) {
+                int c = comp[i * k + j];
+                if (c < 0)
+                    continue;
+                if (i == j)
+                    diagonal[c] = true;
+                else
+                    other[c] = true;
+            }
+        }
+        for (int[] d : doubled) {
+            if (comp[d[0]] == comp[d[1]]) {
+                // around through the parallel transitions, and back
+                StringBuilder sb = new StringBuilder();
+                sb.appendCodePoint(pairChar(states, d[1]));
+                appendPath(sb, states, pairs, comp, d[1], d[0]);
+                pivot = states[d[0] / k];
+                pump = sb.toString();
+                return true;
+            }
+        }
+        for (int c = 0; c < comps; c++) {
+            if (diagonal[c] && other[c]) {
+                // from an equal pair to the nearest different one, and back
+                int same = 0;
+                while (comp[same * k + same] != c)
+                    same++;
+                same = same * k + same;
+                StringBuilder sb = new StringBuilder();
+                int differ = appendPath(sb, states, pairs, comp, same, -1);
+                appendPath(sb, states, pairs, comp, differ, same);
+                pivot = states[same / k];
+                pump = sb.toString();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A char read on the way into the pair of states numbered v.
+     */
+    private int pairChar(int[] states, int v) {
+        int k = states.length;
+        return common(label[states[v / k]], label[states[v % k]]);
+    }
+
+    /**
+     * Appends the chars read along a shortest path from the pair from to
+     * the pair to, or to the nearest pair of different states if to is
+     * -1, in the same strongly connected component. Returns the pair the
+     * path ends at.
+     */
+    private int appendPath(StringBuilder sb, int[] states, int[][] pairs,
+                           int[] comp, int from, int to) {
+        int k = states.length;
+        Map<Integer, Integer> parent = new HashMap<>();
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        parent.put(from, from);
+        queue.add(from);
+        int end = from;
+        while (to < 0 ? end / k == end % k : end != to) {
+            end = -1;
+            while (end < 0) {
+                int v = queue.poll();
+                for (int w : pairs[v]) {
+                    if (comp[w] == comp[from] && !parent.containsKey(w)) {
+                        parent.put(w, v);
+                        queue.add(w);
+                        if (to < 0 ? w / k != w % k : w == to) {
+                            end = w;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        int start = sb.length();
+        for (int v = end; v != from; v = parent.get(v))
+            sb.insert(start, Character.toChars(pairChar(states, v)));
+        return end;
+    }
+
+    /**
+     * Tells whether two paths can be in the states at once: the states
+     * read a common char, and do not commit to the first way they match.
+     */
+    private boolean pairable(int p, int q) {
+        return p == q ||
+               !atomic[p] && !atomic[q] && label[p].intersects(label[q]);
+    }
+
+    //
+    // Polynomial ambiguity
+    //
+
+    /**
+     * Tells whether, for some p in ps and q in qs, a string takes p back
+     * to p, p to q, and q back to q, with the path from p to q going
+     * through the states in ms. Returns the shortest such string for the
+     * first p and q found, or null.
+     */
+    private Link polynomial(int[] ps, int[] ms, int[] qs) {
+        long space = (long)ps.length * ms.length * qs.length;
+        if (space > MAX_WORK - work) {
+            exact = false;
+            return null;
+        }
+        int[] inP = index(ps), inM = index(ms), inQ = index(qs);
+        int nm = ms.length, nq = qs.length;
+        for (int p : ps) {
+            for (int q : qs) {
+                if (atomic[p] || atomic[q] ||
+                    !label[p].intersects(label[q]))
+                    continue;
+                BitSet visited = new BitSet((int)space);
+                // the queue keeps every triple visited, with the one it
+                // was reached from and the char read on the way
+                int[] queue = new int[5 * 16];
+                int head = 0, tail = 0;
+                queue[tail++] = p;
+                queue[tail++] = p;
+                queue[tail++] = q;
+                queue[tail++] = -1;
+                queue[tail++] = -1;
+                while (head < tail) {
+                    int t = head;
+                    head += 5;
+                    for (int a : succ[queue[t]]) {
+                        if (inP[a] < 0)
+                            continue;
+                        for (int c : succ[queue[t + 2]]) {
+                            if (inQ[c] < 0 || !label[a].intersects(label[c]))
+                                continue;
+                            BitSet ac = (BitSet)label[a].clone();
+                            ac.and(label[c]);
+                            for (int b : succ[queue[t + 1]]) {
+                                if (inM[b] < 0 || !label[b].intersects(ac))
+                                    continue;
+                                int ch = common(label[a], label[b], label[c]);
+                                if (a == p && b == q && c == q) {
+                                    StringBuilder sb = new StringBuilder();
+                                    sb.appendCodePoint(ch);
+                                    for (int u = t; queue[u + 3] >= 0; u = queue[u + 3])
+                                        sb.appendCodePoint(queue[u + 4]);
+                                    return new Link(p, q, sb.reverse().toString());
+                                }
+                                int id = (inP[a] * nm + inM[b]) * nq + inQ[c];
+                                if (visited.get(id))
+                                    continue;
+                                if (++work > MAX_WORK) {
+                                    exact = false;
+                                    return null;
+                                }
+                                visited.set(id);
+                                if (tail == queue.length)
+                                    queue = Arrays.copyOf(queue, tail * 2);
+                                queue[tail++] = a;
+                                queue[tail++] = b;
+                                queue[tail++] = c;
+                                queue[tail++] = t;
+                                queue[tail++] = ch;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private int[] index(int[] states) {
+        int[] index = new int[size];
+        Arrays.fill(index, -1);
+        for (int i = 0; i < states.length; i++)
+            index[states[i]] = i;
+        return index;
+    }
+
+    //
+    // Result
+    //
+
+    /**
+     * Looks for exponential ambiguity in every loop, innermost first, and
+     * failing that for the longest chain of polynomially ambiguous loops.
+     */
+    private PatternAnalysis result() {
+        List<String> nodes = new ArrayList<>();
+        for (int i = repeats.size() - 1; i >= 0; i--) {
+            Repeat r = repeats.get(i);
+            if (!r.ambiguous && exponential(r)) {
+                nodes.add(0, describe(r));
+                for (Repeat p = r; p != null; p = p.parent)
+                    p.ambiguous = true;
+            }
+        }
+        if (!nodes.isEmpty()) {
+            ExploitString e = exploit(0, List.of(path(-1, pivot)), List.of(pump));
+            return new PatternAnalysis(Complexity.EXPONENTIAL, 0, nodes, e,
+                                       exact);
+        }
+
+        int[][] chain = chain();
+        if (chain.length < 2)
+            return new PatternAnalysis(Complexity.LINEAR, 0, nodes, exact);
+        for (int[] states : chain)
+            nodes.add(describe(enclosing(states)));
+        List<String> separators = new ArrayList<>();
+        List<String> pumps = new ArrayList<>();
+        for (int k = 1; k < chain.length; k++) {
+            separators.add(path(k == 1 ? -1 : links[k - 1].q, links[k].p));
+            pumps.add(links[k].word);
+        }
+        ExploitString e = exploit(chain.length - 1, separators, pumps);
+        return new PatternAnalysis(Complexity.POLYNOMIAL, chain.length - 1,
+                                   nodes, e, exact);
+    }
+
+    //
+    // Exploit strings
+    //
+
+    /**
+     * Completes an exploit string with a suffix that leaves no state that
+     * can reach the end of the pattern, whichever of the states the pumps
+     * took the matcher to. Returns null if there is no short one.
+     */
+    private ExploitString exploit(int degree, List<String> separators,
+                                  List<String> pumps) {
+        // the start is the state numbered size
+        BitSet states = new BitSet();
+        states.set(size);
+        for (int i = 0; i < pumps.size(); i++) {
+            states = read(states, separators.get(i));
+            BitSet pumped = read(states, pumps.get(i));
+            for (BitSet more = pumped; !more.isEmpty(); ) {
+                more = read(pumped, pumps.get(i));
+                more.andNot(pumped);
+                pumped.or(more);
+            }
+            states = pumped;
+        }
+        String suffix = suffix(states);
+        if (suffix == null)
+            return null;
+        return new ExploitString(degree, separators, pumps, suffix);
+    }
+
+    /**
+     * The states that a string takes the given ones to.
+     */
+    private BitSet read(BitSet states, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            int k = cls[s.charAt(i)];
+            BitSet next = new BitSet();
+            for (int pc = states.nextSetBit(0); pc >= 0;
+                 pc = states.nextSetBit(pc + 1)) {
+                for (int t : pc == size ? startSucc : succ[pc]) {
+                    if (label[t].get(k))
+                        next.set(t);
+                }
+            }
+            states = next;
+        }
+        return states;
+    }
+
+    /**
+     * Finds a shortest string after which none of the states can reach
+     * the end of the pattern, or returns null if there is no short one.
+     */
+    private String suffix(BitSet states) {
+        Map<BitSet, String> seen = new HashMap<>();
+        ArrayDeque<BitSet> queue = new ArrayDeque<>();
+        seen.put(states, "");
+        queue.add(states);
+        while (!queue.isEmpty()) {
+            BitSet s = queue.poll();
+            String word = seen.get(s);
+            if (!accepting(s))
+                return word;
+            for (int k : order) {
+                if (seen.size() >= MAX_SUFFIX_SETS)
+                    return null;
+                String next = word + (char)classChar[k];
+                BitSet t = read(s, next.substring(word.length()));
+                if (seen.putIfAbsent(t, next) == null)
+                    queue.add(t);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Tells whether any of the states, the start numbered size, can reach
+     * the end of the pattern without reading a char.
+     */
+    private boolean accepting(BitSet states) {
+        for (int pc = states.nextSetBit(0); pc >= 0;
+             pc = states.nextSetBit(pc + 1)) {
+            if (pc == size ? startAccepts : accepts[pc])
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the chars read along a shortest path from the state from,
+     * or from the start if it is -1, to the state to.
+     */
+    private String path(int from, int to) {
+        if (from == to)
+            return "";
+        int[] parent = new int[size];
+        Arrays.fill(parent, -2);
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int t : from < 0 ? startSucc : succ[from]) {
+            if (parent[t] == -2) {
+                parent[t] = -1;
+                queue.add(t);
+            }
+        }
+        while (parent[to] == -2) {
+            int pc = queue.poll();
+            for (int t : succ[pc]) {
+                if (parent[t] == -2) {
+                    parent[t] = pc;
+                    queue.add(t);
+                }
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int pc = to; pc >= 0; pc = parent[pc])
+            sb.appendCodePoint(common(label[pc]));
+        return sb.reverse().toString();
+    }
+
+    /**
+     * Returns the longest chain of loops, as the states of their strongly
+     * connected components, in which each loop is polynomially ambiguous
+     * with the next.
+     */
+    int[][] chain() {
+        int[] comp = new int[size];
+        int[][] members = members(comp, components(succ, live, comp));
+        List<int[]> loops = new ArrayList<>();
+        // Tarjan numbers a component after those it reaches, so from the
+        // highest number down is in topological order
+        for (int c = members.length - 1; c >= 0; c--) {
+            if (cyclic(members[c], succ))
+                loops.add(members[c]);
+        }
+        int n = loops.size();
+        int[] length = new int[n];
+        int[] prev = new int[n];
+        Link[] link = new Link[n];
+        Arrays.fill(prev, -1);
+        int best = -1;
+        int[][] preds = predecessors();
+        for (int i = 0; i < n; i++) {
+            BitSet from = reach(loops.get(i), succ);
+            for (int j = i + 1; j < n; j++) {
+                int[] qs = loops.get(j);
+                if (!from.get(qs[0]) || length[i] + 1 <= length[j])
+                    continue;
+                BitSet to = reach(qs, preds);
+                to.and(from);
+                Link l = polynomial(loops.get(i), to.stream().toArray(), qs);
+                if (l != null) {
+                    length[j] = length[i] + 1;
+                    prev[j] = i;
+                    link[j] = l;
+                }
+            }
+            if (best < 0 || length[i] > length[best])
+                best = i;
+        }
+        if (best < 0)
+            return new int[0][];
+        int[][] result = new int[length[best] + 1][];
+        links = new Link[length[best] + 1];
+        for (int i = best, k = length[best]; i >= 0; i = prev[i], k--) {
+            result[k] = loops.get(i);
+            links[k] = link[i];
+        }
+        return result;
+    }
+
+    private int[][] predecessors() {
+        int[] count = new int[size];
+        for (int pc = 0; pc < size; pc++) {
+            if (live[pc]) {
+                for (int t : succ[pc])
+                    count[t]++;
+            }
+        }
+        int[][] preds = new int[size][];
+        for (int pc = 0; pc < size; pc++)
+            preds[pc] = new int[count[pc]];
+        for (int pc = 0; pc < size; pc++) {
+            if (live[pc]) {
+                for (int t : succ[pc])
+                    preds[t][--count[t]] = pc;
+            }
+        }
+        return preds;
+    }
+
+    /**
+     * The live states reachable from the given ones along edges.
+     */
+    private BitSet reach(int[] states, int[][] edges) {
+        BitSet seen = new BitSet(size);
+        ArrayDeque<Integer> work = new ArrayDeque<>();
+        for (int s : states) {
+            seen.set(s);
+            work.add(s);
+        }
+        while (!work.isEmpty()) {
+            for (int t : edges[work.poll()]) {
+                if (live[t] && !seen.get(t)) {
+                    seen.set(t);
+                    work.add(t);
+                }
+            }
+        }
+        return seen;
+    }
+
+    /**
+     * The innermost repetition that all of the states are part of.
+     */
+    private Repeat enclosing(int[] states) {
+        Repeat r = owner[states[0]];
+        for (int s : states) {
+            Repeat o = owner[s];
+            while (o != null && r != null && o != r) {
+                if (o.depth >= r.depth)
+                    o = o.parent;
+                else
+                    r = r.parent;
+            }
+            if (o == null)
+                r = null;
+        }
+        return r;
+    }
+
+    private String describe(Repeat r) {
+        if (r == null)
+            return "";
+        String s = sources == null ? null : sources.get(r.node);
+        if (s != null)
+            return s.trim();
+        String name = r.node.getClass().getName();
+        return name.substring(name.lastIndexOf('$') + 1);
+    }
+
+    //
+    // Graphs
+    //
+
+    /**
+     * Numbers the strongly connected components of the graph with the
+     * given successor lists, leaving out the vertices without a list,
+     * with Tarjan's algorithm. Returns the number of components; every
+     * component is numbered after the ones it can reach.
+     */
+    private static int components(int[][] out, int[] comp) {
+        return components(out, null, comp);
+    }
+
+    private static int components(int[][] out, boolean[] use, int[] comp) {
+        int n = out.length;
+        Arrays.fill(comp, -1);
+        int[] index = new int[n];
+        int[] low = new int[n];
+        Arrays.fill(index, -1);
+        boolean[] onStack = new boolean[n];
+        int[] stack = new int[n];
+        int[] calls = new int[n];
+        int[] edge = new int[n];
+        int counter = 0, comps = 0, sp = 0;
+        for (int s = 0; s < n; s++) {
+            if (out[s] == null || use != null && !use[s] || index[s] != -1)
+                continue;
+            int cp = 0;
+            index[s] = low[s] = counter++;
+            stack[sp++] = s;
+            onStack[s] = true;
+            calls[cp] = s;
+            edge[cp++] = 0;
+            while (cp > 0) {
+                int v = calls[cp - 1];
+                if (edge[cp - 1] < out[v].length) {
+                    int w = out[v][edge[cp - 1]++];
+                    if (out[w] == null || use != null && !use[w])
+                        continue;
+                    if (index[w] == -1) {
+                        index[w] = low[w] = counter++;
+                        stack[sp++] = w;
+                        onStack[w] = true;
+                        calls[cp] = w;
+                        edge[cp++] = 0;
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], index[w]);
+                    }
+                } else {
+                    cp--;
+                    if (cp > 0) {
+                        int u = calls[cp - 1];
+                        low[u] = Math.min(low[u], low[v]);
+                    }
+                    if (low[v] == index[v]) {
+                        int w;
+                        do {
+                            w = stack[--sp];
+                            onStack[w] = false;
+                            comp[w] = comps;
+                        } while (w != v);
+                        comps++;
+                    }
+                }
+            }
+        }
+        return comps;
+    }
+
+    /**
+     * Lists the vertices of each of the numbered components.
+     */
+    private static int[][] members(int[] comp, int comps) {
+        int[] count = new int[comps];
+        for (int c : comp) {
+            if (c >= 0)
+                count[c]++;
+        }
+        int[][] members = new int[comps][];
+        for (int c = 0; c < comps; c++)
+            members[c] = new int[count[c]];
+        for (int v = comp.length - 1; v >= 0; v--) {
+            if (comp[v] >= 0)
+                members[comp[v]][--count[comp[v]]] = v;
+        }
+        return members;
+    }
+
+    /**
+     * Tells whether a strongly connected component has a cycle: more than
+     * one state, or a state with a transition to itself.
+     */
+    private static boolean cyclic(int[] states, int[][] out) {
+        if (states.length > 1)
+            return true;
+        for (int t : out[states[0]]) {
+            if (t == states[0])
+                return true;
+        }
+        return false;
+    }
+}
@@ -372,11 +372,11 @@ class CharPredicates {
     }
 
     private static CharPredicate range(final int lower, final int upper) {
-        return (BmpCharPredicate)ch -> lower <= ch && ch <= upper;
+        return Pattern.CharClass.of(new int[] { lower, upper }, true);
     }
 
     private static CharPredicate ctype(final int ctype) {
-        return (BmpCharPredicate)ch -> ch < 128 && ASCII.isType(ch, ctype);
+        return Pattern.CharClass.ascii(ch -> ASCII.isType(ch, ctype));
     }
 
     /////////////////////////////////////////////////////////////////////////////
@@ -384,14 +384,21 @@ class CharPredicates {
     /**
      * Posix ASCII variants, not in the lookup map
      */
+    private static final BmpCharPredicate ASCII_DIGIT =
+        Pattern.CharClass.ascii(ASCII::isDigit);
+    private static final BmpCharPredicate ASCII_WORD =
+        Pattern.CharClass.ascii(ASCII::isWord);
+    private static final BmpCharPredicate ASCII_SPACE =
+        Pattern.CharClass.ascii(ASCII::isSpace);
+
     static final BmpCharPredicate ASCII_DIGIT() {
-        return ch -> ch < 128 && ASCII.isDigit(ch);
+        return ASCII_DIGIT;
     }
     static final BmpCharPredicate ASCII_WORD() {
-        return ch -> ch < 128 && ASCII.isWord(ch);
+        return ASCII_WORD;
     }
     static final BmpCharPredicate ASCII_SPACE() {
-        return ch -> ch < 128 && ASCII.isSpace(ch);
+        return ASCII_SPACE;
     }
 
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package za.ac.sun.cs.regex;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+
+/**
+ * A utility that writes the exploit strings of the ambiguous patterns
+ * among those given, one per line, in a file or on standard input. The
+ * output is a JSON list of objects with the members {@code pattern} and
+ * {@code exploitString}, in the form the benchmarks read; patterns that
+ * do not compile, or have no exploit string, are left out.
+ */
+class ExploitGenerator {
+
+    static void generate(BufferedReader in, PrintStream out) throws IOException {
+        String line;
+        boolean first = true;
+        out.println('[');
+        while ((line = in.readLine()) != null) {
+            ExploitString e;
+            try {
+                e = Pattern.compile(line).analyze().exploitString();
+            } catch (PatternSyntaxException x) {
+                continue;
+            }
+            if (e == null)
+                continue;
+            StringBuilder sb = new StringBuilder();
+            sb.append(first ? "  " : ", ").append("{\"pattern\": ");
+            ExploitString.appendJson(sb, line);
+            sb.append(", \"exploitString\": ").append(e.toJson()).append('}');
+            out.println(sb);
+            first = false;
+        }
+        out.println(']');
+    }
+
+    public static void main(String[] args) throws IOException {
+        Reader r = args.length > 0 ? new FileReader(args[0])
+                                   : new InputStreamReader(System.in);
+        try (BufferedReader in = new BufferedReader(r)) {
+            generate(in, System.out);
+        }
+    }
+}
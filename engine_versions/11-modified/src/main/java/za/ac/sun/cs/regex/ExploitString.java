@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package za.ac.sun.cs.regex;
+
+import java.util.List;
+
+/**
+ * An input on which a backtracking matcher takes more than linear time to
+ * fail, as found by {@link Pattern#analyze()}.
+ *
+ * <p> The input is made of a separator, a pump repeated some number of
+ * times, and a suffix. For an exponentially ambiguous pattern there is one
+ * separator and one pump, and the number of ways to read the pumps grows
+ * exponentially with their number. For a pattern of polynomial degree
+ * <i>d</i> there are <i>d</i> separator and pump pairs, one after the
+ * other, and the number of ways grows as the number of times each pump
+ * is repeated to the power <i>d</i> + 1. The suffix makes every one of
+ * these ways fail, so that the matcher tries them all. </p>
+ *
+ * <p> The parts are given in the same form as the exploit strings that
+ * the benchmarks read, see {@link #toJson()}. </p>
+ *
+ * <p> Instances of this class are immutable and are safe for use by
+ * multiple concurrent threads. </p>
+ *
+ * @see PatternAnalysis#exploitString()
+ */
+public final class ExploitString {
+
+    /**
+     * The number of times the pump of an exponentially ambiguous pattern
+     * is repeated in {@link #exampleString()}.
+     */
+    static final int EXPONENTIAL_PUMPS = 42;
+
+    /**
+     * The number of steps a backtracking matcher should take, at least,
+     * to fail on the {@link #exampleString()} of a polynomially ambiguous
+     * pattern.
+     */
+    static final double POLYNOMIAL_STEPS = 1e8;
+
+    private final int degree;
+    private final List<String> separators;
+    private final List<String> pumps;
+    private final String suffix;
+
+    ExploitString(int degree, List<String> separators, List<String> pumps,
+                  String suffix) {
+        this.degree = degree;
+        this.separators = List.copyOf(separators);
+        this.pumps = List.copyOf(pumps);
+        this.suffix = suffix;
+    }
+
+    /**
+     * Returns the degree of the polynomial ambiguity the input exploits,
+     * or 0 if it exploits exponential ambiguity.
+     *
+     * @return  The degree, as given by {@link PatternAnalysis#degree()}
+     */
+    public int degree() {
+        return degree;
+    }
+
+    /**
+     * Returns the separators, each of which comes before the pump of the
+     * same index.
+     *
+     * @return  The separators
+     */
+    public List<String> separators() {
+        return separators;
+    }
+
+    /**
+     * Returns the pumps, each of which can be repeated any number of
+     * times.
+     *
+     * @return  The pumps
+     */
+    public List<String> pumps() {
+        return pumps;
+    }
+
+    /**
+     * Returns the suffix, which comes after the last pump.
+     *
+     * @return  The suffix
+     */
+    public String suffix() {
+        return suffix;
+    }
+
+    /**
+     * Returns the input with each pump repeated the given number of times.
+     *
+     * @param  n
+     *         The number of times each pump is repeated
+     *
+     * @return  The input
+     */
+    public String build(int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < pumps.size(); i++) {
+            sb.append(separators.get(i));
+            String pump = pumps.get(i);
+            for (int k = 0; k < n; k++)
+                sb.append(pump);
+        }
+        return sb.append(suffix).toString();
+    }
+
+    /**
+     * Returns an input that takes a backtracking matcher long enough to
+     * be worth measuring: the pump is repeated 42 times for an
+     * exponentially ambiguous pattern, and often enough for about 10^8
+     * steps for a polynomially ambiguous one.
+     *
+     * @return  The input
+     */
+    public String exampleString() {
+        if (degree == 0)
+            return build(EXPONENTIAL_PUMPS);
+        int n = (int)Math.ceil(Math.pow(POLYNOMIAL_STEPS, 1.0 / (degree + 1)));
+        return build(Math.max(n, EXPONENTIAL_PUMPS));
+    }
+
+    /**
+     * Returns this input as a JSON object with the members
+     * {@code degree}, {@code separators}, {@code pumps}, {@code suffix}
+     * and {@code exampleString}, the form in which the benchmarks read
+     * exploit strings.
+     *
+     * @return  The JSON text
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"degree\": ").append(degree);
+        sb.append(", \"separators\": ");
+        appendJson(sb, separators);
+        sb.append(", \"pumps\": ");
+        appendJson(sb, pumps);
+        sb.append(", \"suffix\": ");
+        appendJson(sb, suffix);
+        sb.append(", \"exampleString\": ");
+        appendJson(sb, exampleString());
+        return sb.append('}').toString();
+    }
+
+    static void appendJson(StringBuilder sb, List<String> list) {
+        sb.append('[');
+        for (int i = 0; i < list.size(); i++) {
+            if (i > 0)
+                sb.append(", ");
+            appendJson(sb, list.get(i));
+        }
+        sb.append(']');
+    }
+
+    static void appendJson(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':  sb.append("\\\""); break;
+            case '\\': sb.append("\\\\"); break;
+            case '\b': sb.append("\\b"); break;
+            case '\f': sb.append("\\f"); break;
+            case '\n': sb.append("\\n"); break;
+            case '\r': sb.append("\\r"); break;
+            case '\t': sb.append("\\t"); break;
+            default:
+                if (c < 0x20 || c > 0x7E)
+                    sb.append(String.format("\\u%04x", (int)c));
+                else
+                    sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Returns the string representation of this input, with each pump
+     * shown once and followed by an ellipsis.
+     *
+     * @return  The string representation of this input
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < pumps.size(); i++)
+            sb.append(separators.get(i)).append(pumps.get(i)).append("...");
+        return sb.append(suffix).toString();
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package za.ac.sun.cs.regex;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import za.ac.sun.cs.regex.Pattern.CharPredicate;
+import za.ac.sun.cs.regex.Pattern.Node;
+
+/**
+ * Works out the set of code units a match of a compiled pattern can start
+ * with, so that an unanchored search can pass over every other position
+ * without calling into the node tree.
+ *
+ * The set is a bitmap over the whole BMP. Only literal characters and
+ * Latin-1 classes are placed exactly; any other class is tested on the
+ * ASCII characters and assumed to take all the others, which keeps the
+ * analysis cheap. A supplementary character is represented by its high
+ * surrogate. If some way through the pattern matches the empty string,
+ * looks around before it reads, or passes through a node we know nothing
+ * about, there is no set and every position has to be tried.
+ */
+final class FirstChars {
+
+    private static final int BMP_SIZE = Character.MAX_VALUE + 1;
+
+    /**
+     * The number of nodes visited before giving up; alternatives that can
+     * be empty make us look at what follows them more than once.
+     */
+    private static final int MAX_STEPS = 1 << 12;
+
+    // What first() found for the nodes that branch, which can be reached
+    // again through the alternatives that can be empty before them
+    private Map<Node, Boolean> known;
+
+    private final BitSet chars = new BitSet();
+    // set instead of all the characters from 128 up
+    private boolean nonAscii;
+    private final Node stop;
+    // whether every way the rest of the pattern can go is followed, not
+    // only those from its start; see disjoint()
+    private final boolean strict;
+    private boolean any;
+    private int steps;
+
+    private FirstChars(Node stop) {
+        this(stop, false);
+    }
+
+    private FirstChars(Node stop, boolean strict) {
+        this.stop = stop;
+        this.strict = strict;
+    }
+
+    /**
+     * Returns the first code units of the matches of {@code matchRoot} as
+     * a bitmap of {@code 1 << 10} longs, or null if a match can start
+     * with any of them.
+     */
+    static long[] of(Node matchRoot) {
+        FirstChars fc = new FirstChars(null);
+        fc.first(matchRoot);
+        if (fc.any)
+            return null;
+        if (fc.nonAscii) {
+            fc.chars.set(128, BMP_SIZE);
+            if (fc.chars.cardinality() == BMP_SIZE)
+                return null;
+        }
+        return Arrays.copyOf(fc.chars.toLongArray(), BMP_SIZE >>> 6);
+    }
+
+    /**
+     * Returns, for each ASCII character and lastly for all the other
+     * characters together, the alternatives of the Branch that can
+     * start with it, in order. An alternative that can be empty, or
+     * that looks around first, can start with anything. Returns null if
+     * that is true of them all.
+     */
+    static int[][] dispatch(Pattern.Branch b) {
+        // the ASCII characters each alternative can start with, and
+        // whether it can start with any other
+        long[] lo = new long[b.size];
+        long[] hi = new long[b.size];
+        boolean[] other = new boolean[b.size];
+        boolean known = false;
+        for (int n = 0; n < b.size; n++) {
+            FirstChars fc = new FirstChars(b.conn);
+            if (b.atoms[n] != null && fc.first(b.atoms[n]) && !fc.any) {
+                long[] words = fc.chars.toLongArray();
+                lo[n] = words.length > 0 ? words[0] : 0;
+                hi[n] = words.length > 1 ? words[1] : 0;
+                other[n] = fc.nonAscii || fc.chars.nextSetBit(128) >= 0;
+                known = true;
+            } else {
+                lo[n] = hi[n] = -1L;
+                other[n] = true;
+            }
+        }
+        if (!known)
+            return null;
+        // characters that lead to the same alternatives as the one
+        // before them share its row
+        int[][] table = new int[129][];
+        int[] alts = new int[b.size];
+        for (int c = 0; c <= 128; c++) {
+            int k = 0;
+            for (int n = 0; n < b.size; n++) {
+                if (c == 128 ? other[n] : ((c < 64 ? lo[n] : hi[n]) & (1L << c)) != 0)
+                    alts[k++] = n;
+            }
+            if (c > 0 && Arrays.equals(table[c - 1], 0, table[c - 1].length, alts, 0, k))
+                table[c] = table[c - 1];
+            else
+                table[c] = Arrays.copyOf(alts, k);
+        }
+        return table;
+    }
+
+    /**
+     * Tells if no match of the rest of the pattern from {@code next} can
+     * start with a character {@code p} takes, so that a greedy run of
+     * them just before it never has to give one back.
+     *
+     * Every match of the rest has to read a character first, and nothing
+     * on the way to that read may look at the input beyond it: trying the
+     * rest where a given back character is next then fails at once, and
+     * leaves hitEnd and requireEnd as they were.
+     */
+    static boolean disjoint(CharPredicate p, Node next) {
+        FirstChars fc = new FirstChars(null, true);
+        if (!fc.first(next) || fc.any)
+            return false;
+        if (p instanceof Pattern.SingleChar)
+            return !fc.has(((Pattern.SingleChar)p).c);
+        if (p instanceof Pattern.CharClass) {
+            int[] ranges = ((Pattern.CharClass)p).ranges;
+            for (int k = 0; k < ranges.length; k += 2) {
+                if (ranges[k] < BMP_SIZE && fc.hasAny(ranges[k],
+                        Math.min(ranges[k + 1], BMP_SIZE - 1)))
+                    return false;
+                if (ranges[k + 1] >= BMP_SIZE && fc.hasAny(
+                        Character.highSurrogate(Math.max(ranges[k], BMP_SIZE)),
+                        Character.highSurrogate(ranges[k + 1])))
+                    return false;
+            }
+            return true;
+        }
+        // any other class is only tested on the characters that follow
+        if (fc.nonAscii ||
+            fc.hasAny(Character.MIN_HIGH_SURROGATE, Character.MAX_HIGH_SURROGATE))
+            return false;
+        for (int c = fc.chars.nextSetBit(0); c >= 0; c = fc.chars.nextSetBit(c + 1)) {
+            if (p.is(c))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean has(int c) {
+        if (!Character.isBmpCodePoint(c))
+            c = Character.highSurrogate(c);
+        return chars.get(c) || nonAscii && c >= 128;
+    }
+
+    // tells if a code unit from lo to hi, inclusive, is in the set
+    private boolean hasAny(int lo, int hi) {
+        if (nonAscii && hi >= 128)
+            return true;
+        int c = chars.nextSetBit(lo);
+        return c >= 0 && c <= hi;
+    }
+
+    /**
+     * Adds the characters that can be read first on the way from
+     * {@code node} to the end of the atom it belongs to, and tells if
+     * every such way reads at least one character.
+     */
+    private boolean first(Node node) {
+        if (any || ++steps > MAX_STEPS || node == null ||
+            node instanceof Pattern.LastNode) {
+            any = true;
+            return true;
+        }
+        if (node == Pattern.accept || node == stop)
+            return false;
+        if (isZeroWidth(node)) {
+            // a look around reads on past the node, and a $ just before
+            // a line terminator at the end marks the end hit, so passing
+            // over either would leave hitEnd and requireEnd unset
+            if (node instanceof Pattern.Pos ||
+                node instanceof Pattern.Neg ||
+                node instanceof Pattern.Behind ||
+                node instanceof Pattern.NotBehind) {
+                any = true;
+                return true;
+            }
+            if (node instanceof Pattern.Dollar ||
+                node instanceof Pattern.UnixDollar) {
+                chars.set(0x0A);
+                chars.set(0x0D);
+                chars.set(0x85);
+                chars.set(0x2028, 0x202A);
+            }
+            return first(node.next);
+        }
+        if (!isBranching(node))
+            return read(node);
+        if (known == null)
+            known = new IdentityHashMap<>();
+        Boolean reads = known.get(node);
+        if (reads == null) {
+            reads = read(node);
+            known.put(node, reads);
+        }
+        return reads;
+    }
+
+    private boolean read(Node node) {
+        if (node instanceof Pattern.CharProperty) {
+            add(((Pattern.CharProperty)node).predicate);
+            return true;
+        }
+        if (node instanceof Pattern.CharPropertyGreedy) {
+            Pattern.CharPropertyGreedy cpg = (Pattern.CharPropertyGreedy)node;
+            add(cpg.predicate);
+            return cpg.cmin > 0 || first(node.next);
+        }
+        if (node instanceof Pattern.SliceNode) {
+            Pattern.SliceNode slice = (Pattern.SliceNode)node;
+            // what a quantifier with nothing to repeat leaves behind
+            if (slice.buffer.length == 0)
+                return first(node.next);
+            addSlice(slice);
+            return true;
+        }
+        if (node instanceof Pattern.LineEnding) {
+            chars.set(0x0A, 0x0E);
+            chars.set(0x85);
+            chars.set(0x2028, 0x202A);
+            return true;
+        }
+        if (node instanceof Pattern.Branch) {
+            Pattern.Branch b = (Pattern.Branch)node;
+            boolean all = true;
+            for (int n = 0; n < b.size; n++)
+                all &= first(b.atoms[n] == null ? b.conn.next : b.atoms[n]);
+            return all;
+        }
+        if (node instanceof Pattern.Ques) {
+            Pattern.Ques q = (Pattern.Ques)node;
+            boolean atom = first(q.atom);
+            if (q.type == Pattern.Qtype.INDEPENDENT && atom)
+                return true;
+            return first(node.next);
+        }
+        if (node instanceof Pattern.Curly) {
+            Pattern.Curly c = (Pattern.Curly)node;
+            return repeat(c.atom, c.cmin, node.next);
+        }
+        if (node instanceof Pattern.GroupCurly) {
+            Pattern.GroupCurly c = (Pattern.GroupCurly)node;
+            return repeat(c.atom, c.cmin, node.next);
+        }
+        if (node instanceof Pattern.Prolog) {
+            Pattern.Loop loop = ((Pattern.Prolog)node).loop;
+            return repeat(loop.body, loop.cmin, loop.next);
+        }
+        if (node instanceof Pattern.Loop) {
+            // the end of the loop body: what can come first on the way
+            // back into the body is already known to the Prolog, unless
+            // we started inside it
+            if (!strict)
+                return first(node.next);
+            Pattern.Loop loop = (Pattern.Loop)node;
+            if (known == null)
+                known = new IdentityHashMap<>();
+            if (known.containsKey(loop)) {
+                Boolean reads = known.get(loop);
+                if (reads != null)
+                    return reads;
+                // back at the loop without reading anything
+                any = true;
+                return true;
+            }
+            known.put(loop, null);
+            boolean reads = first(loop.body) & first(loop.next);
+            known.put(loop, reads);
+            return reads;
+        }
+        any = true;
+        return true;
+    }
+
+    private boolean repeat(Node atom, int cmin, Node next) {
+        boolean reads = first(atom);
+        if (cmin > 0 && reads)
+            return true;
+        return first(next);
+    }
+
+    private static boolean isBranching(Node node) {
+        return node instanceof Pattern.Branch ||
+               node instanceof Pattern.Ques ||
+               node instanceof Pattern.Curly ||
+               node instanceof Pattern.GroupCurly ||
+               node instanceof Pattern.Prolog ||
+               node instanceof Pattern.CharPropertyGreedy;
+    }
+
+    private static boolean isZeroWidth(Node node) {
+        return node instanceof Pattern.GroupHead ||
+               node instanceof Pattern.GroupTail ||
+               node instanceof Pattern.BranchConn ||
+               node instanceof Pattern.Begin ||
+               node instanceof Pattern.End ||
+               node instanceof Pattern.Caret ||
+               node instanceof Pattern.UnixCaret ||
+               node instanceof Pattern.Dollar ||
+               node instanceof Pattern.UnixDollar ||
+               node instanceof Pattern.LastMatch ||
+               node instanceof Pattern.Bound ||
+               node instanceof Pattern.GraphemeBound ||
+               node instanceof Pattern.Pos ||
+               node instanceof Pattern.Neg ||
+               node instanceof Pattern.Behind ||
+               node instanceof Pattern.NotBehind;
+    }
+
+    private void add(CharPredicate p) {
+        if (p instanceof Pattern.SingleChar) {
+            chars.set(((Pattern.SingleChar)p).c);
+            return;
+        }
+        if (p instanceof Pattern.Latin1Chars) {
+            boolean[] bits = ((Pattern.Latin1Chars)p).bits;
+            for (int c = 0; c < bits.length; c++) {
+                if (bits[c])
+                    chars.set(c);
+            }
+            return;
+        }
+        if (p instanceof Pattern.CharClass) {
+            int[] ranges = ((Pattern.CharClass)p).ranges;
+            for (int k = 0; k < ranges.length; k += 2) {
+                if (ranges[k] < BMP_SIZE)
+                    chars.set(ranges[k], Math.min(ranges[k + 1] + 1, BMP_SIZE));
+                // a supplementary character starts with a high surrogate
+                if (ranges[k + 1] >= BMP_SIZE)
+                    chars.set(Character.MIN_HIGH_SURROGATE,
+                              Character.MAX_HIGH_SURROGATE + 1);
+            }
+            return;
+        }
+        for (int c = 0; c < 128; c++) {
+            if (p.is(c))
+                chars.set(c);
+        }
+        nonAscii = true;
+    }
+
+    /**
+     * Adds the characters the slice can start with, following the case
+     * folding of each slice class.
+     */
+    private void addSlice(Pattern.SliceNode node) {
+        int b = node.buffer[0];
+        if (node instanceof Pattern.Slice) {
+            if (Character.isBmpCodePoint(b))
+                chars.set(b);
+            else
+                chars.set(Character.highSurrogate(b));
+            return;
+        }
+        if (Character.isBmpCodePoint(b))
+            chars.set(b);
+        for (int c = 0; c < 128; c++) {
+            if (fold(node, c) == b)
+                chars.set(c);
+        }
+        // ASCII folding leaves the other characters alone
+        if (!(node instanceof Pattern.SliceI))
+            nonAscii = true;
+    }
+
+    private static int fold(Pattern.SliceNode node, int c) {
+        if (node instanceof Pattern.SliceI)
+            return ASCII.toLower(c);
+        if (node instanceof Pattern.SliceIS)
+            return ((Pattern.SliceIS)node).toLower(c);
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+}
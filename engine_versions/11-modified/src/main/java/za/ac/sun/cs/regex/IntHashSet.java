@@ -30,21 +30,29 @@ import java.util.Arrays;
 /**
  * A lightweight hashset implementation for positive 'int'. Not safe for
  * concurrent access.
+ *
+ * Buckets are stamped with the generation in which they were last
+ * written, so {@code clear()} only has to advance the generation and
+ * runs in constant time regardless of how large the set has grown.
  */
 class IntHashSet {
     private int[] entries;
     private int[] hashes;
+    private int[] stamps;
     private int pos = 0;
+    private int gen = 1;
 
     public IntHashSet() {
         this.entries = new int[16 << 1];      // initCapacity = 16;
         this.hashes = new int[(16 / 2) | 1];  // odd -> fewer collisions
-        Arrays.fill(this.entries, -1);
-        Arrays.fill(this.hashes, -1);
+        this.stamps = new int[hashes.length];
     }
 
     public boolean contains(int i) {
-        int h = hashes[i % hashes.length];
+        int h0 = i % hashes.length;
+        if (stamps[h0] != gen)
+            return false;
+        int h = hashes[h0];
         while (h != -1) {
             if (entries[h] == i)
                 return true;
@@ -55,7 +63,7 @@ class IntHashSet {
 
     public void add(int i) {
         int h0 = i % hashes.length;
-        int next = hashes[h0];
+        int next = stamps[h0] == gen ? hashes[h0] : -1;
         //  if invoker guarantees contains(i) checked before add(i)
         //  the following check is not needed.
         int next0 = next;
@@ -65,6 +73,7 @@ class IntHashSet {
             next0 = entries[next0 + 1];
         }
         hashes[h0] = pos;
+        stamps[h0] = gen;
         entries[pos++] = i;
         entries[pos++] = next;
         if (pos == entries.length)
@@ -72,9 +81,11 @@ class IntHashSet {
     }
 
     public void clear() {
-        Arrays.fill(this.entries, -1);
-        Arrays.fill(this.hashes, -1);
         pos = 0;
+        if (++gen == 0) {  // wrapped around, stale stamps may collide
+            Arrays.fill(this.stamps, 0);
+            gen = 1;
+        }
     }
 
     private void expand() {
@@ -82,7 +93,6 @@ class IntHashSet {
         int[] es = new int[old.length << 1];
         int hlen = (old.length / 2) | 1;
         int[] hs = new int[hlen];
-        Arrays.fill(es, -1);
         Arrays.fill(hs, -1);
         for (int n = 0; n < pos;) {  // re-hashing
             int i = old[n];
@@ -92,7 +102,10 @@ class IntHashSet {
             es[n++] = i;
             es[n++] = next;
         }
+        int[] ss = new int[hlen];
+        Arrays.fill(ss, gen);
         this.entries = es;
         this.hashes = hs;
+        this.stamps = ss;
     }
 }
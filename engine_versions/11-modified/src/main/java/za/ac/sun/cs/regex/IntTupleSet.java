@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package za.ac.sun.cs.regex;
+
+import java.util.Arrays;
+
+/**
+ * A lightweight hashset implementation for tuples of 'int' of a fixed
+ * width, holding at most a fixed number of tuples. Not safe for
+ * concurrent access.
+ *
+ * Like IntHashSet, slots are stamped with the generation in which they
+ * were last written, so {@code clear()} runs in constant time.
+ */
+class IntTupleSet {
+    private final int width;
+    private final int capacity;
+    private int[] tuples;  // tuple n at [n * width, (n + 1) * width)
+    private int[] slots;   // open addressing, tuple number
+    private int[] stamps;
+    private int size = 0;
+    private int gen = 1;
+
+    public IntTupleSet(int width, int capacity) {
+        this.width = width;
+        this.capacity = capacity;
+        this.tuples = new int[width * 16];
+        this.slots = new int[32];
+        this.stamps = new int[32];
+    }
+
+    public boolean contains(int[] t) {
+        int mask = slots.length - 1;
+        for (int h = hash(t) & mask; stamps[h] == gen; h = (h + 1) & mask) {
+            if (equals(slots[h], t))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds the tuple, unless the set is full. Returns false if the
+     * tuple is not in the set afterwards.
+     */
+    public boolean add(int[] t) {
+        if (contains(t))
+            return true;
+        if (size == capacity)
+            return false;
+        if (size << 1 >= slots.length)
+            expand();
+        if ((size + 1) * width > tuples.length)
+            tuples = Arrays.copyOf(tuples, tuples.length << 1);
+        System.arraycopy(t, 0, tuples, size * width, width);
+        insert(size++, hash(t));
+        return true;
+    }
+
+    public void clear() {
+        size = 0;
+        if (++gen == 0) {  // wrapped around, stale stamps may collide
+            Arrays.fill(this.stamps, 0);
+            gen = 1;
+        }
+    }
+
+    private void insert(int n, int hash) {
+        int mask = slots.length - 1;
+        int h = hash & mask;
+        while (stamps[h] == gen)
+            h = (h + 1) & mask;
+        slots[h] = n;
+        stamps[h] = gen;
+    }
+
+    private void expand() {
+        slots = new int[slots.length << 1];
+        stamps = new int[slots.length];
+        gen = 1;
+        int[] t = new int[width];
+        for (int n = 0; n < size; n++) {  // re-hashing
+            System.arraycopy(tuples, n * width, t, 0, width);
+            insert(n, hash(t));
+        }
+    }
+
+    /**
+     * The tuples are small ints, such as a node, a text index and a
+     * count, so each is multiplied out to the high bits, and those are
+     * folded down; with 31 * h + t[k], tuples of nearby indexes and
+     * counts hash to a narrow range, and the probes run long.
+     */
+    private int hash(int[] t) {
+        int h = 0;
+        for (int k = 0; k < width; k++)
+            h = (h + t[k]) * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private boolean equals(int n, int[] t) {
+        int base = n * width;
+        for (int k = 0; k < width; k++) {
+            if (tuples[base + k] != t[k])
+                return false;
+        }
+        return true;
+    }
+}
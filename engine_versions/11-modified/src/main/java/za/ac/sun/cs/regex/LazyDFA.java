@@ -0,0 +1,773 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package za.ac.sun.cs.regex;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import za.ac.sun.cs.regex.Pattern.CharPredicate;
+
+/**
+ * Tells whether a pattern matches, without finding where, by running the
+ * program of its Pike VM as a DFA that is built lazily: a DFA state is
+ * the set of instructions the threads at a text index start from, and
+ * it is created, along with its transitions, the first time a search
+ * reaches it. Searches then mostly follow transitions already in the
+ * cache, reading each char once with no calls into the node tree.
+ *
+ * The zero width assertions a state can reach are checked at every text
+ * index it is entered at; each combination of their outcomes gets its
+ * own set of transitions. Since only whether a match exists matters,
+ * thread priorities are not kept, and a CHECK whose iteration can match
+ * nothing may both end and continue a repetition. Ending it after an
+ * iteration that did match something is the same as going through one
+ * more iteration that matches nothing; continuing after an iteration
+ * that matched nothing is the same as leaving that iteration out.
+ * Repetitions that can only match nothing where an assertion holds, and
+ * lookaheads, are left to the backtracker.
+ *
+ * A search also finds where the leftmost match may start, as its first
+ * match shows nothing of that. Once a match ends, no more threads are
+ * started, and the DFA runs on until those left die, which is where the
+ * longest of the matches from the starts read so far ends. The program
+ * is then run backwards from there, as a second DFA whose threads start
+ * at every MATCH and which reads the text from right to left; the
+ * leftmost text index at which one reaches the start of the program is
+ * the leftmost at which a match may start. The backtracker need not try
+ * the starts before it, which can make it take time quadratic in the
+ * length of the text, unless it would hit the end from one of them: if
+ * the threads run up to the end of the region, the backwards DFA starts
+ * there, and also follows those back from the end.
+ *
+ * The cache is bounded by CACHE_BYTES and flushed when full. A search
+ * that keeps flushing the cache without getting far through the text
+ * gives up, and once MAX_GIVE_UPS searches have, the DFA is no longer
+ * used and the pattern is always matched by backtracking.
+ *
+ * The DFA is safe for use by multiple concurrent threads: a search takes
+ * the cache for itself, and a search that finds it taken builds a cache
+ * of its own.
+ */
+final class LazyDFA {
+
+    /**
+     * The results of run. Those of start are text indexes, or else
+     * UNKNOWN or NO_START.
+     */
+    static final int NO = 0, YES = 1, UNKNOWN = -1, NO_START = -2;
+
+    /**
+     * The memory the states and transitions of a cache may take up, as
+     * estimated when they are added, before the cache is flushed.
+     */
+    static final int CACHE_BYTES = 1 << 20;
+
+    /**
+     * A search gives up when it flushes the cache having read fewer than
+     * this many chars per state created since the last flush.
+     */
+    static final int MIN_CHARS_PER_STATE = 10;
+
+    /**
+     * The number of searches that may give up before the DFA is no longer
+     * used.
+     */
+    static final int MAX_GIVE_UPS = 8;
+
+    /**
+     * The most assertions a state may reach, so that their outcomes fit
+     * in a long.
+     */
+    private static final int MAX_ASSERTS = 64;
+
+    /**
+     * The stand-in for the DFA of a pattern that its Pike VM cannot run.
+     */
+    static final LazyDFA UNSUPPORTED = new LazyDFA(null);
+
+    private final PikeVM vm;
+
+    // for each instruction, those that continue to it without reading
+    private final int[][] preds;
+    // the MATCH instructions, where the backwards threads start, and
+    // the CHAR, ASSERT and NOTLF instructions, offset by the size of the
+    // program, where those from the end of the region do
+    private final int[] matches;
+    private final int[] ends;
+
+    private final AtomicReference<Cache> idle = new AtomicReference<>();
+
+    private volatile int giveUps;
+
+    private LazyDFA(PikeVM vm) {
+        this.vm = vm;
+        if (vm == null) {
+            preds = null;
+            matches = ends = null;
+            return;
+        }
+        int size = vm.size;
+        int[] count = new int[size + 1];
+        int[] matches = new int[size];
+        int[] ends = new int[size];
+        int m = 0, n = 0;
+        for (int pc = 0; pc < size; pc++) {
+            switch (vm.op[pc]) {
+            case PikeVM.MATCH:
+                matches[m++] = pc;
+                continue;
+            case PikeVM.CHAR:
+                ends[n++] = pc + size;
+                continue;
+            case PikeVM.ASSERT:
+            case PikeVM.NOTLF:
+                ends[n++] = pc + size;
+                break;
+            default:
+            }
+            for (int succ : successors(pc))
+                count[succ]++;
+        }
+        this.matches = Arrays.copyOf(matches, m);
+        this.ends = Arrays.copyOf(ends, n);
+        preds = new int[size][];
+        for (int pc = 0; pc < size; pc++)
+            preds[pc] = new int[count[pc]];
+        Arrays.fill(count, 0);
+        for (int pc = 0; pc < size; pc++) {
+            int op = vm.op[pc];
+            if (op == PikeVM.CHAR || op == PikeVM.MATCH)
+                continue;
+            for (int succ : successors(pc))
+                preds[succ][count[succ]++] = pc;
+        }
+    }
+
+    /**
+     * Returns the instructions that pc continues to without reading, as
+     * follow does.
+     */
+    private int[] successors(int pc) {
+        switch (vm.op[pc]) {
+        case PikeVM.JMP:
+            return new int[] { vm.x[pc] };
+        case PikeVM.SPLIT:
+            return new int[] { vm.x[pc], vm.y[pc] };
+        case PikeVM.CHECK:
+            return vm.data[pc] == PikeVM.EMPTY
+                ? new int[] { pc + 1, vm.y[pc] } : new int[] { pc + 1 };
+        default:
+            return new int[] { pc + 1 };
+        }
+    }
+
+    /**
+     * Returns the DFA for the program of the given VM, or UNSUPPORTED if
+     * there is no VM, a repetition in its program may end early only
+     * where an assertion holds, or it has lookaheads.
+     */
+    static LazyDFA compile(PikeVM vm) {
+        if (vm == null)
+            return UNSUPPORTED;
+        for (int pc = 0; pc < vm.size; pc++) {
+            if (vm.op[pc] == PikeVM.CHECK &&
+                vm.data[pc] == PikeVM.EMPTY_IF_ASSERTED ||
+                vm.op[pc] == PikeVM.LOOK)
+                return UNSUPPORTED;
+        }
+        return new LazyDFA(vm);
+    }
+
+    /**
+     * Tells if the DFA is still in use, see MAX_GIVE_UPS.
+     */
+    boolean usable() {
+        return giveUps < MAX_GIVE_UPS;
+    }
+
+    /**
+     * A DFA state: the instructions the threads at a text index start
+     * from, before following jumps, splits and assertions. A state of
+     * the backwards DFA holds those from which a thread reaches a MATCH
+     * having read the text after the index, and, offset by the size of
+     * the program, those from which one reaches the end of the region.
+     * A state is unanchored if threads start at every text index: at the
+     * start of the program, or at its MATCH instructions if backwards.
+     */
+    private static final class DState {
+        final int[] pcs;
+        final boolean unanchored;
+        final boolean backwards;
+        final int hash;
+        // the ASSERT and NOTLF instructions the state can reach, or null
+        // if there are too many
+        int[] asserts;
+        // the expansion when there are no assertions
+        Expansion plain;
+        // the expansions for each combination of assertion outcomes
+        long[] masks;
+        Expansion[] variants;
+        int variantCount;
+
+        DState(int[] pcs, boolean unanchored, boolean backwards) {
+            this.pcs = pcs;
+            this.unanchored = unanchored;
+            this.backwards = backwards;
+            this.hash = Arrays.hashCode(pcs) * 31 + (unanchored ? 1 : 0) +
+                (backwards ? 2 : 0);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof DState))
+                return false;
+            DState s = (DState)o;
+            return unanchored == s.unanchored && backwards == s.backwards &&
+                Arrays.equals(pcs, s.pcs);
+        }
+    }
+
+    /**
+     * A state with its assertions decided: the CHAR instructions its
+     * threads wait at, whether one of them has matched, and the states
+     * reached on each char. Backwards, the CHAR instructions are those
+     * that continue to a thread of the state, match tells whether a
+     * match may start at the text index, and hitsEnd whether a thread
+     * from it may reach the end of the region.
+     */
+    private static final class Expansion {
+        final int[] chars;
+        final boolean match;
+        final boolean hitsEnd;
+        DState[] ascii;
+        HashMap<Integer, DState> other;
+
+        Expansion(int[] chars, boolean match, boolean hitsEnd) {
+            this.chars = chars;
+            this.match = match;
+            this.hitsEnd = hitsEnd;
+        }
+    }
+
+    /**
+     * The states of the DFA and the scratch space to build them with.
+     */
+    private final class Cache {
+        final HashMap<DState, DState> states = new HashMap<>();
+        long bytes;
+        // states created, and chars read, since the last flush
+        int created;
+        long read;
+        // scratch for closures and steps, with room for the offset pcs
+        // of the backwards DFA
+        final int[] mark = new int[2 * vm.size];
+        int stamp;
+        int[] work = new int[16];
+        int[] found = new int[16];
+
+        int nextStamp() {
+            if (++stamp == Integer.MAX_VALUE) {
+                Arrays.fill(mark, 0);
+                stamp = 1;
+            }
+            return stamp;
+        }
+
+        void flush() {
+            states.clear();
+            bytes = 0;
+            created = 0;
+            read = 0;
+        }
+
+        DState intern(int[] pcs, boolean unanchored, boolean backwards) {
+            DState s = new DState(pcs, unanchored, backwards);
+            DState old = states.get(s);
+            if (old != null)
+                return old;
+            s.asserts = asserts(this, s);
+            states.put(s, s);
+            bytes += 64 + 4 * pcs.length +
+                (s.asserts == null ? 0 : 4 * s.asserts.length);
+            created++;
+            return s;
+        }
+    }
+
+    /**
+     * Tells if the pattern matches the region of the matcher: anywhere
+     * from the text index from on, or the whole region if whole is true.
+     * Returns UNKNOWN if the DFA gave up or cannot read the text.
+     */
+    int run(Matcher matcher, int from, boolean whole, CharSequence seq) {
+        Cache cache = idle.getAndSet(null);
+        if (cache == null)
+            cache = new Cache();
+        try {
+            return run(cache, matcher, from, whole, seq);
+        } finally {
+            idle.set(cache);
+        }
+    }
+
+    private int run(Cache cache, Matcher matcher, int from, boolean whole,
+                    CharSequence seq) {
+        int to = matcher.to;
+        boolean unanchored = !whole;
+        DState s = cache.intern(new int[] { 0 }, unanchored, false);
+        for (int pos = from; ; pos++) {
+            Expansion e = expand(cache, s, matcher, pos, seq);
+            if (e == null)
+                return UNKNOWN;
+            if (e.match && (unanchored || pos == to))
+                return YES;
+            if (pos >= to)
+                return NO;
+            if (e.chars.length == 0 && !unanchored)
+                return NO;
+            char c = seq.charAt(pos);
+            if (Character.isSurrogate(c))
+                return UNKNOWN;
+            s = next(cache, s, e, c, unanchored);
+            if (s == null)
+                return UNKNOWN;
+        }
+    }
+
+    /**
+     * Returns the text index from which a search of the region of the
+     * matcher, from the text index from on, need only try to match: the
+     * leftmost at which a match may start, or from if the backtracker
+     * might hit the end of the region trying one of the starts before
+     * it. Returns NO_START if there is no match, and UNKNOWN if the DFA gave
+     * up or cannot read the text.
+     */
+    int start(Matcher matcher, int from, CharSequence seq) {
+        Cache cache = idle.getAndSet(null);
+        if (cache == null)
+            cache = new Cache();
+        try {
+            return start(cache, matcher, from, seq);
+        } finally {
+            idle.set(cache);
+        }
+    }
+
+    private int start(Cache cache, Matcher matcher, int from,
+                      CharSequence seq) {
+        int to = matcher.to;
+        // forwards, up to where the threads of the starts before the
+        // first match ends die, noting where the last match ends
+        boolean unanchored = true;
+        int last = -1;
+        int pos = from;
+        DState s = cache.intern(new int[] { 0 }, true, false);
+        for (; ; pos++) {
+            Expansion e = expand(cache, s, matcher, pos, seq);
+            if (e == null)
+                return UNKNOWN;
+            if (e.match) {
+                last = pos;
+                unanchored = false;
+            }
+            if (pos >= to || e.chars.length == 0 && !unanchored)
+                break;
+            char c = seq.charAt(pos);
+            if (Character.isSurrogate(c))
+                return UNKNOWN;
+            s = next(cache, s, e, c, unanchored);
+            if (s == null)
+                return UNKNOWN;
+        }
+        if (last < 0)
+            return NO_START;
+        // backwards, from the end of the region if the threads got there
+        boolean reachedEnd = pos >= to;
+        pos = reachedEnd ? to : last;
+        int[] pcs = pos <= last ? matches : new int[0];
+        if (reachedEnd) {
+            pcs = Arrays.copyOf(pcs, pcs.length + ends.length);
+            System.arraycopy(ends, 0, pcs, pcs.length - ends.length,
+                             ends.length);
+        }
+        s = cache.intern(pcs, pos <= last, true);
+        int start = -1;
+        int hitsEnd = Integer.MAX_VALUE;
+        for (; ; pos--) {
+            Expansion e = expand(cache, s, matcher, pos, seq);
+            if (e == null)
+                return UNKNOWN;
+            if (e.match)
+                start = pos;
+            if (e.hitsEnd)
+                hitsEnd = pos;
+            if (pos <= from)
+                break;
+            char c = seq.charAt(pos - 1);
+            if (Character.isSurrogate(c))
+                return UNKNOWN;
+            s = next(cache, s, e, c, pos - 1 <= last);
+            if (s == null)
+                return UNKNOWN;
+        }
+        return start < 0 || hitsEnd < start ? from : start;
+    }
+
+    /**
+     * Returns the state that s, expanded to e, goes to on c, whose
+     * threads start at every text index if unanchored is true, or null
+     * if the search should give up. The transition is kept in the cache
+     * when s starts threads the same way.
+     */
+    private DState next(Cache cache, DState s, Expansion e, char c,
+                        boolean unanchored) {
+        cache.read++;
+        boolean keep = unanchored == s.unanchored;
+        DState next = !keep ? null : c < 128
+            ? (e.ascii == null ? null : e.ascii[c])
+            : (e.other == null ? null : e.other.get((int)c));
+        if (next != null)
+            return next;
+        int[] pcs = s.backwards ? stepBack(cache, e, c, unanchored)
+                                : step(cache, e, c, unanchored);
+        if (cache.bytes > CACHE_BYTES) {
+            if (cache.read < MIN_CHARS_PER_STATE * cache.created) {
+                giveUps++;
+                cache.flush();
+                return null;
+            }
+            // the expansion now belongs to the flushed states, so the
+            // transition is not recorded
+            cache.flush();
+            return cache.intern(pcs, unanchored, s.backwards);
+        }
+        next = cache.intern(pcs, unanchored, s.backwards);
+        if (!keep)
+            return next;
+        if (c < 128) {
+            if (e.ascii == null) {
+                e.ascii = new DState[128];
+                cache.bytes += 16 + 4 * 128;
+            }
+            e.ascii[c] = next;
+        } else {
+            if (e.other == null)
+                e.other = new HashMap<>();
+            e.other.put((int)c, next);
+            cache.bytes += 48;
+        }
+        return next;
+    }
+
+    /**
+     * Returns the expansion of s at text index pos, checking the
+     * assertions s can reach there, or null if s reaches too many.
+     */
+    private Expansion expand(Cache cache, DState s, Matcher matcher, int pos,
+                             CharSequence seq) {
+        int[] asserts = s.asserts;
+        if (asserts == null)
+            return null;
+        if (asserts.length == 0) {
+            if (s.plain == null)
+                s.plain = closure(cache, s, 0L);
+            return s.plain;
+        }
+        long mask = 0L;
+        for (int n = 0; n < asserts.length; n++) {
+            int pc = asserts[n] % vm.size;
+            boolean holds;
+            if (vm.op[pc] == PikeVM.NOTLF) {
+                if (pos >= matcher.to) {
+                    matcher.hitEnd = true;
+                    holds = true;
+                } else {
+                    holds = seq.charAt(pos) != '\n';
+                }
+            } else {
+                holds = PikeVM.check(vm.x[pc], vm.data[pc], matcher, pos, seq);
+            }
+            if (holds)
+                mask |= 1L << n;
+        }
+        for (int n = 0; n < s.variantCount; n++) {
+            if (s.masks[n] == mask)
+                return s.variants[n];
+        }
+        Expansion e = closure(cache, s, mask);
+        if (s.variants == null) {
+            s.masks = new long[2];
+            s.variants = new Expansion[2];
+        } else if (s.variantCount == s.variants.length) {
+            s.masks = Arrays.copyOf(s.masks, s.variantCount * 2);
+            s.variants = Arrays.copyOf(s.variants, s.variantCount * 2);
+        }
+        s.masks[s.variantCount] = mask;
+        s.variants[s.variantCount++] = e;
+        return e;
+    }
+
+    /**
+     * Collects the ASSERT and NOTLF instructions reachable from the pcs
+     * of s without reading a char, or returns null if there are more than
+     * MAX_ASSERTS of them.
+     */
+    private int[] asserts(Cache cache, DState s) {
+        int[] found = cache.found;
+        int count = 0;
+        int stamp = cache.nextStamp();
+        int sp = push(cache, s.pcs, stamp);
+        int[] work = cache.work;
+        while (sp > 0) {
+            int pc = work[--sp];
+            int op = vm.op[pc % vm.size];
+            if (op == PikeVM.ASSERT || op == PikeVM.NOTLF) {
+                if (count == MAX_ASSERTS)
+                    return null;
+                if (count == found.length)
+                    cache.found = found = Arrays.copyOf(found, count * 2);
+                found[count++] = pc;
+            }
+            sp = s.backwards ? followBack(cache, pc, stamp, sp, -1L, null)
+                             : follow(cache, pc, stamp, sp);
+            work = cache.work;
+        }
+        int[] asserts = Arrays.copyOf(found, count);
+        Arrays.sort(asserts);
+        return asserts;
+    }
+
+    /**
+     * Follows the threads of s without reading a char, letting through
+     * the assertions whose bits are set in mask.
+     */
+    private Expansion closure(Cache cache, DState s, long mask) {
+        if (s.backwards)
+            return closureBack(cache, s, mask);
+        int[] found = cache.found;
+        int count = 0;
+        boolean match = false;
+        int stamp = cache.nextStamp();
+        int sp = push(cache, s.pcs, stamp);
+        int[] work = cache.work;
+        while (sp > 0) {
+            int pc = work[--sp];
+            int op = vm.op[pc];
+            if (op == PikeVM.CHAR) {
+                if (count == found.length)
+                    cache.found = found = Arrays.copyOf(found, count * 2);
+                found[count++] = pc;
+                continue;
+            }
+            if (op == PikeVM.MATCH) {
+                match = true;
+                continue;
+            }
+            if (op == PikeVM.ASSERT || op == PikeVM.NOTLF) {
+                int n = Arrays.binarySearch(s.asserts, pc);
+                if ((mask & (1L << n)) == 0)
+                    continue;
+            }
+            sp = follow(cache, pc, stamp, sp);
+            work = cache.work;
+        }
+        int[] chars = Arrays.copyOf(found, count);
+        cache.bytes += 48 + 4 * chars.length;
+        return new Expansion(chars, match, false);
+    }
+
+    /**
+     * Follows the threads of the backwards state s to the instructions
+     * that continue to them without reading a char, letting through the
+     * assertions whose bits are set in mask.
+     */
+    private Expansion closureBack(Cache cache, DState s, long mask) {
+        int[] found = cache.found;
+        int count = 0;
+        boolean match = false;
+        boolean hitsEnd = false;
+        int size = vm.size;
+        int stamp = cache.nextStamp();
+        int sp = push(cache, s.pcs, stamp);
+        int[] work = cache.work;
+        while (sp > 0) {
+            int q = work[--sp];
+            int pc = q % size;
+            if (pc == 0) {
+                if (q == 0)
+                    match = true;
+                else
+                    hitsEnd = true;
+            } else if (vm.op[pc - 1] == PikeVM.CHAR) {
+                if (count == found.length)
+                    cache.found = found = Arrays.copyOf(found, count * 2);
+                found[count++] = q - 1;
+            }
+            sp = followBack(cache, q, stamp, sp, mask, s.asserts);
+            work = cache.work;
+        }
+        int[] chars = Arrays.copyOf(found, count);
+        cache.bytes += 48 + 4 * chars.length;
+        return new Expansion(chars, match, hitsEnd);
+    }
+
+    /**
+     * Returns the pcs of the state reached from e on c: those following
+     * the CHAR instructions that accept c, sorted, with the start of the
+     * program when unanchored.
+     */
+    /**
+     * Returns the pcs of the backwards state reached from e on c: the
+     * CHAR instructions of e that accept c, sorted, with the MATCH
+     * instructions when unanchored.
+     */
+    private int[] stepBack(Cache cache, Expansion e, char c,
+                           boolean unanchored) {
+        int[] found = cache.found;
+        int count = 0;
+        if (unanchored) {
+            while (found.length < matches.length + e.chars.length)
+                cache.found = found = Arrays.copyOf(found, found.length * 2);
+            for (int pc : matches)
+                found[count++] = pc;
+        }
+        for (int q : e.chars) {
+            if (((CharPredicate)vm.data[q % vm.size]).is(c)) {
+                if (count == found.length)
+                    cache.found = found = Arrays.copyOf(found, count * 2);
+                found[count++] = q;
+            }
+        }
+        int[] pcs = Arrays.copyOf(found, count);
+        Arrays.sort(pcs);
+        return pcs;
+    }
+
+    private int[] step(Cache cache, Expansion e, char c, boolean unanchored) {
+        int[] found = cache.found;
+        int count = 0;
+        int stamp = cache.nextStamp();
+        if (unanchored) {
+            cache.mark[0] = stamp;
+            found[count++] = 0;
+        }
+        for (int pc : e.chars) {
+            if (((CharPredicate)vm.data[pc]).is(c) &&
+                cache.mark[pc + 1] != stamp) {
+                cache.mark[pc + 1] = stamp;
+                if (count == found.length)
+                    cache.found = found = Arrays.copyOf(found, count * 2);
+                found[count++] = pc + 1;
+            }
+        }
+        int[] pcs = Arrays.copyOf(found, count);
+        Arrays.sort(pcs);
+        return pcs;
+    }
+
+    private int push(Cache cache, int[] pcs, int stamp) {
+        int sp = 0;
+        for (int pc : pcs) {
+            if (cache.mark[pc] != stamp) {
+                cache.mark[pc] = stamp;
+                if (sp == cache.work.length)
+                    cache.work = Arrays.copyOf(cache.work, sp * 2);
+                cache.work[sp++] = pc;
+            }
+        }
+        return sp;
+    }
+
+    /**
+     * Pushes the instructions that follow pc without reading a char onto
+     * the work stack, skipping those already marked with stamp. Assertions
+     * are passed through; the caller decides whether to follow them.
+     */
+    private int follow(Cache cache, int pc, int stamp, int sp) {
+        int a, b = -1;
+        switch (vm.op[pc]) {
+        case PikeVM.CHAR:
+        case PikeVM.MATCH:
+            return sp;
+        case PikeVM.JMP:
+            a = vm.x[pc];
+            break;
+        case PikeVM.SPLIT:
+            a = vm.x[pc];
+            b = vm.y[pc];
+            break;
+        case PikeVM.CHECK:
+            a = pc + 1;
+            if (vm.data[pc] == PikeVM.EMPTY)
+                b = vm.y[pc];
+            break;
+        default:
+            a = pc + 1;
+        }
+        if (sp + 2 > cache.work.length)
+            cache.work = Arrays.copyOf(cache.work, cache.work.length * 2);
+        if (cache.mark[a] != stamp) {
+            cache.mark[a] = stamp;
+            cache.work[sp++] = a;
+        }
+        if (b != -1 && cache.mark[b] != stamp) {
+            cache.mark[b] = stamp;
+            cache.work[sp++] = b;
+        }
+        return sp;
+    }
+
+    /**
+     * Pushes the instructions that continue to q without reading a char
+     * onto the work stack, as follow does backwards, with the offset of
+     * q. Of the assertions, only those whose bits are set in mask, as
+     * found in asserts, are let through.
+     */
+    private int followBack(Cache cache, int q, int stamp, int sp, long mask,
+                           int[] asserts) {
+        int offset = q - q % vm.size;
+        for (int pc : preds[q - offset]) {
+            int p = pc + offset;
+            if (cache.mark[p] == stamp)
+                continue;
+            int op = vm.op[pc];
+            if (asserts != null && (op == PikeVM.ASSERT || op == PikeVM.NOTLF)) {
+                int n = Arrays.binarySearch(asserts, p);
+                if ((mask & (1L << n)) == 0)
+                    continue;
+            }
+            cache.mark[p] = stamp;
+            if (sp == cache.work.length)
+                cache.work = Arrays.copyOf(cache.work, sp * 2);
+            cache.work[sp++] = p;
+        }
+        return sp;
+    }
+}
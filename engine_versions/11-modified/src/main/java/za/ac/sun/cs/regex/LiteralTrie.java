@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package za.ac.sun.cs.regex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+import za.ac.sun.cs.regex.Pattern.Node;
+
+/**
+ * A trie of the alternatives of a Branch whose alternatives are all
+ * strings of literal characters, such as {@code (com|net|org)} or
+ * {@code (a[cdefg]|b[abd])}. It reads the input once from the start
+ * position, instead of once for every alternative, and then tries what
+ * follows the Branch after each alternative that matched, in the order
+ * the alternatives appear, so the leftmost alternative still wins.
+ *
+ * An alternative may be made of Slice nodes and single character or
+ * small Latin-1 class nodes; a class is taken as all of its characters
+ * at that place in the string. Case insensitive literals, supplementary
+ * characters and anything else leave the Branch as it is.
+ */
+final class LiteralTrie {
+
+    /**
+     * The most strings a single alternative may stand for.
+     */
+    private static final int MAX_STRINGS = 1 << 8;
+
+    /**
+     * The most nodes of a trie.
+     */
+    private static final int MAX_NODES = 1 << 14;
+
+    private final Pattern.Branch branch;
+
+    // For each trie node: the characters it can be left on, in order,
+    // the nodes they lead to, the length of the string it stands for
+    // and the first alternative that is this string, or -1.
+    private final char[][] keys;
+    private final int[][] kids;
+    private final int[] depth;
+    private final int[] alt;
+
+    private LiteralTrie(Pattern.Branch branch, List<TreeMap<Character, Integer>> edges,
+                        List<Integer> depths, List<Integer> alts) {
+        this.branch = branch;
+        int n = edges.size();
+        keys = new char[n][];
+        kids = new int[n][];
+        depth = new int[n];
+        alt = new int[n];
+        for (int t = 0; t < n; t++) {
+            TreeMap<Character, Integer> e = edges.get(t);
+            keys[t] = new char[e.size()];
+            kids[t] = new int[e.size()];
+            int x = 0;
+            for (var entry : e.entrySet()) {
+                keys[t][x] = entry.getKey();
+                kids[t][x++] = entry.getValue();
+            }
+            depth[t] = depths.get(t);
+            alt[t] = alts.get(t);
+        }
+    }
+
+    /**
+     * Builds the trie of the Branch, or returns null if one of its
+     * alternatives is not a string of literal characters.
+     */
+    static LiteralTrie of(Pattern.Branch b) {
+        List<List<char[]>> atoms = new ArrayList<>();
+        boolean hasAtom = false;
+        for (int n = 0; n < b.size; n++) {
+            List<char[]> places = places(b.atoms[n], b.conn);
+            if (places == null)
+                return null;
+            hasAtom |= !places.isEmpty();
+            long strings = 1;
+            for (char[] p : places)
+                strings *= p.length;
+            if (strings > MAX_STRINGS)
+                return null;
+            atoms.add(places);
+        }
+        if (!hasAtom)
+            return null;
+
+        List<TreeMap<Character, Integer>> edges = new ArrayList<>();
+        List<Integer> depths = new ArrayList<>();
+        List<Integer> alts = new ArrayList<>();
+        edges.add(new TreeMap<>());
+        depths.add(0);
+        alts.add(-1);
+        for (int n = 0; n < b.size; n++) {
+            List<char[]> places = atoms.get(n);
+            // add every string of the alternative, one place at a time
+            List<Integer> at = List.of(0);
+            for (char[] p : places) {
+                List<Integer> to = new ArrayList<>();
+                for (int t : at) {
+                    for (char c : p) {
+                        Integer kid = edges.get(t).get(c);
+                        if (kid == null) {
+                            kid = edges.size();
+                            edges.add(new TreeMap<>());
+                            depths.add(depths.get(t) + 1);
+                            alts.add(-1);
+                            edges.get(t).put(c, kid);
+                        }
+                        to.add(kid);
+                    }
+                }
+                if (edges.size() > MAX_NODES)
+                    return null;
+                at = to;
+            }
+            for (int t : at) {
+                if (alts.get(t) < 0)
+                    alts.set(t, n);
+            }
+        }
+        return new LiteralTrie(b, edges, depths, alts);
+    }
+
+    /**
+     * Returns the characters each place of the alternative can hold, in
+     * order, or null if it is not a string of literal characters.
+     */
+    private static List<char[]> places(Node node, Node conn) {
+        List<char[]> places = new ArrayList<>();
+        for (; node != null && node != conn; node = node.next) {
+            if (node.getClass() == Pattern.Slice.class) {
+                for (int c : ((Pattern.Slice)node).buffer)
+                    places.add(new char[] { (char)c });
+            } else if (node instanceof Pattern.CharProperty) {
+                Pattern.CharPredicate p = ((Pattern.CharProperty)node).predicate;
+                if (p instanceof Pattern.SingleChar) {
+                    // CharProperty reads a code point, so a surrogate
+                    // may not be compared on its own
+                    char c = (char)((Pattern.SingleChar)p).c;
+                    if (Character.isSurrogate(c))
+                        return null;
+                    places.add(new char[] { c });
+                } else if (p instanceof Pattern.Latin1Chars) {
+                    boolean[] bits = ((Pattern.Latin1Chars)p).bits;
+                    StringBuilder sb = new StringBuilder();
+                    for (int c = 0; c < bits.length; c++) {
+                        if (bits[c])
+                            sb.append((char)c);
+                    }
+                    if (sb.length() == 0)
+                        return null;
+                    places.add(sb.toString().toCharArray());
+                } else if (p instanceof Pattern.CharClass) {
+                    int[] ranges = ((Pattern.CharClass)p).ranges;
+                    if (ranges.length == 0 || ranges[ranges.length - 1] > 0xFF)
+                        return null;
+                    StringBuilder sb = new StringBuilder();
+                    for (int k = 0; k < ranges.length; k += 2) {
+                        for (int c = ranges[k]; c <= ranges[k + 1]; c++)
+                            sb.append((char)c);
+                    }
+                    places.add(sb.toString().toCharArray());
+                } else {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+        return places;
+    }
+
+    /**
+     * Matches the Branch at i. If the input ends while an alternative
+     * could still be read further, the alternatives are tried one by one
+     * instead, so that hitEnd is set as they would set it.
+     */
+    boolean match(Matcher matcher, int i, CharSequence seq) {
+        int to = matcher.to;
+        int t = 0;
+        int hits = 0;
+        int last = 0;
+        for (int j = i;; j++) {
+            if (alt[t] >= 0) {
+                hits++;
+                last = t;
+            }
+            if (keys[t].length == 0)
+                break;
+            if (j >= to)
+                return branch.matchAtoms(matcher, i, seq);
+            int x = Arrays.binarySearch(keys[t], seq.charAt(j));
+            if (x < 0)
+                break;
+            t = kids[t][x];
+        }
+        Node next = branch.conn.next;
+        if (hits <= 1)
+            return hits == 1 && next.match(matcher, i + depth[last], seq);
+
+        // several lengths matched: go along the path again and try them
+        // in the order of their alternatives
+        int[] alts = new int[hits];
+        int[] ends = new int[hits];
+        int k = 0;
+        t = 0;
+        for (int j = i;; j++) {
+            if (alt[t] >= 0) {
+                int x = k++;
+                while (x > 0 && alts[x - 1] > alt[t]) {
+                    alts[x] = alts[x - 1];
+                    ends[x] = ends[x - 1];
+                    x--;
+                }
+                alts[x] = alt[t];
+                ends[x] = i + depth[t];
+            }
+            if (k == hits)
+                break;
+            t = kids[t][Arrays.binarySearch(keys[t], seq.charAt(j))];
+        }
+        for (int x = 0; x < hits; x++) {
+            if (next.match(matcher, ends[x], seq))
+                return true;
+        }
+        return false;
+    }
+}
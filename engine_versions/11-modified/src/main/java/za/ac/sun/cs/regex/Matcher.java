@@ -25,6 +25,7 @@
 
 package za.ac.sun.cs.regex;
 
+import java.util.Arrays;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
@@ -185,6 +186,154 @@ public final class Matcher implements MatchResult {
      */
     IntHashSet[] localsPos;
 
+    /**
+     * Dense alternative to localsPos: one bit per (memoized node, text
+     * index) pair, the bit for node n at index i being number
+     * n * localsPosWidth + i. It is used instead of the hash sets
+     * whenever the whole table fits in MEMO_BITMAP_LIMIT bits.
+     */
+    long[] localsPosBits;
+
+    /**
+     * The number of bits per memoized node in localsPosBits, a multiple
+     * of 64 so that no word is shared by two nodes, or -1 when the hash
+     * sets in localsPos are in use for the current search.
+     */
+    int localsPosWidth = -1;
+
+    /**
+     * The text length the memo table was last cleared for.
+     */
+    int localsPosLength = -1;
+
+    /**
+     * The indices of the words of localsPosBits that became non-zero
+     * since the last clear, so that clearing costs no more than the
+     * recording did instead of being proportional to the text length.
+     * Words of nodes whose failures depend on the search start are
+     * kept apart in localsPosDirtyDep.
+     */
+    int[] localsPosDirty, localsPosDirtyDep;
+    int localsPosDirtyCount, localsPosDirtyDepCount;
+
+    /**
+     * Whether the failures recorded by the last search are still valid
+     * for the next one. This holds after a search() that neither hit the
+     * end nor required it, as long as nothing that affects how the nodes
+     * match (pattern, input, region or bounds) has changed since; the
+     * start-independent memo entries then carry over to the next find().
+     */
+    boolean memoReusable;
+
+    /**
+     * The failures of the memoized nodes that are keyed by more than the
+     * position, as tuples of node index, position and the state given by
+     * Pattern.memoKeyGroups and memoKeyLocals. Once MEMO_KEYED_LIMIT
+     * failures have been recorded in a search, further ones are dropped.
+     */
+    IntTupleSet localsPosKeyed;
+    int[] localsPosTuple;
+
+    /**
+     * The largest number of keyed failures recorded per search.
+     */
+    static final int MEMO_KEYED_LIMIT = 1 << 18;
+
+    /**
+     * The largest memo table, in bits, that is kept as a dense bitmap.
+     * Larger tables fall back to one IntHashSet per memoized node.
+     */
+    static final long MEMO_BITMAP_LIMIT = 1L << 24;
+
+    /**
+     * Whether the outcomes of the lookarounds counted by the pattern's
+     * lookaroundCount are cached, see useLookaroundMemo.
+     */
+    boolean lookaroundMemo = false;
+
+    /**
+     * The outcomes of the cached lookarounds in the current search, one
+     * hash set per lookaround. A lookaround that held at text index i is
+     * stored as 2 * i + 1, one that did not as 2 * i.
+     */
+    IntHashSet[] lookaroundPos;
+
+    /**
+     * Whether searches run on the pattern's Pike VM when it can run them,
+     * see usePikeVM.
+     */
+    boolean pikeVM = false;
+
+    /**
+     * The storage this matcher runs the Pike VM with, or null until it
+     * is needed.
+     */
+    PikeVM.State pikeState;
+
+    /**
+     * Whether find() first asks the pattern's lazy DFA if there is a
+     * match at all, see useLazyDFA.
+     */
+    boolean lazyDFA = false;
+
+    /**
+     * Whether searches start out backtracking without the memo and with
+     * a budget of steps, see useAdaptiveSwitching.
+     */
+    boolean adaptive = false;
+
+    /**
+     * Whether searches backtrack through the pattern's Pike VM program,
+     * keeping their own stack, when the VM can run them, see
+     * useIterativeBacktracking.
+     */
+    boolean iterative = false;
+
+    /**
+     * Whether a search has run over its budget since the text or region
+     * was last set, so that the searches that follow go straight to the
+     * Pike VM or the memo.
+     */
+    boolean overBudget;
+
+    /**
+     * Whether memoContains and memoAdd are in use. They are not while an
+     * adaptive search is within its budget.
+     */
+    boolean memoOn = true;
+
+    /**
+     * The steps taken by the backtracker since the text or region was
+     * last set, and the number after which it gives up, see step.
+     */
+    int steps;
+    int stepLimit = Integer.MAX_VALUE;
+
+    /**
+     * The budget of adaptive searching, in steps per char of the region,
+     * shared by all the searches until the text or region is set again.
+     */
+    static final int STEPS_PER_CHAR = 32;
+
+    /**
+     * Thrown by step when a search runs over its budget.
+     */
+    private static final class OverBudget extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        OverBudget() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final OverBudget OVER_BUDGET = new OverBudget();
+
+    /**
+     * Whether the text contains surrogates, which the Pike VM cannot
+     * read if it may split a pair: -1 until the text has been looked at,
+     * then 0 or 1.
+     */
+    int textSurrogates = -1;
+
     /**
      * Boolean indicating whether or not more input could change
      * the results of the last match.
@@ -385,6 +534,10 @@ public final class Matcher implements MatchResult {
         for (int i = 0; i < locals.length; i++)
             locals[i] = -1;
         localsPos = new IntHashSet[parentPattern.localTCNCount];
+        localsPosWidth = -1;
+        memoReusable = false;
+        localsPosKeyed = null;
+        lookaroundPos = null;
         modCount++;
         return this;
     }
@@ -407,10 +560,10 @@ public final class Matcher implements MatchResult {
             groups[i] = -1;
         for(int i=0; i<locals.length; i++)
             locals[i] = -1;
-        for (int i = 0; i < localsPos.length; i++) {
-            if (localsPos[i] != null)
-                localsPos[i].clear();
-        }
+        clearMemo(false);
+        memoReusable = false;
+        overBudget = false;
+        steps = 0;
         lastAppendPosition = 0;
         from = 0;
         to = getTextLength();
@@ -434,6 +587,7 @@ public final class Matcher implements MatchResult {
      */
     public Matcher reset(CharSequence input) {
         text = input;
+        textSurrogates = -1;
         return reset();
     }
 
@@ -1596,6 +1750,7 @@ public final class Matcher implements MatchResult {
      */
     public Matcher useTransparentBounds(boolean b) {
         transparentBounds = b;
+        memoReusable = false;
         return this;
     }
 
@@ -1642,6 +1797,248 @@ public final class Matcher implements MatchResult {
      */
     public Matcher useAnchoringBounds(boolean b) {
         anchoringBounds = b;
+        memoReusable = false;
+        return this;
+    }
+
+    /**
+     * Queries whether this matcher caches the outcomes of lookarounds.
+     *
+     * <p> See {@link #useLookaroundMemo(boolean) useLookaroundMemo} for a
+     * description of the cache.
+     *
+     * <p> By default, a matcher does not cache lookaround outcomes.
+     *
+     * @return {@code true} iff this matcher caches lookaround outcomes,
+     *         {@code false} otherwise.
+     */
+    public boolean hasLookaroundMemo() {
+        return lookaroundMemo;
+    }
+
+    /**
+     * Sets whether this matcher caches the outcomes of lookarounds.
+     *
+     * <p> With the cache in use, a lookahead or lookbehind that contains
+     * neither capturing groups nor back references is evaluated at most
+     * once per position in each search, and later attempts at the same
+     * position reuse the outcome. This keeps lookarounds that sit inside
+     * a repetition, or that the matcher backtracks over, from being
+     * matched again and again. The results of the matcher are the same
+     * either way.
+     *
+     * <p> By default, a matcher does not cache lookaround outcomes.
+     *
+     * @param  b a boolean indicating whether or not to cache lookaround
+     *         outcomes.
+     * @return this matcher
+     * @see #hasLookaroundMemo
+     */
+    public Matcher useLookaroundMemo(boolean b) {
+        lookaroundMemo = b;
+        return this;
+    }
+
+    /**
+     * Queries whether this matcher runs its searches on a Pike VM.
+     *
+     * <p> See {@link #usePikeVM(boolean) usePikeVM} for a description of
+     * the Pike VM.
+     *
+     * <p> By default, a matcher backtracks.
+     *
+     * @return {@code true} iff this matcher uses the Pike VM where it
+     *         can, {@code false} otherwise.
+     */
+    public boolean hasPikeVM() {
+        return pikeVM;
+    }
+
+    /**
+     * Sets whether this matcher runs its searches on a Pike VM.
+     *
+     * <p> The Pike VM tries all the ways the pattern can match in step,
+     * reading each char of the input once, so that a search takes time
+     * proportional to the size of the pattern times the length of the
+     * input, whatever the pattern and input are. It finds the same
+     * matches and groups as backtracking does. Whether {@link #hitEnd}
+     * and {@link #requireEnd} are set may differ, since the VM tries
+     * alternatives the backtracker would not have needed.
+     *
+     * <p> Lookaheads are run where a thread reaches them, by backtracking
+     * through them; what a lookahead that failed has tried is not tried
+     * again in the same search, so a search with lookaheads can take
+     * longer, but not exponentially longer.
+     *
+     * <p> Patterns with back references, lookbehinds, possessive
+     * quantifiers, independent groups, grapheme clusters or boundaries,
+     * or canonical equivalence are still matched by backtracking: each of
+     * them needs to know more than the index the VM has reached, either
+     * the input behind it or where the first way to match a part of the
+     * pattern ends. So are patterns with groups inside a lookahead or
+     * inside some repetitions, where the backtracker can leave behind the
+     * groups of a path that failed, and patterns whose counted
+     * repetitions are too large to unroll. Patterns in which a single
+     * char may match half a surrogate pair are matched by backtracking on
+     * inputs containing surrogate chars.
+     *
+     * <p> By default, a matcher backtracks.
+     *
+     * @param  b a boolean indicating whether or not to use the Pike VM.
+     * @return this matcher
+     * @see #hasPikeVM
+     */
+    public Matcher usePikeVM(boolean b) {
+        pikeVM = b;
+        return this;
+    }
+
+    /**
+     * Queries whether this matcher rules out searches that cannot succeed
+     * with a lazy DFA.
+     *
+     * <p> See {@link #useLazyDFA(boolean) useLazyDFA} for a description of
+     * the lazy DFA.
+     *
+     * <p> By default, a matcher does not use the lazy DFA.
+     *
+     * @return {@code true} iff this matcher asks the lazy DFA before
+     *         searching, {@code false} otherwise.
+     */
+    public boolean hasLazyDFA() {
+        return lazyDFA;
+    }
+
+    /**
+     * Sets whether this matcher asks a lazy DFA whether there is a match
+     * before searching for it.
+     *
+     * <p> The lazy DFA is built from the pattern's Pike VM program as it
+     * is needed and shared by all the matchers of the pattern. It tells
+     * whether there is a match, and where the first may start, reading
+     * each char of the input at most once forwards and once backwards;
+     * when there is one, the search is made as usual from there to find
+     * where it is and what the groups hold. The starts before it are
+     * skipped unless trying them might hit the end of the region.
+     *
+     * <p> Patterns the Pike VM cannot run, inputs containing surrogate
+     * chars, and patterns whose DFA grows so large that it has to be
+     * rebuilt too often, are searched as usual. So are patterns led by
+     * {@code \A}, or by {@code ^} outside of multiline mode, which a
+     * search only tries at the one index, and for which a failed search
+     * need not have hit the end.
+     *
+     * <p> By default, a matcher does not use the lazy DFA.
+     *
+     * @param  b a boolean indicating whether or not to use the lazy DFA.
+     * @return this matcher
+     * @see #hasLazyDFA
+     */
+    public Matcher useLazyDFA(boolean b) {
+        lazyDFA = b;
+        return this;
+    }
+
+    /**
+     * Queries whether this matcher switches to a linear time engine when
+     * backtracking takes too long.
+     *
+     * <p> See {@link #useAdaptiveSwitching(boolean) useAdaptiveSwitching}
+     * for a description of adaptive switching.
+     *
+     * <p> By default, a matcher does not switch.
+     *
+     * @return {@code true} iff this matcher switches engines,
+     *         {@code false} otherwise.
+     */
+    public boolean hasAdaptiveSwitching() {
+        return adaptive;
+    }
+
+    /**
+     * Sets whether this matcher switches to a linear time engine when
+     * backtracking takes too long.
+     *
+     * <p> With adaptive switching, a search backtracks without recording
+     * the failures of the memoized nodes, and counts the times it enters
+     * a repetition and the chars its repetitions read. The count is kept
+     * across all the searches since the input or region was last set,
+     * such as the starts a find tries and the finds that follow it. Once
+     * it exceeds a fixed number of steps per char of the region, or the
+     * backtracking nests too deep for the thread's stack, the search
+     * starts over on the Pike VM, or, if the Pike VM cannot run the
+     * pattern or read the input, backtracks again with the memo in use;
+     * so do all the searches that follow until the input or region is
+     * set again. Inputs that the pattern matches quickly keep to plain
+     * backtracking, while those that would take more than linear time, or
+     * overflow the stack, are matched in linear time, or close to it for
+     * the patterns left to the memo. The matches found are the same
+     * either way.
+     *
+     * <p> By default, a matcher does not switch.
+     *
+     * @param  b a boolean indicating whether or not to switch engines.
+     * @return this matcher
+     * @see #hasAdaptiveSwitching
+     * @see #usePikeVM
+     */
+    public Matcher useAdaptiveSwitching(boolean b) {
+        adaptive = b;
+        steps = 0;
+        return this;
+    }
+
+    /**
+     * Queries whether this matcher backtracks with a stack of its own
+     * rather than the call stack.
+     *
+     * <p> See {@link #useIterativeBacktracking(boolean)
+     * useIterativeBacktracking} for a description of iterative
+     * backtracking.
+     *
+     * <p> By default, a matcher backtracks on the call stack.
+     *
+     * @return {@code true} iff this matcher backtracks iteratively where
+     *         it can, {@code false} otherwise.
+     */
+    public boolean hasIterativeBacktracking() {
+        return iterative;
+    }
+
+    /**
+     * Sets whether this matcher backtracks with a stack of its own rather
+     * than the call stack.
+     *
+     * <p> Backtracking calls a method for every part of the pattern it
+     * enters, and returns only once the rest of the pattern has matched or
+     * failed, so that a repetition such as {@code (a|b)*} needs a few
+     * frames of the call stack for every char it reads, and long enough
+     * inputs end in a {@link StackOverflowError}. Iterative backtracking
+     * instead runs the program of the pattern's Pike VM depth first, with
+     * a loop that keeps the choices still open on an array that grows as
+     * needed. It tries the alternatives in the same order, so that it
+     * finds the same matches and groups, and sets {@link #hitEnd} and
+     * {@link #requireEnd} in the same way. Unless the region is very
+     * long, it also remembers where in the pattern it has been at each
+     * index of the input, and never goes there again, so that a search
+     * takes time proportional to the size of the pattern times the length
+     * of the input.
+     *
+     * <p> Lookaheads without groups, repetitions whose body can match the
+     * empty string and supplementary chars are run iteratively as well.
+     * Patterns and inputs that the Pike VM cannot run, see {@link
+     * #usePikeVM(boolean) usePikeVM}, are still matched by backtracking on
+     * the call stack. If the Pike VM is also in use, it takes precedence.
+     *
+     * <p> By default, a matcher backtracks on the call stack.
+     *
+     * @param  b a boolean indicating whether or not to backtrack
+     *         iteratively.
+     * @return this matcher
+     * @see #hasIterativeBacktracking
+     */
+    public Matcher useIterativeBacktracking(boolean b) {
+        iterative = b;
         return this;
     }
 
@@ -1721,15 +2118,41 @@ public final class Matcher implements MatchResult {
         this.oldLast = oldLast < 0 ? from : oldLast;
         for (int i = 0; i < groups.length; i++)
             groups[i] = -1;
-        for (int i = 0; i < localsPos.length; i++) {
-            if (localsPos[i] != null)
-                localsPos[i].clear();
-        }
+        clearMemo(memoReusable);
         acceptMode = NOANCHOR;
-        boolean result = parentPattern.root.match(this, from, text);
+        boolean result;
+        // a pattern led by \A or ^ is only tried at from
+        boolean anchored = parentPattern.root == parentPattern.matchRoot;
+        ShiftAnd sa = parentPattern.searchesWithShiftAnd()
+            ? parentPattern.shiftAnd() : null;
+        LazyDFA dfa = lazyDFA && !anchored ? parentPattern.lazyDFA() : null;
+        // the DFA tells where the first match may start
+        int start = from;
+        if (sa != null &&
+            sa.run(this, from, ShiftAnd.ANYWHERE, text) == ShiftAnd.NO ||
+            dfa != null &&
+            (start = dfa.start(this, from, text)) == LazyDFA.NO_START) {
+            // the backtracker tries every start up to the end
+            hitEnd = true;
+            result = false;
+        } else {
+            if (start < from)
+                start = from;
+            // the DFA's assertions may have set them
+            hitEnd = false;
+            requireEnd = false;
+            PikeVM.State st = pikeState();
+            if (st != null)
+                result = st.vm().match(this, st, start, anchored, text);
+            else if (iterative && (st = vmState()) != null)
+                result = st.vm().backtrack(this, st, start, anchored, text);
+            else
+                result = backtrack(parentPattern.root, start, anchored);
+        }
         if (!result)
             this.first = -1;
         this.oldLast = this.last;
+        this.memoReusable = !hitEnd && !requireEnd;
         this.modCount++;
         return result;
     }
@@ -1748,19 +2171,349 @@ public final class Matcher implements MatchResult {
         this.oldLast = oldLast < 0 ? from : oldLast;
         for (int i = 0; i < groups.length; i++)
             groups[i] = -1;
-        for (int i = 0; i < localsPos.length; i++) {
-            if (localsPos[i] != null)
-                localsPos[i].clear();
-        }
+        clearMemo(false);
         acceptMode = anchor;
-        boolean result = parentPattern.matchRoot.match(this, from, text);
+        ShiftAnd sa = parentPattern.shiftAndIfReused();
+        int r = sa == null ? ShiftAnd.UNKNOWN
+            : sa.run(this, from, anchor == ENDANCHOR ? ShiftAnd.WHOLE
+                                                     : ShiftAnd.PREFIX, text);
+        boolean result;
+        if (r == ShiftAnd.NO) {
+            // every way to match was tried, so hitEnd is as run left it
+            result = false;
+        } else if (r == ShiftAnd.YES && anchor == ENDANCHOR && !hitEnd &&
+                   parentPattern.capturingGroupCount == 1) {
+            // with nothing to read at the end, the backtracker could not
+            // have hit it either, and there are no groups to find
+            last = groups[1] = to;
+            groups[0] = from;
+            result = true;
+        } else {
+            hitEnd = false;
+            PikeVM.State st = pikeState();
+            if (st != null)
+                result = st.vm().match(this, st, from, true, text);
+            else if (iterative && (st = vmState()) != null)
+                result = st.vm().backtrack(this, st, from, true, text);
+            else
+                result = backtrack(parentPattern.matchRoot, from, true);
+        }
         if (!result)
             this.first = -1;
         this.oldLast = this.last;
+        this.memoReusable = false;
         this.modCount++;
+        if (!parentPattern.matchedBefore)
+            parentPattern.matchedBefore = true;
+        return result;
+    }
+
+    /**
+     * Matches root at from by backtracking. With adaptive switching, the
+     * attempt has what is left of the budget of steps and no memo; if it
+     * runs over, or runs out of stack first, the search starts over on
+     * the Pike VM, or with the memo if the VM cannot be used.
+     */
+    private boolean backtrack(Pattern.Node root, int from,
+                              boolean anchored) {
+        if (!adaptive || overBudget)
+            return root.match(this, from, text);
+        stepLimit = (int)Math.min(Integer.MAX_VALUE,
+                                  (long)STEPS_PER_CHAR *
+                                  (to - this.from + 1));
+        // a pattern whose memo is the one java.util.regex keeps, see
+        // Pattern.MemoStrategy, needs it for the same groups
+        memoOn = parentPattern.hasLookaroundGroup;
+        try {
+            return root.match(this, from, text);
+        } catch (OverBudget | StackOverflowError e) {
+            overBudget = true;
+        } finally {
+            stepLimit = Integer.MAX_VALUE;
+            memoOn = true;
+        }
+        // the nodes left behind on the way out did not restore their state
+        hitEnd = false;
+        requireEnd = false;
+        this.first = from;
+        for (int i = 0; i < groups.length; i++)
+            groups[i] = -1;
+        for (int i = 0; i < locals.length; i++)
+            locals[i] = -1;
+        clearMemo(false);
+        PikeVM.State st = pikeState();
+        return st != null
+            ? st.vm().match(this, st, from, anchored, text)
+            : root.match(this, from, text);
+    }
+
+    /**
+     * Counts a step of the backtracker: entering a repetition, or trying
+     * the rest of the pattern after one has given back or taken another
+     * iteration. Ends the search once an adaptive search runs over its
+     * budget.
+     */
+    void step() {
+        if (++steps > stepLimit)
+            throw OVER_BUDGET;
+    }
+
+    /**
+     * Counts n steps, one for each char a run of a repetition has read.
+     */
+    void step(int n) {
+        if ((steps += n) > stepLimit)
+            throw OVER_BUDGET;
+    }
+
+    /**
+     * Tells if the pattern matches the whole region, or anywhere in it if
+     * whole is false, for the predicates that need no more than that.
+     * The bit-parallel automaton, once the pattern has been tested
+     * before, or else the lazy DFA, if this matcher uses it, answers when
+     * it can; otherwise this is matches() or find().
+     */
+    boolean test(boolean whole) {
+        ShiftAnd sa = parentPattern.shiftAndIfReused();
+        if (sa != null) {
+            int r = sa.run(this, from, whole ? ShiftAnd.WHOLE
+                                             : ShiftAnd.ANYWHERE, text);
+            if (r != ShiftAnd.UNKNOWN)
+                return r == ShiftAnd.YES;
+        }
+        LazyDFA dfa = lazyDFA ? parentPattern.lazyDFA() : null;
+        if (dfa != null) {
+            if (oldLast < 0)
+                oldLast = from;
+            int r = dfa.run(this, from, whole, text);
+            if (r != LazyDFA.UNKNOWN)
+                return r == LazyDFA.YES;
+        }
+        if (whole)
+            return matches();
+        boolean result = find();
+        if (!parentPattern.matchedBefore)
+            parentPattern.matchedBefore = true;
         return result;
     }
 
+    /**
+     * Forgets the positions recorded by the memoized nodes. The memo
+     * store is chosen here, since the text length is fixed for the
+     * duration of a search: a bitmap when it fits the limit, otherwise
+     * the hash sets. Both stores clear in time independent of the text
+     * length, so repeated find() calls stay linear overall.
+     *
+     * If keepReusable is true, the failures of the nodes that do not
+     * depend on the search start (those numbered below the pattern's
+     * localTCNReusable) are kept; a failure there is a failure whatever
+     * position the search started from.
+     *
+     * Nodes keyed by more than the position (those numbered from the
+     * pattern's localTCNKeyed on) always use localsPosKeyed.
+     *
+     * Cached lookaround outcomes never carry over: a lookaround may set
+     * hitEnd or requireEnd, which only holds within one search.
+     */
+    void clearMemo(boolean keepReusable) {
+        if (lookaroundPos != null) {
+            for (IntHashSet set : lookaroundPos) {
+                if (set != null)
+                    set.clear();
+            }
+        }
+        int count = localsPos.length;
+        if (count == 0)
+            return;
+        int keyed = parentPattern.localTCNKeyed;
+        int length = getTextLength();
+        if (length != localsPosLength) {
+            keepReusable = false;
+            localsPosLength = length;
+        }
+        int reusable = keepReusable ? parentPattern.localTCNReusable : 0;
+        if (localsPosBits != null) {
+            for (int k = 0; k < localsPosDirtyDepCount; k++)
+                localsPosBits[localsPosDirtyDep[k]] = 0L;
+            if (reusable == 0) {
+                for (int k = 0; k < localsPosDirtyCount; k++)
+                    localsPosBits[localsPosDirty[k]] = 0L;
+                localsPosDirtyCount = 0;
+            }
+        }
+        localsPosDirtyDepCount = 0;
+        if (!keepReusable) {
+            long width = ((long)length + 64) & ~63L;
+            long bits = keyed * width;
+            if (bits <= MEMO_BITMAP_LIMIT) {
+                int words = (int)(bits >>> 6);
+                if (localsPosBits == null || localsPosBits.length < words)
+                    localsPosBits = new long[words];
+                localsPosWidth = (int)width;
+            } else {
+                localsPosBits = null;
+                localsPosWidth = -1;
+            }
+        }
+        if (localsPosWidth < 0) {
+            for (int i = reusable; i < keyed; i++) {
+                if (localsPos[i] != null)
+                    localsPos[i].clear();
+            }
+        }
+        if (localsPosKeyed != null)
+            localsPosKeyed.clear();
+    }
+
+    /**
+     * Returns true if the memoized node with the given index has
+     * recorded a failure at text index i.
+     */
+    boolean memoContains(int index, int i) {
+        if (!memoOn)
+            return false;
+        if (index >= parentPattern.localTCNKeyed) {
+            return localsPosKeyed != null &&
+                localsPosKeyed.contains(keyedTuple(index, i));
+        } else if (localsPosWidth >= 0) {
+            int bit = index * localsPosWidth + i;
+            return (localsPosBits[bit >>> 6] & (1L << bit)) != 0;
+        }
+        IntHashSet set = localsPos[index];
+        return set != null && set.contains(i);
+    }
+
+    /**
+     * Records a failure of the memoized node with the given index at
+     * text index i.
+     */
+    void memoAdd(int index, int i) {
+        if (!memoOn)
+            return;
+        if (index >= parentPattern.localTCNKeyed) {
+            int[] t = keyedTuple(index, i);
+            if (localsPosKeyed == null)
+                localsPosKeyed = new IntTupleSet(t.length, MEMO_KEYED_LIMIT);
+            localsPosKeyed.add(t);
+            return;
+        } else if (localsPosWidth >= 0) {
+            int bit = index * localsPosWidth + i;
+            int w = bit >>> 6;
+            long word = localsPosBits[w];
+            if (word == 0L) {
+                if (index < parentPattern.localTCNReusable) {
+                    localsPosDirty = grow(localsPosDirty, localsPosDirtyCount);
+                    localsPosDirty[localsPosDirtyCount++] = w;
+                } else {
+                    localsPosDirtyDep = grow(localsPosDirtyDep,
+                                             localsPosDirtyDepCount);
+                    localsPosDirtyDep[localsPosDirtyDepCount++] = w;
+                }
+            }
+            localsPosBits[w] = word | (1L << bit);
+            return;
+        }
+        IntHashSet set = localsPos[index];
+        if (set == null)
+            localsPos[index] = set = new IntHashSet();
+        set.add(i);
+    }
+
+    /**
+     * Returns the storage to run the pattern's Pike VM with, or null if
+     * this matcher backtracks: because it was neither asked to use the VM
+     * nor has run over an adaptive budget, or because the VM cannot run
+     * the pattern or read the text.
+     */
+    private PikeVM.State pikeState() {
+        if (!pikeVM && !overBudget)
+            return null;
+        return vmState();
+    }
+
+    /**
+     * Returns the storage to run the pattern's Pike VM program with, or
+     * null if the VM cannot run the pattern or read the text.
+     */
+    private PikeVM.State vmState() {
+        PikeVM vm = parentPattern.pikeVM();
+        if (vm == null)
+            return null;
+        if (vm.splitsPairs && textSurrogates < 0) {
+            textSurrogates = 0;
+            for (int i = 0; i < getTextLength(); i++) {
+                if (Character.isSurrogate(text.charAt(i))) {
+                    textSurrogates = 1;
+                    break;
+                }
+            }
+        }
+        if (vm.splitsPairs && textSurrogates > 0)
+            return null;
+        if (pikeState == null || pikeState.vm() != vm)
+            pikeState = vm.new State();
+        return pikeState;
+    }
+
+    /**
+     * Returns the key of a failure of the given keyed node at text index
+     * i in the current state.
+     */
+    private int[] keyedTuple(int index, int i) {
+        int[] keyGroups = parentPattern.memoKeyGroups;
+        int[] keyLocals = parentPattern.memoKeyLocals;
+        int[] t = localsPosTuple;
+        if (t == null || t.length != 2 + keyGroups.length + keyLocals.length)
+            localsPosTuple = t = new int[2 + keyGroups.length + keyLocals.length];
+        int n = 0;
+        t[n++] = index;
+        t[n++] = i;
+        for (int k = 0; k < keyGroups.length; k++)
+            t[n++] = groups[keyGroups[k]];
+        for (int k = 0; k < keyLocals.length; k++)
+            t[n++] = locals[keyLocals[k]];
+        return t;
+    }
+
+    /**
+     * Returns 1 if the cached lookaround with the given index held at
+     * text index i earlier in this search, 0 if it did not, and -1 if
+     * it was not tried there, is not cached or caching is off.
+     */
+    int lookaroundResult(int index, int i) {
+        if (index < 0 || lookaroundPos == null)
+            return -1;
+        IntHashSet set = lookaroundPos[index];
+        if (set == null)
+            return -1;
+        if (set.contains(2 * i + 1))
+            return 1;
+        return set.contains(2 * i) ? 0 : -1;
+    }
+
+    /**
+     * Records whether the cached lookaround with the given index held
+     * at text index i, if caching is on.
+     */
+    void lookaroundSave(int index, int i, boolean held) {
+        if (index < 0 || !lookaroundMemo)
+            return;
+        if (lookaroundPos == null)
+            lookaroundPos = new IntHashSet[parentPattern.lookaroundCount];
+        IntHashSet set = lookaroundPos[index];
+        if (set == null)
+            lookaroundPos[index] = set = new IntHashSet();
+        set.add(held ? 2 * i + 1 : 2 * i);
+    }
+
+    private static int[] grow(int[] a, int size) {
+        if (a == null)
+            return new int[16];
+        if (size == a.length)
+            return Arrays.copyOf(a, size << 1);
+        return a;
+    }
+
     /**
      * Returns the end index of the text.
      *
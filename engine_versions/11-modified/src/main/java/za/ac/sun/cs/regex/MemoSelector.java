@@ -0,0 +1,627 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package za.ac.sun.cs.regex;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import za.ac.sun.cs.regex.Pattern.CharPredicate;
+import za.ac.sun.cs.regex.Pattern.MemoStrategy;
+import za.ac.sun.cs.regex.Pattern.Node;
+
+/**
+ * Picks the top closure nodes of a compiled pattern that take part in the
+ * stop-exponential-backtracking optimization, as directed by a
+ * {@link MemoStrategy}.
+ *
+ * The node tree is viewed as an NFA: every node is a state and the edges
+ * are the ways {@code match} can hand over control. The shared
+ * {@code Pattern.accept} node, which ends the atom of a Ques, Curly or
+ * GroupCurly, is replaced by the node control returns to. Group and
+ * branch bookkeeping nodes (GroupHead, GroupTail, BranchConn, Prolog)
+ * are transparent when counting in-degrees.
+ *
+ * Character sets are only computed for the BMP, which is enough to tell
+ * whether two closures can ever read the same input. They are taken from
+ * the ranges of flattened classes; for any other predicate only the
+ * chars below 256 are tested, and all those above are assumed to match.
+ *
+ * One selector serves the whole of a compile. Its graph is built on first
+ * use, which a pattern memoizing all its closures by position alone
+ * never makes.
+ */
+final class MemoSelector {
+
+    private static final int BMP_SIZE = Character.MAX_VALUE + 1;
+
+    /**
+     * Sentinel predecessor standing for the entry into the pattern.
+     */
+    private static final Node ENTRY = new Node();
+
+    private final Node root;
+    private final List<Node> candidates;
+    private Map<Node, List<Node>> succs;
+    private Map<Node, List<Node>> preds;
+    private final Map<Object, BitSet> charSets = new IdentityHashMap<>();
+
+    /**
+     * Creates the selector for the pattern starting at matchRoot, whose
+     * top closure nodes are the candidates for memoization.
+     */
+    MemoSelector(Node matchRoot, List<Node> candidates) {
+        this.root = matchRoot;
+        this.candidates = candidates;
+    }
+
+    /**
+     * Returns the candidates, in order, that should be memoized under
+     * the given strategy.
+     */
+    List<Node> select(MemoStrategy strategy) {
+        if (strategy == MemoStrategy.ALL || candidates.isEmpty())
+            return candidates;
+        Set<Node> chosen = Collections.newSetFromMap(new IdentityHashMap<>());
+        switch (strategy) {
+        case INDEG:
+            for (Node n : candidates) {
+                if (inDegree(n) > 1)
+                    chosen.add(n);
+            }
+            break;
+        case ANCESTOR:
+            for (Node n : candidates) {
+                if (body(n) != null)
+                    chosen.add(n);
+            }
+            break;
+        case PIVOT:
+            pivots(candidates, chosen);
+            break;
+        default:
+            return candidates;
+        }
+        List<Node> result = new ArrayList<>(chosen.size());
+        for (Node n : candidates) {
+            if (chosen.contains(n))
+                result.add(n);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the nodes of {@code nodes}, in order, from which a node
+     * matching {@code target} can be reached.
+     */
+    List<Node> reaching(List<Node> nodes, Predicate<Node> target) {
+        if (nodes.isEmpty())
+            return nodes;
+        List<Node> result = new ArrayList<>();
+        for (Node n : nodes) {
+            for (Node m : region(n, null)) {
+                if (target.test(m)) {
+                    result.add(n);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns, for every capturing group that is the target of a back
+     * reference, its index in {@code Matcher.groups}.
+     */
+    int[] referencedGroups() {
+        BitSet refs = new BitSet();
+        for (Node n : graph().keySet()) {
+            if (n instanceof Pattern.BackRef)
+                refs.set(((Pattern.BackRef)n).groupIndex);
+            else if (n instanceof Pattern.CIBackRef)
+                refs.set(((Pattern.CIBackRef)n).groupIndex);
+        }
+        return refs.stream().toArray();
+    }
+
+    /**
+     * Returns the indices in {@code Matcher.locals} that can decide whether
+     * one of {@code nodes} fails at a given position, and adds the nodes
+     * concerned to {@code keyed}. These are the starts kept by the
+     * GroupHeads of the groups in {@code refGroups} that enclose a node,
+     * and the counts of the loops with a maximum, or a minimum above one,
+     * that are among the nodes or enclose them.
+     */
+    int[] keyLocals(List<Node> nodes, int[] refGroups, List<Node> keyed) {
+        if (nodes.isEmpty() || refGroups.length == 0 && !hasCountedLoop())
+            return new int[0];
+        BitSet locals = new BitSet();
+        for (Node n : graph().keySet()) {
+            int local = -1;
+            Set<Node> inside = null;
+            if (n instanceof Pattern.Loop) {
+                Pattern.Loop loop = (Pattern.Loop)n;
+                if (isCounted(loop)) {
+                    local = loop.countIndex;
+                    inside = region(loop.body, loop);
+                    inside.add(loop);
+                }
+            } else if (n instanceof Pattern.GroupHead) {
+                Pattern.GroupTail tail = ((Pattern.GroupHead)n).tail;
+                if (tail != null && Arrays.binarySearch(refGroups,
+                                                        tail.groupIndex) >= 0) {
+                    local = tail.localIndex;
+                    inside = region(n, tail);
+                }
+            }
+            if (inside == null)
+                continue;
+            for (Node m : nodes) {
+                if (inside.contains(m)) {
+                    locals.set(local);
+                    if (!keyed.contains(m))
+                        keyed.add(m);
+                }
+            }
+        }
+        return locals.stream().toArray();
+    }
+
+    private static boolean isCounted(Pattern.Loop loop) {
+        return loop.cmin > 1 || loop.cmax != Pattern.MAX_REPS;
+    }
+
+    /**
+     * Tells if a loop that keeps a count may enclose a candidate. Every
+     * Loop is a candidate itself, and one inside a look around is only
+     * dropped along with the candidates it encloses.
+     */
+    private boolean hasCountedLoop() {
+        for (Node n : candidates) {
+            if (n instanceof Pattern.Loop && isCounted((Pattern.Loop)n))
+                return true;
+        }
+        return false;
+    }
+
+    //
+    // Graph construction
+    //
+
+    /**
+     * Returns the successors of every node, building the graph first if
+     * this is its first use.
+     */
+    private Map<Node, List<Node>> graph() {
+        if (succs == null) {
+            succs = new IdentityHashMap<>();
+            preds = new IdentityHashMap<>();
+            build(root, null);
+            preds.computeIfAbsent(root, k -> new ArrayList<>()).add(ENTRY);
+        }
+        return succs;
+    }
+
+    private void build(Node start, Node ret) {
+        ArrayDeque<Node[]> work = new ArrayDeque<>();
+        work.push(new Node[] { start, ret });
+        while (!work.isEmpty()) {
+            Node[] item = work.pop();
+            Node node = resolve(item[0], item[1]);
+            ret = item[1];
+            if (node == null || succs.containsKey(node))
+                continue;
+            List<Node> out = new ArrayList<>(2);
+            succs.put(node, out);
+            if (node instanceof Pattern.Prolog) {
+                // matchInit runs the first iteration itself
+                Pattern.Loop loop = ((Pattern.Prolog)node).loop;
+                edge(work, out, node, loop.body, ret);
+                edge(work, out, node, loop, ret);
+            } else if (node instanceof Pattern.Loop) {
+                edge(work, out, node, ((Pattern.Loop)node).body, ret);
+                edge(work, out, node, node.next, ret);
+            } else if (node instanceof Pattern.Curly) {
+                edge(work, out, node, ((Pattern.Curly)node).atom, node);
+                edge(work, out, node, node.next, ret);
+            } else if (node instanceof Pattern.GroupCurly) {
+                edge(work, out, node, ((Pattern.GroupCurly)node).atom, node);
+                edge(work, out, node, node.next, ret);
+            } else if (node instanceof Pattern.Ques) {
+                Node cont = resolve(node.next, ret);
+                edge(work, out, node, ((Pattern.Ques)node).atom, cont);
+                edge(work, out, node, cont, ret);
+            } else if (node instanceof Pattern.Branch) {
+                Pattern.Branch b = (Pattern.Branch)node;
+                for (int n = 0; n < b.size; n++)
+                    edge(work, out, node, b.atoms[n] == null ? b.conn : b.atoms[n], ret);
+            } else if (node instanceof Pattern.CharPropertyGreedy) {
+                edge(work, out, node, node, ret);
+                edge(work, out, node, node.next, ret);
+            } else if (node instanceof Pattern.Pos) {
+                edge(work, out, node, ((Pattern.Pos)node).cond, null);
+                edge(work, out, node, node.next, ret);
+            } else if (node instanceof Pattern.Neg) {
+                edge(work, out, node, ((Pattern.Neg)node).cond, null);
+                edge(work, out, node, node.next, ret);
+            } else if (node instanceof Pattern.Behind) {
+                edge(work, out, node, ((Pattern.Behind)node).cond, null);
+                edge(work, out, node, node.next, ret);
+            } else if (node instanceof Pattern.NotBehind) {
+                edge(work, out, node, ((Pattern.NotBehind)node).cond, null);
+                edge(work, out, node, node.next, ret);
+            } else if (!(node instanceof Pattern.LastNode) &&
+                       node != Pattern.lookbehindEnd) {
+                edge(work, out, node, node.next, ret);
+            }
+        }
+    }
+
+    private static Node resolve(Node node, Node ret) {
+        return node == Pattern.accept ? ret : node;
+    }
+
+    private void edge(ArrayDeque<Node[]> work, List<Node> out,
+                      Node from, Node to, Node ret) {
+        to = resolve(to, ret);
+        if (to == null)
+            return;
+        out.add(to);
+        preds.computeIfAbsent(to, k -> new ArrayList<>()).add(from);
+        work.push(new Node[] { to, ret });
+    }
+
+    private List<Node> succs(Node node) {
+        List<Node> out = graph().get(node);
+        return out == null ? List.of() : out;
+    }
+
+    private static boolean isTransparent(Node node) {
+        return node instanceof Pattern.GroupHead ||
+               node instanceof Pattern.GroupTail ||
+               node instanceof Pattern.BranchConn ||
+               node instanceof Pattern.Prolog;
+    }
+
+    /**
+     * Counts the distinct non-transparent states outside the closure's
+     * own loop that lead into it, looking through group and branch
+     * bookkeeping nodes. A group loop is entered through its body, so
+     * the edges into the body count for the loop.
+     */
+    private int inDegree(Node node) {
+        Set<Node> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<Node> found = Collections.newSetFromMap(new IdentityHashMap<>());
+        ArrayDeque<Node> work = new ArrayDeque<>();
+        seen.add(node);
+        Node body = body(node);
+        if (body != null)
+            seen.addAll(region(body, node));
+        work.push(node instanceof Pattern.Loop ? body : node);
+        graph();
+        while (!work.isEmpty()) {
+            List<Node> in = preds.get(work.pop());
+            if (in == null)
+                continue;
+            for (Node p : in) {
+                if (seen.contains(p))
+                    continue;
+                if (isTransparent(p)) {
+                    if (seen.add(p))
+                        work.push(p);
+                } else {
+                    found.add(p);
+                }
+            }
+        }
+        return found.size();
+    }
+
+    //
+    // Pivot detection
+    //
+
+    /**
+     * Adds the pivot closures: a loop whose body can read one iteration
+     * along two different alternatives (exponential ambiguity), and any
+     * closure that can be reached from another closure while both keep
+     * reading the same characters (polynomial ambiguity).
+     */
+    private void pivots(List<Node> candidates, Set<Node> chosen) {
+        int k = candidates.size();
+        BitSet[] loopChars = new BitSet[k];
+        for (int n = 0; n < k; n++)
+            loopChars[n] = loopChars(candidates.get(n));
+
+        for (int n = 0; n < k; n++) {
+            Node q = candidates.get(n);
+            if (body(q) != null && hasAmbiguousBranch(q))
+                chosen.add(q);
+        }
+        for (int x = 0; x < k; x++) {
+            Node p = candidates.get(x);
+            for (int y = 0; y < k; y++) {
+                Node q = candidates.get(y);
+                if (x == y || chosen.contains(q))
+                    continue;
+                BitSet s = (BitSet)loopChars[x].clone();
+                s.and(loopChars[y]);
+                if (s.isEmpty())
+                    continue;
+                if (cycles(p, s) && cycles(q, s) && reaches(p, q, s))
+                    chosen.add(q);
+            }
+        }
+    }
+
+    /**
+     * The characters one iteration of the closure can read.
+     */
+    private BitSet loopChars(Node node) {
+        if (node instanceof Pattern.CharPropertyGreedy)
+            return predicateChars(((Pattern.CharPropertyGreedy)node).predicate);
+        BitSet bs = new BitSet(BMP_SIZE);
+        for (Node n : region(body(node), node))
+            bs.or(chars(n));
+        return bs;
+    }
+
+    /**
+     * Collects the nodes reachable from {@code start} without passing
+     * through {@code stop}.
+     */
+    private Set<Node> region(Node start, Node stop) {
+        Set<Node> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        ArrayDeque<Node> work = new ArrayDeque<>();
+        if (start != null && start != stop) {
+            seen.add(start);
+            work.push(start);
+        }
+        while (!work.isEmpty()) {
+            for (Node s : succs(work.pop())) {
+                if (s != stop && seen.add(s))
+                    work.push(s);
+            }
+        }
+        return seen;
+    }
+
+    private boolean hasAmbiguousBranch(Node loop) {
+        for (Node n : region(body(loop), loop)) {
+            if (!(n instanceof Pattern.Branch))
+                continue;
+            Pattern.Branch b = (Pattern.Branch)n;
+            BitSet seen = new BitSet(BMP_SIZE);
+            for (int i = 0; i < b.size; i++) {
+                if (b.atoms[i] == null)
+                    continue;
+                BitSet alt = new BitSet(BMP_SIZE);
+                for (Node m : region(b.atoms[i], b.conn))
+                    alt.or(chars(m));
+                if (seen.intersects(alt))
+                    return true;
+                seen.or(alt);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells if the closure can go once around its loop reading only
+     * characters from {@code s}.
+     */
+    private boolean cycles(Node node, BitSet s) {
+        if (node instanceof Pattern.CharPropertyGreedy)
+            return true;
+        return flows(body(node), node, s);
+    }
+
+    /**
+     * The node one iteration of a Loop, Curly or GroupCurly starts at,
+     * or null for any other node.
+     */
+    private static Node body(Node node) {
+        if (node instanceof Pattern.Loop)
+            return ((Pattern.Loop)node).body;
+        if (node instanceof Pattern.Curly)
+            return ((Pattern.Curly)node).atom;
+        if (node instanceof Pattern.GroupCurly)
+            return ((Pattern.GroupCurly)node).atom;
+        return null;
+    }
+
+    /**
+     * Tells if {@code q} can be reached after {@code p} reading only
+     * characters from {@code s}.
+     */
+    private boolean reaches(Node p, Node q, BitSet s) {
+        for (Node n : succs(p)) {
+            if (n != p && flows(n, q, s))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Tells if control can get from {@code from} to {@code to} through
+     * nodes that only read characters from {@code s}.
+     */
+    private boolean flows(Node from, Node to, BitSet s) {
+        Set<Node> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        ArrayDeque<Node> work = new ArrayDeque<>();
+        work.push(from);
+        seen.add(from);
+        while (!work.isEmpty()) {
+            Node n = work.pop();
+            if (n == to)
+                return true;
+            if (!passable(n, s))
+                continue;
+            for (Node m : succs(n)) {
+                if (seen.add(m))
+                    work.push(m);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells if control can flow through the node reading only characters
+     * from {@code s}.
+     */
+    private boolean passable(Node node, BitSet s) {
+        if (isZeroWidth(node))
+            return true;
+        if (node instanceof Pattern.CharPropertyGreedy) {
+            Pattern.CharPropertyGreedy cpg = (Pattern.CharPropertyGreedy)node;
+            return cpg.cmin == 0 || predicateChars(cpg.predicate).intersects(s);
+        }
+        if (node instanceof Pattern.SliceNode) {
+            int[] buf = ((Pattern.SliceNode)node).buffer;
+            boolean fold = isCaseInsensitive(node);
+            for (int c : buf) {
+                if (!sliceChar(c, fold).intersects(s))
+                    return false;
+            }
+            return true;
+        }
+        return chars(node).intersects(s);
+    }
+
+    private static boolean isZeroWidth(Node node) {
+        return isTransparent(node) ||
+               node instanceof Pattern.Branch ||
+               node instanceof Pattern.Loop ||
+               node instanceof Pattern.Ques ||
+               node instanceof Pattern.Curly ||
+               node instanceof Pattern.GroupCurly ||
+               node instanceof Pattern.Begin ||
+               node instanceof Pattern.End ||
+               node instanceof Pattern.Caret ||
+               node instanceof Pattern.UnixCaret ||
+               node instanceof Pattern.Dollar ||
+               node instanceof Pattern.UnixDollar ||
+               node instanceof Pattern.LastMatch ||
+               node instanceof Pattern.Bound ||
+               node instanceof Pattern.GraphemeBound ||
+               node instanceof Pattern.Pos ||
+               node instanceof Pattern.Neg ||
+               node instanceof Pattern.Behind ||
+               node instanceof Pattern.NotBehind ||
+               node instanceof Pattern.LastNode ||
+               node == Pattern.lookbehindEnd;
+    }
+
+    private static boolean isCaseInsensitive(Node node) {
+        return node instanceof Pattern.SliceI ||
+               node instanceof Pattern.SliceU ||
+               node instanceof Pattern.SliceIS;
+    }
+
+    /**
+     * The BMP characters the node itself can read. Nodes we know nothing
+     * about are assumed to read anything.
+     */
+    private BitSet chars(Node node) {
+        if (isZeroWidth(node))
+            return new BitSet();
+        if (node instanceof Pattern.CharProperty)
+            return predicateChars(((Pattern.CharProperty)node).predicate);
+        if (node instanceof Pattern.CharPropertyGreedy)
+            return predicateChars(((Pattern.CharPropertyGreedy)node).predicate);
+        if (node instanceof Pattern.SliceNode) {
+            BitSet bs = new BitSet(BMP_SIZE);
+            boolean fold = isCaseInsensitive(node);
+            for (int c : ((Pattern.SliceNode)node).buffer)
+                bs.or(sliceChar(c, fold));
+            return bs;
+        }
+        if (node instanceof Pattern.LineEnding) {
+            BitSet bs = new BitSet(BMP_SIZE);
+            bs.set(0x0A, 0x0E);
+            bs.set(0x85);
+            bs.set(0x2028, 0x202A);
+            return bs;
+        }
+        BitSet all = new BitSet(BMP_SIZE);
+        all.set(0, BMP_SIZE);
+        return all;
+    }
+
+    private static BitSet sliceChar(int c, boolean fold) {
+        BitSet bs = new BitSet(BMP_SIZE);
+        if (c < BMP_SIZE)
+            bs.set(c);
+        if (fold) {
+            int u = Character.toUpperCase(c);
+            int l = Character.toLowerCase(c);
+            if (u < BMP_SIZE)
+                bs.set(u);
+            if (l < BMP_SIZE)
+                bs.set(l);
+            if (ASCII.isAscii(c)) {
+                bs.set(ASCII.toUpper(c));
+                bs.set(ASCII.toLower(c));
+            }
+        }
+        return bs;
+    }
+
+    private BitSet predicateChars(CharPredicate p) {
+        BitSet bs = charSets.get(p);
+        if (bs == null) {
+            bs = new BitSet(BMP_SIZE);
+            if (p instanceof Pattern.SingleChar) {
+                bs.set(((Pattern.SingleChar)p).c);
+            } else if (p instanceof Pattern.Latin1Chars) {
+                boolean[] bits = ((Pattern.Latin1Chars)p).bits;
+                for (int c = 0; c < bits.length; c++) {
+                    if (bits[c])
+                        bs.set(c);
+                }
+            } else if (p instanceof Pattern.CharClass) {
+                int[] ranges = ((Pattern.CharClass)p).ranges;
+                for (int k = 0; k < ranges.length && ranges[k] < BMP_SIZE; k += 2)
+                    bs.set(ranges[k], Math.min(ranges[k + 1] + 1, BMP_SIZE));
+            } else {
+                for (int c = 0; c < 256; c++) {
+                    if (p.is(c))
+                        bs.set(c);
+                }
+                bs.set(256, BMP_SIZE);
+            }
+            charSets.put(p, bs);
+        }
+        return bs;
+    }
+}
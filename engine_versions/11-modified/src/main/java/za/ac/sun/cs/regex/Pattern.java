@@ -32,14 +32,17 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.Arrays;
 import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Spliterator;
 import java.util.Spliterators;
 import java.util.function.Predicate;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
@@ -928,9 +931,53 @@ public final class Pattern
             DOTALL | UNICODE_CASE | CANON_EQ | UNIX_LINES | LITERAL |
             UNICODE_CHARACTER_CLASS | COMMENTS;
 
-    /* Pattern has only two serialized components: The pattern string
-     * and the flags, which are all that is needed to recompile the pattern
-     * when it is deserialized.
+    /**
+     * Selects which closure nodes of a pattern remember the
+     * positions at which they failed, so that the matcher does not retry
+     * them. Memoizing fewer nodes costs less per match, but only nodes
+     * where ambiguous paths meet can stop super-linear backtracking.
+     *
+     * <p> A pattern in which a lookahead or lookbehind contains a
+     * capturing group memoizes what {@code java.util.regex} does, whatever
+     * the strategy: the greedy repetitions of groups with no upper bound,
+     * within one search, and nothing if it has back references. The group
+     * keeps what it captured in the look around even when the match then
+     * fails, and a later match may report it, so skipping failures that
+     * {@code java.util.regex} does not skip would change the groups.
+     *
+     * @see #compile(String, int, MemoStrategy)
+     */
+    public static enum MemoStrategy {
+        /**
+         * Memoizes every closure node.
+         */
+        ALL,
+
+        /**
+         * Memoizes only the pivot nodes: a group loop whose body can read
+         * one iteration along two different alternatives, and any closure
+         * that can be reached from another closure while both keep reading
+         * the same characters.
+         */
+        PIVOT,
+
+        /**
+         * Memoizes only closure nodes that can be entered along more than
+         * one edge, such as group loops and closures following an
+         * alternation or an optional part.
+         */
+        INDEG,
+
+        /**
+         * Memoizes only loops and curly-brace repetitions, the nodes
+         * their bodies return to after each iteration.
+         */
+        ANCESTOR
+    }
+
+    /* Pattern has only three serialized components: The pattern string,
+     * the flags and the memoization strategy, which are all that is needed
+     * to recompile the pattern when it is deserialized.
      */
 
     /** use serialVersionUID from Merlin b59 for interoperability */
@@ -950,6 +997,14 @@ public final class Pattern
      */
     private int flags;
 
+    /**
+     * The memoization strategy, {@code null} in patterns serialized
+     * before it was introduced.
+     *
+     * @serial
+     */
+    private MemoStrategy memoStrategy;
+
     /**
      * The temporary pattern flags used during compiling. The flags might be turn
      * on and off by embedded flag.
@@ -1008,17 +1063,101 @@ public final class Pattern
 
     /**
      * The number of top greedy closure nodes in this Pattern. Used by
-     * matchers to allocate storage needed for a IntHashSet to keep the
-     * beginning pos {@code i} of all failed match.
+     * matchers to allocate the memo table (a bitmap or an IntHashSet per
+     * node) that keeps the beginning pos {@code i} of all failed match.
      */
     transient int localTCNCount;
 
+    /**
+     * The number of memoized closure nodes, numbered first, whose failures
+     * do not depend on where the search started. Matchers keep their memo
+     * entries from one find() to the next.
+     */
+    transient int localTCNReusable;
+
+    /**
+     * The index of the first memoized closure node whose failures depend
+     * on more of the matcher state than the position: on the groups
+     * captured so far, because a back reference can be reached from it,
+     * or on the repetition count of a bounded loop it is part of. These
+     * nodes are numbered last and their memo entries are kept per state.
+     */
+    transient int localTCNKeyed;
+
+    /**
+     * The matcher state that keyed memo entries depend on, as indices into
+     * {@code Matcher.groups} (the bounds of the groups that are the target
+     * of a back reference) and {@code Matcher.locals} (group starts and
+     * loop counts).
+     */
+    transient int[] memoKeyGroups, memoKeyLocals;
+
     /*
-     * Turn off the stop-exponential-backtracking optimization if there
-     * is a group ref in the pattern.
+     * Set if there is a group ref in the pattern. The
+     * stop-exponential-backtracking optimization then has to take the
+     * captured groups into account.
      */
     transient boolean hasGroupRef;
 
+    /*
+     * Set if the pattern contains \G, the only node that looks at where
+     * the current search started.
+     */
+    transient boolean hasLastMatch;
+
+    /*
+     * Set if a look around contains a capturing group. What it captures
+     * stays in the groups when the match around it fails.
+     */
+    transient boolean hasLookaroundGroup;
+
+    /**
+     * The number of lookarounds that neither capture groups nor refer to
+     * them, so that whether their condition holds depends on the position
+     * alone. Matchers can cache these outcomes, see
+     * {@link Matcher#useLookaroundMemo(boolean)}.
+     */
+    transient int lookaroundCount;
+
+    /**
+     * The Pike VM program for this pattern, built on first use. It is
+     * PikeVM.UNSUPPORTED if the pattern uses constructs the VM cannot run.
+     */
+    private transient volatile PikeVM pikeVM;
+
+    /**
+     * The lazy DFA for this pattern, built on first use from its Pike VM
+     * program. It is LazyDFA.UNSUPPORTED if the DFA cannot run it.
+     */
+    private transient volatile LazyDFA lazyDFA;
+
+    /**
+     * The bit-parallel automaton for this pattern, built on first use from
+     * a program of at most ShiftAnd.MAX_POSITIONS positions. It is
+     * ShiftAnd.UNSUPPORTED if the pattern does not fit one.
+     */
+    private transient volatile ShiftAnd shiftAnd;
+
+    /**
+     * Whether this pattern has been matched as a whole or as a prefix,
+     * or tested by a predicate, since it was compiled; see
+     * shiftAndIfReused. A Matcher that reads it stale only goes without
+     * the automaton once more.
+     */
+    transient boolean matchedBefore;
+
+    /**
+     * The ambiguity analysis of this pattern, made on first use.
+     */
+    private transient volatile PatternAnalysis analysis;
+
+    /**
+     * The source text of every atom, with its quantifier, parsed by
+     * sequence(). Only kept when compiling a pattern for analysis, so
+     * that the analysis can point at the nodes it reports.
+     */
+    private transient Map<Node, String> sources;
+
     /**
      * Temporary null terminated code point array used by pattern compiling.
      */
@@ -1065,7 +1204,7 @@ public final class Pattern
      *          If the expression's syntax is invalid
      */
     public static Pattern compile(String regex) {
-        return new Pattern(regex, 0);
+        return new Pattern(regex, 0, MemoStrategy.ALL);
     }
 
     /**
@@ -1091,7 +1230,35 @@ public final class Pattern
      *          If the expression's syntax is invalid
      */
     public static Pattern compile(String regex, int flags) {
-        return new Pattern(regex, flags);
+        return new Pattern(regex, flags, MemoStrategy.ALL);
+    }
+
+    /**
+     * Compiles the given regular expression into a pattern with the given
+     * flags, memoizing the closure nodes chosen by the given strategy.
+     *
+     * @param  regex
+     *         The expression to be compiled
+     *
+     * @param  flags
+     *         Match flags, as for {@link #compile(String, int)}
+     *
+     * @param  strategy
+     *         The nodes to memoize during matching
+     *
+     * @return the given regular expression compiled into a pattern with the given flags
+     * @throws  IllegalArgumentException
+     *          If bit values other than those corresponding to the defined
+     *          match flags are set in {@code flags}
+     *
+     * @throws  PatternSyntaxException
+     *          If the expression's syntax is invalid
+     *
+     * @throws  NullPointerException
+     *          If {@code strategy} is {@code null}
+     */
+    public static Pattern compile(String regex, int flags, MemoStrategy strategy) {
+        return new Pattern(regex, flags, Objects.requireNonNull(strategy));
     }
 
     /**
@@ -1143,6 +1310,16 @@ public final class Pattern
         return flags0;
     }
 
+    /**
+     * Returns this pattern's memoization strategy.
+     *
+     * @return  The memoization strategy specified when this pattern was
+     *          compiled
+     */
+    public MemoStrategy memoStrategy() {
+        return memoStrategy;
+    }
+
     /**
      * Compiles the given regular expression and attempts to match the given
      * input against it.
@@ -1172,7 +1349,7 @@ public final class Pattern
     public static boolean matches(String regex, CharSequence input) {
         Pattern p = Pattern.compile(regex);
         Matcher m = p.matcher(input);
-        return m.matches();
+        return m.test(true);
     }
 
     /**
@@ -1384,10 +1561,15 @@ public final class Pattern
         // reset the flags
         flags0 = flags;
 
+        if (memoStrategy == null)
+            memoStrategy = MemoStrategy.ALL;
+
         // Initialize counts
         capturingGroupCount = 1;
         localCount = 0;
         localTCNCount = 0;
+        localTCNReusable = 0;
+        localTCNKeyed = 0;
 
         // if length > 0, the Pattern is lazily compiled
         if (pattern.length() == 0) {
@@ -1399,17 +1581,27 @@ public final class Pattern
 
     /**
      * This private constructor is used to create all Patterns. The pattern
-     * string and match flags are all that is needed to completely describe
-     * a Pattern. An empty pattern string results in an object tree with
-     * only a Start node and a LastNode node.
+     * string, match flags and memoization strategy are all that is needed
+     * to completely describe a Pattern. An empty pattern string results in
+     * an object tree with only a Start node and a LastNode node.
+     */
+    private Pattern(String p, int f, MemoStrategy m) {
+        this(p, f, m, null);
+    }
+
+    /**
+     * Creates a Pattern that records the source text of its atoms in
+     * {@code s}, if not null.
      */
-    private Pattern(String p, int f) {
+    private Pattern(String p, int f, MemoStrategy m, Map<Node, String> s) {
         if ((f & ~ALL_FLAGS) != 0) {
             throw new IllegalArgumentException("Unknown flag 0x"
                                                + Integer.toHexString(f));
         }
         pattern = p;
         flags = f;
+        memoStrategy = m;
+        sources = s;
 
         // to use UNICODE_CASE if UNICODE_CHARACTER_CLASS present
         if ((flags & UNICODE_CHARACTER_CLASS) != 0)
@@ -1422,6 +1614,8 @@ public final class Pattern
         capturingGroupCount = 1;
         localCount = 0;
         localTCNCount = 0;
+        localTCNReusable = 0;
+        localTCNKeyed = 0;
 
         if (pattern.length() > 0) {
             compile();
@@ -1585,7 +1779,7 @@ public final class Pattern
         if (input.length() == countChars(input, 0, 2)) {
             int c0 = Character.codePointAt(input, 0);
             int c1 = Character.codePointAt(input, Character.charCount(c0));
-            if (getClass(c1) == getClass(c0)) {
+            if (sameClass(c0, c1)) {
                 return new String[] {input};
             }
             String[] result = new String[2];
@@ -1604,10 +1798,10 @@ public final class Pattern
 
         String[] temp = new String[length];
 
-        int combClass[] = new int[nCodePoints];
+        int marks[] = new int[nCodePoints];
         for(int x=0, i=0; x<nCodePoints; x++) {
             int c = Character.codePointAt(input, i);
-            combClass[x] = getClass(c);
+            marks[x] = c;
             i +=  Character.charCount(c);
         }
 
@@ -1619,7 +1813,7 @@ public final class Pattern
 loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             len = countChars(input, offset, 1);
             for(int y=x-1; y>=0; y--) {
-                if (combClass[y] == combClass[x]) {
+                if (sameClass(marks[y], marks[x])) {
                     continue loop;
                 }
             }
@@ -1636,8 +1830,21 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         return result;
     }
 
-    private static int getClass(int c) {
-        return Integer.parseInt(java.text.Normalizer.normalize(String.valueOf(c), Form.NFC));
+    /**
+     * Returns true if the two marks have the same canonical combining
+     * class. Canonical ordering swaps adjacent marks of different
+     * non-zero classes, so two distinct marks share a class exactly
+     * when both of their orders decompose to different strings.
+     */
+    private static boolean sameClass(int c0, int c1) {
+        if (c0 == c1)
+            return true;
+        String s01 = new StringBuilder(4).appendCodePoint(c0)
+                                         .appendCodePoint(c1).toString();
+        String s10 = new StringBuilder(4).appendCodePoint(c1)
+                                         .appendCodePoint(c0).toString();
+        return !Normalizer.normalize(s01, Form.NFD)
+                          .equals(Normalizer.normalize(s10, Form.NFD));
     }
 
     /**
@@ -1787,7 +1994,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         }
 
         // Peephole optimization
-        if (matchRoot instanceof Slice) {
+        if (matchRoot instanceof SliceNode) {
             root = BnM.optimize(matchRoot);
             if (root == matchRoot) {
                 root = hasSupplementary ? new StartS(matchRoot) : new Start(matchRoot);
@@ -1798,23 +2005,84 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             root = hasSupplementary ? new StartS(matchRoot) : new Start(matchRoot);
         }
 
-        // Optimize the greedy Loop to prevent exponential backtracking, IF there
-        // is no group ref in this pattern. With a non-negative localTCNCount value,
-        // the greedy type Loop, Curly will skip the backtracking for any starting
-        // position "i" that failed in the past.
+        // Optimize the Loop to prevent exponential backtracking. With
+        // a non-negative localTCNCount value, the Loop, Curly and GroupCurly
+        // nodes will skip the backtracking for any starting position "i"
+        // that failed in the past.
         //
         // Additionally, optimize reedy style repetition (+, *)
-        if (!hasGroupRef) {
+        //
+        // Only the closure nodes picked by the memoization strategy take
+        // part; the others backtrack as usual.
+        //
+        // Nodes that can reach a \G come next: their failures are only
+        // valid for the search that recorded them, while those of the
+        // others carry over to the next find(). Nodes whose failure at "i"
+        // also depends on what the groups referenced by a group ref have
+        // captured, or on how often a bounded loop has repeated, are
+        // numbered last and keyed by that state as well.
+        // A greedy repetition of one character class has nothing to give
+        // back when what follows it can never start with a character it
+        // takes. It is made possessive; a Curly with a maximum is then
+        // left to match without any memoization, as a written possessive
+        // quantifier would be, while a CharPropertyGreedy or a Curly with
+        // no maximum keeps its memo to skip the runs that reach one
+        // already known to fail.
+        for (Iterator<Node> it = topClosureNodes.iterator(); it.hasNext(); ) {
+            if (possessify(it.next()))
+                it.remove();
+        }
+
+        MemoSelector selector = new MemoSelector(matchRoot, topClosureNodes);
+        List<Node> memoNodes;
+        if (!hasLookaroundGroup) {
+            memoNodes = selector.select(memoStrategy);
+        } else {
+            // A memo entry skips a failure without running it again, and
+            // so without what a look around on the way would have
+            // captured. java.util.regex keeps that in the groups, where a
+            // later match that leaves them alone reports it, so these
+            // patterns memoize only what it does: the greedy group loops
+            // with no maximum, by position, within one search, unless
+            // there is a group ref.
+            memoNodes = new ArrayList<>();
             for (Node node : topClosureNodes) {
-                if (node instanceof Loop) {
-                    // non-deterministic-greedy-group
-                    ((Loop)node).posIndex = localTCNCount++;
-                } else if (node instanceof CharPropertyGreedy) {
-                    // greedy style repetition
-                    ((CharPropertyGreedy)node).posIndex = localTCNCount++;
-                }
-            }
-        }
+                if (!hasGroupRef && node.getClass() == Loop.class &&
+                    ((Loop)node).cmax == MAX_REPS)
+                    memoNodes.add(node);
+            }
+        }
+        List<Node> keyed = new ArrayList<>();
+        int[] refGroups = new int[0];
+        if (hasGroupRef) {
+            refGroups = selector.referencedGroups();
+            keyed.addAll(selector.reaching(memoNodes,
+                n -> n instanceof BackRef || n instanceof CIBackRef));
+        }
+        memoKeyLocals = !hasLookaroundGroup
+            ? selector.keyLocals(memoNodes, refGroups, keyed)
+            : new int[0];
+        memoKeyGroups = new int[refGroups.length * 2];
+        for (int k = 0; k < refGroups.length; k++) {
+            memoKeyGroups[2 * k] = refGroups[k];
+            memoKeyGroups[2 * k + 1] = refGroups[k] + 1;
+        }
+        List<Node> startDependent = hasLookaroundGroup ? memoNodes
+            : hasLastMatch ? selector.reaching(memoNodes,
+                                               n -> n instanceof LastMatch)
+            : List.of();
+        for (Node node : memoNodes) {
+            if (!startDependent.contains(node) && !keyed.contains(node))
+                setPosIndex(node);
+        }
+        localTCNReusable = localTCNCount;
+        for (Node node : startDependent) {
+            if (!keyed.contains(node))
+                setPosIndex(node);
+        }
+        localTCNKeyed = localTCNCount;
+        for (Node node : keyed)
+            setPosIndex(node);
 
         // Release temporary storage
         temp = null;
@@ -1825,6 +2093,111 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         topClosureNodes = null;
     }
 
+    /**
+     * Makes the closure node possessive if it repeats a single character
+     * class that no match of the rest of the pattern can start with, and
+     * tells if it is then left out of the memoization.
+     */
+    private static boolean possessify(Node node) {
+        if (node instanceof CharPropertyGreedy) {
+            CharPropertyGreedy cpg = (CharPropertyGreedy)node;
+            cpg.possessive = FirstChars.disjoint(cpg.predicate, cpg.next);
+            // it still fails wherever an earlier run through the same
+            // chars did, see CharPropertyGreedy.matchPossessive
+            return false;
+        }
+        if (node instanceof Curly) {
+            Curly curly = (Curly)node;
+            if (curly.type == Qtype.GREEDY && curly.atom instanceof CharProperty) {
+                curly.possessive = FirstChars.disjoint(
+                    ((CharProperty)curly.atom).predicate, curly.next);
+                return curly.possessive && curly.cmax != MAX_REPS;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the Pike VM for this pattern, or null if the pattern cannot
+     * be run on one.
+     */
+    PikeVM pikeVM() {
+        PikeVM vm = pikeVM;
+        if (vm == null) {
+            pikeVM = vm = PikeVM.compile(this);
+        }
+        return vm == PikeVM.UNSUPPORTED ? null : vm;
+    }
+
+    /**
+     * Returns the lazy DFA of this pattern, or null if it cannot run the
+     * pattern or has stopped being used.
+     */
+    LazyDFA lazyDFA() {
+        LazyDFA dfa = lazyDFA;
+        if (dfa == null) {
+            lazyDFA = dfa = LazyDFA.compile(pikeVM());
+        }
+        return dfa == LazyDFA.UNSUPPORTED || !dfa.usable() ? null : dfa;
+    }
+
+    /**
+     * Returns the bit-parallel automaton of this pattern, or null if the
+     * pattern does not fit one.
+     */
+    ShiftAnd shiftAnd() {
+        ShiftAnd sa = shiftAnd;
+        if (sa == null) {
+            shiftAnd = sa = ShiftAnd.compile(this);
+        }
+        return sa == ShiftAnd.UNSUPPORTED ? null : sa;
+    }
+
+    /**
+     * Returns the bit-parallel automaton for matches(), lookingAt() and
+     * the predicates, or null if the pattern does not fit one or has not
+     * been matched this way before. Building it costs more than one
+     * match of a short input, so a pattern used once, as by
+     * Pattern.matches, is left to the backtracker.
+     */
+    ShiftAnd shiftAndIfReused() {
+        return shiftAnd != null || matchedBefore ? shiftAnd() : null;
+    }
+
+    /**
+     * Tells if a search should ask the bit-parallel automaton whether
+     * there is a match first. It should not when the root skips ahead to
+     * a literal, which is faster than reading every char.
+     */
+    boolean searchesWithShiftAnd() {
+        return root instanceof Start && ((Start)root).literal == null;
+    }
+
+    /**
+     * Analyzes this pattern for the ambiguity that makes a backtracking
+     * matcher slow: the ways it can match parts of the input that grow
+     * exponentially, or polynomially, with their length.
+     *
+     * <p> The analysis looks at the pattern as it is matched against a
+     * whole input, as {@link Matcher#matches()} does, and at the plain
+     * backtracker: memoization, see {@link MemoStrategy}, and the other
+     * ways a {@link Matcher} can be told to match bound the time taken
+     * by many of the patterns reported here. Lookarounds and back
+     * references are not taken into account; see {@link
+     * PatternAnalysis#isExact()}. </p>
+     *
+     * @return  The ambiguity analysis of this pattern
+     */
+    public PatternAnalysis analyze() {
+        PatternAnalysis a = analysis;
+        if (a == null) {
+            Pattern p = new Pattern(pattern, flags, memoStrategy,
+                                    new IdentityHashMap<>());
+            analysis = a = AmbiguityAnalyzer.analyze(p.matchRoot, p.sources);
+        }
+        return a;
+    }
+
     Map<String, Integer> namedGroups() {
         Map<String, Integer> groups = namedGroups;
         if (groups == null) {
@@ -1833,6 +2206,34 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         return groups;
     }
 
+    private void setPosIndex(Node node) {
+        if (node instanceof Loop) {
+            // non-deterministic-greedy-group
+            ((Loop)node).posIndex = localTCNCount++;
+        } else if (node instanceof CharPropertyGreedy) {
+            // greedy style repetition
+            ((CharPropertyGreedy)node).posIndex = localTCNCount++;
+        } else if (node instanceof Curly) {
+            // curly-brace style repetition
+            ((Curly)node).posIndex = localTCNCount++;
+        } else if (node instanceof GroupCurly) {
+            // deterministic group repetition
+            ((GroupCurly)node).posIndex = localTCNCount++;
+        }
+    }
+
+    private void setLookaroundIndex(Node node) {
+        if (node instanceof Pos) {
+            ((Pos)node).memoIndex = lookaroundCount++;
+        } else if (node instanceof Neg) {
+            ((Neg)node).memoIndex = lookaroundCount++;
+        } else if (node instanceof Behind) {
+            ((Behind)node).memoIndex = lookaroundCount++;
+        } else if (node instanceof NotBehind) {
+            ((NotBehind)node).memoIndex = lookaroundCount++;
+        }
+    }
+
     /**
      * Used to accumulate information about a subtree of the object graph
      * so that optimizations can be applied to the subtree.
@@ -1843,6 +2244,16 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         boolean maxValid;
         boolean deterministic;
 
+        /**
+         * A literal that every match contains, as found by findLiteral,
+         * and the least and greatest offset in chars from the start of
+         * the match at which it can begin; literalMax is -1 if there is
+         * no limit.
+         */
+        String literal;
+        int literalMin;
+        int literalMax;
+
         TreeInfo() {
             reset();
         }
@@ -1852,6 +2263,142 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             maxValid = true;
             deterministic = true;
         }
+
+        /**
+         * Looks for the longest run of literal characters on the path
+         * that every match of the node takes: the nodes that follow one
+         * another, the contents of plain groups, but not alternatives,
+         * repetitions or lookarounds. Sets literal, or leaves it null if
+         * there is none.
+         */
+        void findLiteral(Node node) {
+            TreeInfo own = new TreeInfo();
+            StringBuilder run = new StringBuilder();
+            int runMin = 0, runMax = 0;
+            int offMin = 0, offMax = 0;
+            while (node != null && node != accept && node != lastAccept) {
+                String s = literalOf(node);
+                if (s != null) {
+                    if (run.length() == 0) {
+                        runMin = offMin;
+                        runMax = offMax;
+                    }
+                    run.append(s);
+                    if (literal == null || run.length() > literal.length()) {
+                        literal = run.toString();
+                        literalMin = runMin;
+                        literalMax = runMax;
+                    }
+                }
+                // the length of the node alone, without what follows it
+                Node after;
+                own.reset();
+                if (node instanceof Branch) {
+                    Node conn = ((Branch)node).conn;
+                    after = conn.next;
+                    conn.next = accept;
+                    node.study(own);
+                    conn.next = after;
+                } else if (node instanceof Prolog) {
+                    Loop loop = ((Prolog)node).loop;
+                    after = loop.next;
+                    loop.next = accept;
+                    node.study(own);
+                    loop.next = after;
+                } else if (node instanceof GroupHead || node instanceof GroupTail) {
+                    after = node.next;
+                } else {
+                    after = node.next;
+                    node.next = accept;
+                    node.study(own);
+                    node.next = after;
+                }
+                long max = maxChars(node, after);
+                if (s == null && (own.minLength != 0 || max != 0))
+                    run.setLength(0);
+                offMin += own.minLength;
+                if (offMax >= 0)
+                    offMax = max < 0 || offMax + max >= MAX_REPS
+                        ? -1 : offMax + (int)max;
+                node = after;
+            }
+        }
+
+        /**
+         * Returns the most chars that the nodes from node up to stop, or
+         * to the end of the atom they belong to, can read, or -1 if there
+         * is no bound. The maxLength of study cannot be used for this: it
+         * counts code points, and * and + add MAX_REPS to it, which can
+         * overflow into a small maximum on the way out of a Branch.
+         */
+        private static long maxChars(Node node, Node stop) {
+            long max = 0;
+            while (node != stop && node != null &&
+                   node != accept && node != lastAccept) {
+                long n = 0;
+                Node next = node.next;
+                if (node instanceof SliceNode) {
+                    int[] buf = ((SliceNode)node).buffer;
+                    n = node instanceof SliceS || node instanceof SliceIS
+                        ? 2L * buf.length : buf.length;
+                } else if (node instanceof BmpCharProperty) {
+                    n = 1;
+                } else if (node instanceof CharProperty ||
+                           node instanceof LineEnding) {
+                    n = 2;
+                } else if (node instanceof Branch) {
+                    Branch b = (Branch)node;
+                    for (int k = 0; k < b.size && n >= 0; k++) {
+                        long m = b.atoms[k] == null ? 0 : maxChars(b.atoms[k], b.conn);
+                        n = m < 0 ? -1 : Math.max(n, m);
+                    }
+                    next = b.conn.next;
+                } else if (node instanceof Ques) {
+                    n = maxChars(((Ques)node).atom, null);
+                } else if (node instanceof Curly) {
+                    Curly c = (Curly)node;
+                    n = repeat(maxChars(c.atom, null), c.cmax);
+                } else if (node instanceof GroupCurly) {
+                    GroupCurly gc = (GroupCurly)node;
+                    n = repeat(maxChars(gc.atom, null), gc.cmax);
+                } else if (node instanceof Prolog) {
+                    Loop loop = ((Prolog)node).loop;
+                    n = repeat(maxChars(loop.body, loop), loop.cmax);
+                    next = loop.next;
+                } else if (!(node instanceof GroupHead ||
+                             node instanceof GroupTail ||
+                             node instanceof BranchConn ||
+                             node instanceof Begin || node instanceof End ||
+                             node instanceof Caret || node instanceof UnixCaret ||
+                             node instanceof Dollar || node instanceof UnixDollar ||
+                             node instanceof LastMatch || node instanceof Bound)) {
+                    // including a look around, which reads no chars of
+                    // its own but may look as far on as it likes
+                    return -1;
+                }
+                if (n < 0 || (max += n) >= MAX_REPS)
+                    return -1;
+                node = next;
+            }
+            return max;
+        }
+
+        private static long repeat(long atom, int cmax) {
+            if (atom <= 0)
+                return atom;
+            return cmax == MAX_REPS || atom * cmax >= MAX_REPS ? -1 : atom * cmax;
+        }
+
+        private static String literalOf(Node node) {
+            if (node instanceof Slice) {
+                int[] buf = ((Slice)node).buffer;
+                return new String(buf, 0, buf.length);
+            }
+            if (node instanceof CharProperty &&
+                ((CharProperty)node).predicate instanceof SingleChar)
+                return String.valueOf((char)((SingleChar)((CharProperty)node).predicate).c);
+            return null;
+        }
     }
 
     /*
@@ -2092,12 +2639,223 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                 }
             }
             if (peek() != '|') {
+                if (branch != null)
+                    return alternation(branch);
                 return prev;
             }
             next();
         }
     }
 
+    /**
+     * Finishes the Branch of an alternation and returns the node the
+     * alternation now starts with. A Branch of literal strings gets a
+     * trie. Otherwise neighbouring alternatives that start with the same
+     * literal characters share them, and neighbouring alternatives of a
+     * single character become one class; neither moves a group or
+     * changes the order in which the alternatives are tried. An
+     * alternative left on its own takes the place of the Branch.
+     */
+    private Node alternation(Branch b) {
+        b.trie = LiteralTrie.of(b);
+        if (b.trie != null)
+            return b;
+        factor(b);
+        merge(b);
+        if (b.size == 1) {
+            if (b.atoms[0] == null)
+                return b.conn.next;
+            Node tail = tailOf(b.atoms[0], b.conn);
+            if (tail != null) {
+                tail.next = b.conn.next;
+                return b.atoms[0];
+            }
+        }
+        b.dispatch = FirstChars.dispatch(b);
+        return b;
+    }
+
+    /**
+     * Replaces every run of neighbouring alternatives that start with
+     * the same literal character by one alternative: the characters
+     * they all start with, followed by a Branch of what is left of each.
+     */
+    private void factor(Branch b) {
+        Node[] atoms = new Node[b.size];
+        int size = 0;
+        int n = 0;
+        while (n < b.size) {
+            int[] lit = literal(b.atoms[n], b.conn);
+            int len = lit.length;
+            int end = n + 1;
+            for (; len > 0 && end < b.size; end++) {
+                int[] next = literal(b.atoms[end], b.conn);
+                int k = 0;
+                while (k < len && k < next.length && lit[k] == next[k])
+                    k++;
+                if (k == 0)
+                    break;
+                len = k;
+            }
+            Node shared = end - n > 1 ? share(b, n, end, lit, len) : null;
+            if (shared != null) {
+                atoms[size++] = shared;
+                n = end;
+            } else {
+                atoms[size++] = b.atoms[n++];
+            }
+        }
+        b.atoms = atoms;
+        b.size = size;
+    }
+
+    /**
+     * Returns the alternative that reads the first len characters of lit,
+     * which the alternatives from .. to of the Branch all start with, and
+     * then tries what is left of each of them in turn. Returns null if
+     * the end of an alternative cannot be found.
+     */
+    private Node share(Branch b, int from, int to, int[] lit, int len) {
+        Node[] rests = new Node[to - from];
+        Node[] tails = new Node[to - from];
+        for (int k = 0; k < rests.length; k++) {
+            rests[k] = strip(b.atoms[from + k], len, b.conn);
+            if (rests[k] != null) {
+                tails[k] = tailOf(rests[k], b.conn);
+                if (tails[k] == null)
+                    return null;
+            }
+        }
+        BranchConn conn = new BranchConn();
+        conn.next = b.conn;
+        for (Node tail : tails) {
+            if (tail != null)
+                tail.next = conn;
+        }
+        Branch rest = new Branch(rests[0], rests[1], conn);
+        for (int k = 2; k < rests.length; k++)
+            rest.add(rests[k]);
+        Node prefix = len == 1 ? newCharProperty(Single(lit[0]))
+                               : new Slice(Arrays.copyOf(lit, len));
+        prefix.next = alternation(rest);
+        return prefix;
+    }
+
+    /**
+     * Returns the literal characters the alternative starts with, as read
+     * by case sensitive Slice and single character nodes. Surrogates are
+     * left out, as a slice compares them on their own and a single
+     * character node does not.
+     */
+    private static int[] literal(Node atom, Node conn) {
+        int[] lit = new int[0];
+        for (Node node = atom; node != null && node != conn; node = node.next) {
+            int[] chars;
+            if (node.getClass() == Slice.class)
+                chars = ((Slice)node).buffer;
+            else if (node instanceof CharProperty && !(node instanceof BitClass) &&
+                     ((CharProperty)node).predicate instanceof SingleChar)
+                chars = new int[] { ((SingleChar)((CharProperty)node).predicate).c };
+            else
+                break;
+            int k = 0;
+            while (k < chars.length && !Character.isSurrogate((char)chars[k]))
+                k++;
+            int len = lit.length;
+            lit = Arrays.copyOf(lit, len + k);
+            System.arraycopy(chars, 0, lit, len, k);
+            if (k < chars.length)
+                break;
+        }
+        return lit;
+    }
+
+    /**
+     * Returns what is left of the alternative once its first len literal
+     * characters are read, or null if nothing is.
+     */
+    private Node strip(Node atom, int len, Node conn) {
+        Node node = atom;
+        while (len > 0) {
+            if (node instanceof CharProperty) {
+                len--;
+                node = node.next;
+                continue;
+            }
+            int[] buf = ((Slice)node).buffer;
+            if (len >= buf.length) {
+                len -= buf.length;
+                node = node.next;
+                continue;
+            }
+            Node rest = buf.length - len == 1
+                ? newCharProperty(Single(buf[len]))
+                : new Slice(Arrays.copyOfRange(buf, len, buf.length));
+            rest.next = node.next;
+            return rest;
+        }
+        return node == conn ? null : node;
+    }
+
+    /**
+     * Merges every run of neighbouring alternatives that read a single
+     * character, the same way, into one class, and drops every empty
+     * alternative after the first: it would only try the same again.
+     */
+    private void merge(Branch b) {
+        Node[] atoms = new Node[b.size];
+        int size = 0;
+        boolean empty = false;
+        for (int n = 0; n < b.size; n++) {
+            Node atom = b.atoms[n];
+            if (atom == null) {
+                if (!empty)
+                    atoms[size++] = null;
+                empty = true;
+                continue;
+            }
+            if (size > 0 && isSingle(atoms[size - 1], b.conn) &&
+                isSingle(atom, b.conn)) {
+                boolean bmp = atom instanceof BmpCharProperty;
+                CharProperty last = (CharProperty)atoms[size - 1];
+                if ((last instanceof BmpCharProperty) == bmp) {
+                    CharProperty cp = newCharProperty(union(
+                        last.predicate, ((CharProperty)atom).predicate));
+                    if ((cp instanceof BmpCharProperty) == bmp) {
+                        cp.next = b.conn;
+                        atoms[size - 1] = cp;
+                        continue;
+                    }
+                }
+            }
+            atoms[size++] = atom;
+        }
+        b.atoms = atoms;
+        b.size = size;
+    }
+
+    private static boolean isSingle(Node atom, Node conn) {
+        return atom instanceof CharProperty && !(atom instanceof BitClass) &&
+               atom.next == conn;
+    }
+
+    /**
+     * Returns the last node of the sequence from node, the one whose next
+     * is stop, or null if the sequence does not end there.
+     */
+    private static Node tailOf(Node node, Node stop) {
+        while (node != null && node != accept && node != lastAccept) {
+            if (node instanceof Branch)
+                node = ((Branch)node).conn;
+            else if (node instanceof Prolog)
+                node = ((Prolog)node).loop;
+            if (node.next == stop)
+                return node;
+            node = node.next;
+        }
+        return null;
+    }
+
     @SuppressWarnings("fallthrough")
     /**
      * Parsing of sequences between alternations.
@@ -2109,6 +2867,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
     LOOP:
         for (;;) {
             int ch = peek();
+            int start = cursor;
             switch (ch) {
             case '(':
                 // Because group handles its own closure,
@@ -2117,6 +2876,8 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                 // Check for comment or flag group
                 if (node == null)
                     continue;
+                if (sources != null)
+                    sources.put(node, new String(temp, start, cursor - start));
                 if (head == null)
                     head = node;
                 else
@@ -2204,9 +2965,13 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             }
 
             node = closure(node);
+            if (sources != null)
+                sources.put(node, new String(temp, start, cursor - start));
 
-            /* save the top greedy node as well */
-            if (node instanceof CharPropertyGreedy) {
+            /* save the top greedy and curly nodes as well */
+            if (node instanceof CharPropertyGreedy ||
+                node instanceof Curly &&
+                ((Curly)node).type != Qtype.POSSESSIVE) {
                 topClosureNodes.add(node);
             }
 
@@ -2418,7 +3183,10 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             break;
         case 'G':
             if (inclass) break;
-            if (create) root = new LastMatch();
+            if (create) {
+                root = new LastMatch();
+                hasLastMatch = true;
+            }
             return -1;
         case 'H':
             if (create) {
@@ -2621,7 +3389,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         CharPredicate prev = null;
         CharPredicate curr = null;
         BitClass bits = new BitClass();
-        BmpCharPredicate bitsP = ch -> ch < 256 && bits.bits[ch];
+        BmpCharPredicate bitsP = new Latin1Chars(bits.bits);
 
         boolean isNeg = false;
         boolean hasBits = false;
@@ -2639,7 +3407,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                     if (prev == null)
                         prev = curr;
                     else
-                        prev = prev.union(curr);
+                        prev = union(prev, curr);
                     ch = peek();
                     continue;
                 case '&':
@@ -2652,7 +3420,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                                 if (right == null)
                                     right = clazz(true);
                                 else
-                                    right = right.union(clazz(true));
+                                    right = union(right, clazz(true));
                             } else { // abc&&def
                                 unread();
                                 right = clazz(false);
@@ -2664,7 +3432,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                             if (prev == null) {
                                 prev = curr = bitsP;
                             } else {
-                                prev = prev.union(bitsP);
+                                prev = union(prev, bitsP);
                             }
                             hasBits = false;
                         }
@@ -2676,7 +3444,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                             else
                                 prev = right;
                         } else {
-                            prev = prev.and(curr);
+                            prev = and(prev, curr);
                         }
                     } else {
                         // treat as a literal &
@@ -2692,12 +3460,13 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                     if (prev != null || hasBits) {
                         if (consume)
                             next();
-                        if (prev == null)
-                            prev = bitsP;
-                        else if (hasBits)
-                            prev = prev.union(bitsP);
+                        if (hasBits) {
+                            // the bits are complete, list them
+                            CharPredicate p = CharClass.latin1(bits.bits);
+                            prev = prev == null ? p : union(prev, p);
+                        }
                         if (isNeg)
-                            return prev.negate();
+                            return negate(prev);
                         return prev;
                     }
                     break;
@@ -2711,7 +3480,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                 if (prev == null)
                     prev = curr;
                 else if (prev != curr)
-                    prev = prev.union(curr);
+                    prev = union(prev, curr);
             }
             ch = peek();
         }
@@ -2922,6 +3691,10 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
     private CharProperty newCharProperty(CharPredicate p) {
         if (p == null)
             return null;
+        if (p instanceof BmpCharClass)
+            return new BmpCharClassProperty((BmpCharClass)p);
+        if (p instanceof CharClass)
+            return new CharClassProperty((CharClass)p);
         if (p instanceof BmpCharPredicate)
             return new BmpCharProperty((BmpCharPredicate)p);
         else
@@ -2955,6 +3728,8 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         Node tail = null;
         int save = flags0;
         int saveTCNCount = topClosureNodes.size();
+        int saveGroupCount = capturingGroupCount;
+        boolean saveGroupRef = hasGroupRef;
         root = null;
         int ch = next();
         if (ch == '?') {
@@ -2967,6 +3742,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                 break;
             case '=':   // (?=xxx) and (?!xxx) lookahead
             case '!':
+                hasGroupRef = false;
                 head = createGroup(true);
                 tail = root;
                 head.next = expr(tail);
@@ -2975,6 +3751,11 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                 } else {
                     head = tail = new Neg(head);
                 }
+                if (capturingGroupCount != saveGroupCount)
+                    hasLookaroundGroup = true;
+                else if (!hasGroupRef)
+                    setLookaroundIndex(head);
+                hasGroupRef |= saveGroupRef;
                 break;
             case '>':   // (?>xxx)  independent group
                 head = createGroup(true);
@@ -2998,6 +3779,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                     break;
                 }
                 int start = cursor;
+                hasGroupRef = false;
                 head = createGroup(true);
                 tail = root;
                 head.next = expr(tail);
@@ -3022,6 +3804,11 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                                    new NotBehind(head, info.maxLength,
                                                  info.minLength));
                 }
+                if (capturingGroupCount != saveGroupCount)
+                    hasLookaroundGroup = true;
+                else if (!hasGroupRef)
+                    setLookaroundIndex(head);
+                hasGroupRef |= saveGroupRef;
                 // clear all top-closure-nodes inside lookbehind
                 if (saveTCNCount < topClosureNodes.size())
                     topClosureNodes.subList(saveTCNCount, topClosureNodes.size()).clear();
@@ -3102,6 +3889,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                                    ((GroupTail)tail).localIndex,
                                    ((GroupTail)tail).groupIndex,
                                              capturingGroup);
+                topClosureNodes.add(head);
                 return head;
             } else { // Non-deterministic
                 int temp = ((GroupHead) head).localIndex;
@@ -3114,6 +3902,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                         topClosureNodes.add(loop);
                 } else {  // Reluctant Curly
                     loop = new LazyLoop(this.localCount, temp);
+                    topClosureNodes.add(loop);
                 }
                 Prolog prolog = new Prolog(loop);
                 this.localCount += 1;
@@ -3603,11 +4392,25 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
      */
     static class Start extends Node {
         int minLength;
+        // A literal every match contains, at an offset from its start in
+        // literalMin..literalMax, or null. Searching for it skips the
+        // positions no match can start at.
+        String literal;
+        int literalMin;
+        int literalMax;
+        // The code units a match can start with, as a bitmap over the
+        // BMP, or null if it can start with any of them.
+        long[] first;
         Start(Node node) {
             this.next = node;
             TreeInfo info = new TreeInfo();
             next.study(info);
             minLength = info.minLength;
+            info.findLiteral(node);
+            literal = info.literal;
+            literalMin = info.literalMin;
+            literalMax = info.literalMax;
+            first = FirstChars.of(node);
         }
         boolean match(Matcher matcher, int i, CharSequence seq) {
             if (i > matcher.to - minLength) {
@@ -3615,7 +4418,22 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                 return false;
             }
             int guard = matcher.to - minLength;
+            int found = -1;
             for (; i <= guard; i++) {
+                if (first != null &&
+                    (i == matcher.to || !isFirst(seq.charAt(i))))
+                    continue;
+                if (literal != null) {
+                    if (found < i + literalMin) {
+                        found = indexOf(seq, i + literalMin, matcher.to);
+                        if (found < 0)
+                            break;
+                    }
+                    if (literalMax >= 0 && found - literalMax > i) {
+                        i = found - literalMax - 1;
+                        continue;
+                    }
+                }
                 if (next.match(matcher, i, seq)) {
                     matcher.first = i;
                     matcher.groups[0] = matcher.first;
@@ -3626,6 +4444,33 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             matcher.hitEnd = true;
             return false;
         }
+        final boolean isFirst(char c) {
+            return (first[c >>> 6] & (1L << c)) != 0;
+        }
+        /**
+         * Returns the first index at or after from at which the literal
+         * ends by to, or -1.
+         */
+        int indexOf(CharSequence seq, int from, int to) {
+            int last = to - literal.length();
+            if (from > last)
+                return -1;
+            if (seq instanceof String) {
+                int k = ((String)seq).indexOf(literal, from);
+                return k <= last ? k : -1;
+            }
+            char c = literal.charAt(0);
+            for (int k = from; k <= last; k++) {
+                if (seq.charAt(k) != c)
+                    continue;
+                int j = 1;
+                while (j < literal.length() && seq.charAt(k + j) == literal.charAt(j))
+                    j++;
+                if (j == literal.length())
+                    return k;
+            }
+            return -1;
+        }
         boolean study(TreeInfo info) {
             next.study(info);
             info.maxValid = false;
@@ -3640,6 +4485,10 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
     static final class StartS extends Start {
         StartS(Node node) {
             super(node);
+            // a jump back from the literal can land inside a surrogate
+            // pair, where StartS never starts, so only the lower bound of
+            // its offset is used
+            literalMax = -1;
         }
         boolean match(Matcher matcher, int i, CharSequence seq) {
             if (i > matcher.to - minLength) {
@@ -3647,9 +4496,17 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                 return false;
             }
             int guard = matcher.to - minLength;
+            int found = -1;
             while (i <= guard) {
+                if (literal != null && found < i + literalMin) {
+                    found = indexOf(seq, i + literalMin, matcher.to);
+                    if (found < 0)
+                        break;
+                }
                 //if ((ret = next.match(matcher, i, seq)) || i == guard)
-                if (next.match(matcher, i, seq)) {
+                if ((first == null ||
+                     i < matcher.to && isFirst(seq.charAt(i))) &&
+                    next.match(matcher, i, seq)) {
                     matcher.first = i;
                     matcher.groups[0] = matcher.first;
                     matcher.groups[1] = matcher.last;
@@ -3677,10 +4534,13 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
      * multiline mode.
      */
     static final class Begin extends Node {
-        boolean match(Matcher matcher, int i, CharSequence seq) {
+        boolean check(Matcher matcher, int i, CharSequence seq) {
             int fromIndex = (matcher.anchoringBounds) ?
                 matcher.from : 0;
-            if (i == fromIndex && next.match(matcher, i, seq)) {
+            return i == fromIndex;
+        }
+        boolean match(Matcher matcher, int i, CharSequence seq) {
+            if (check(matcher, i, seq) && next.match(matcher, i, seq)) {
                 matcher.first = i;
                 matcher.groups[0] = i;
                 matcher.groups[1] = matcher.last;
@@ -3696,15 +4556,18 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
      * should not match at the last newline before the end as $ will.
      */
     static final class End extends Node {
-        boolean match(Matcher matcher, int i, CharSequence seq) {
+        boolean check(Matcher matcher, int i, CharSequence seq) {
             int endIndex = (matcher.anchoringBounds) ?
                 matcher.to : matcher.getTextLength();
             if (i == endIndex) {
                 matcher.hitEnd = true;
-                return next.match(matcher, i, seq);
+                return true;
             }
             return false;
         }
+        boolean match(Matcher matcher, int i, CharSequence seq) {
+            return check(matcher, i, seq) && next.match(matcher, i, seq);
+        }
     }
 
     /**
@@ -3712,7 +4575,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
      * object to match for the multiline ^.
      */
     static final class Caret extends Node {
-        boolean match(Matcher matcher, int i, CharSequence seq) {
+        boolean check(Matcher matcher, int i, CharSequence seq) {
             int startIndex = matcher.from;
             int endIndex = matcher.to;
             if (!matcher.anchoringBounds) {
@@ -3735,7 +4598,10 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                 if (ch == '\r' && seq.charAt(i) == '\n')
                     return false;
             }
-            return next.match(matcher, i, seq);
+            return true;
+        }
+        boolean match(Matcher matcher, int i, CharSequence seq) {
+            return check(matcher, i, seq) && next.match(matcher, i, seq);
         }
     }
 
@@ -3743,7 +4609,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
      * Node to anchor at the beginning of a line when in unixdot mode.
      */
     static final class UnixCaret extends Node {
-        boolean match(Matcher matcher, int i, CharSequence seq) {
+        boolean check(Matcher matcher, int i, CharSequence seq) {
             int startIndex = matcher.from;
             int endIndex = matcher.to;
             if (!matcher.anchoringBounds) {
@@ -3761,7 +4627,10 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                     return false;
                 }
             }
-            return next.match(matcher, i, seq);
+            return true;
+        }
+        boolean match(Matcher matcher, int i, CharSequence seq) {
+            return check(matcher, i, seq) && next.match(matcher, i, seq);
         }
     }
 
@@ -3770,10 +4639,11 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
      * This is used for the \G construct.
      */
     static final class LastMatch extends Node {
+        boolean check(Matcher matcher, int i, CharSequence seq) {
+            return i == matcher.oldLast;
+        }
         boolean match(Matcher matcher, int i, CharSequence seq) {
-            if (i != matcher.oldLast)
-                return false;
-            return next.match(matcher, i, seq);
+            return check(matcher, i, seq) && next.match(matcher, i, seq);
         }
     }
 
@@ -3795,7 +4665,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         Dollar(boolean mul) {
             multiline = mul;
         }
-        boolean match(Matcher matcher, int i, CharSequence seq) {
+        boolean check(Matcher matcher, int i, CharSequence seq) {
             int endIndex = (matcher.anchoringBounds) ?
                 matcher.to : matcher.getTextLength();
             if (!multiline) {
@@ -3825,11 +4695,11 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                      if (i > 0 && seq.charAt(i-1) == '\r')
                          return false;
                      if (multiline)
-                         return next.match(matcher, i, seq);
+                         return true;
                  } else if (ch == '\r' || ch == '\u0085' ||
                             (ch|1) == '\u2029') {
                      if (multiline)
-                         return next.match(matcher, i, seq);
+                         return true;
                  } else { // No line terminator, no match
                      return false;
                  }
@@ -3839,7 +4709,10 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             // If a $ matches because of end of input, then more input
             // could cause it to fail!
             matcher.requireEnd = true;
-            return next.match(matcher, i, seq);
+            return true;
+        }
+        boolean match(Matcher matcher, int i, CharSequence seq) {
+            return check(matcher, i, seq) && next.match(matcher, i, seq);
         }
         boolean study(TreeInfo info) {
             next.study(info);
@@ -3856,7 +4729,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         UnixDollar(boolean mul) {
             multiline = mul;
         }
-        boolean match(Matcher matcher, int i, CharSequence seq) {
+        boolean check(Matcher matcher, int i, CharSequence seq) {
             int endIndex = (matcher.anchoringBounds) ?
                 matcher.to : matcher.getTextLength();
             if (i < endIndex) {
@@ -3869,7 +4742,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                     // If multiline return next.match without setting
                     // matcher.hitEnd
                     if (multiline)
-                        return next.match(matcher, i, seq);
+                        return true;
                 } else {
                     return false;
                 }
@@ -3880,7 +4753,10 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             // If a $ matches because of end of input, then more input
             // could cause it to fail!
             matcher.requireEnd = true;
-            return next.match(matcher, i, seq);
+            return true;
+        }
+        boolean match(Matcher matcher, int i, CharSequence seq) {
+            return check(matcher, i, seq) && next.match(matcher, i, seq);
         }
         boolean study(TreeInfo info) {
             next.study(info);
@@ -3954,7 +4830,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
      * Optimized version of CharProperty that works only for
      * properties never satisfied by Supplementary characters.
      */
-    private static class BmpCharProperty extends CharProperty {
+    static class BmpCharProperty extends CharProperty {
         BmpCharProperty (BmpCharPredicate predicate) {
             super(predicate);
         }
@@ -3969,6 +4845,49 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         }
     }
 
+    /**
+     * CharProperty of a flattened class, testing it without going
+     * through the predicate interface.
+     */
+    static final class CharClassProperty extends CharProperty {
+        final CharClass cls;
+        CharClassProperty (CharClass cls) {
+            super(cls);
+            this.cls = cls;
+        }
+        boolean match(Matcher matcher, int i, CharSequence seq) {
+            if (i < matcher.to) {
+                int ch = Character.codePointAt(seq, i);
+                return cls.is(ch) &&
+                       next.match(matcher, i + Character.charCount(ch), seq);
+            } else {
+                matcher.hitEnd = true;
+                return false;
+            }
+        }
+    }
+
+    /**
+     * BmpCharProperty of a flattened class that never matches a
+     * surrogate.
+     */
+    static final class BmpCharClassProperty extends BmpCharProperty {
+        final BmpCharClass cls;
+        BmpCharClassProperty (BmpCharClass cls) {
+            super(cls);
+            this.cls = cls;
+        }
+        boolean match(Matcher matcher, int i, CharSequence seq) {
+            if (i < matcher.to) {
+                return cls.is(seq.charAt(i)) &&
+                       next.match(matcher, i + 1, seq);
+            } else {
+                matcher.hitEnd = true;
+                return false;
+            }
+        }
+    }
+
     private static class NFCCharProperty extends Node {
         CharPredicate predicate;
         NFCCharProperty (CharPredicate predicate) {
@@ -4282,31 +5201,56 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
      */
     static class CharPropertyGreedy extends Node {
         final CharPredicate predicate;
+        // the predicate when it is a flattened class, else null
+        final CharClass cls;
         final int cmin;
         int posIndex;
+        // set when nothing that follows can start with a character the
+        // run takes, so that backing off cannot help
+        boolean possessive;
 
         CharPropertyGreedy(CharProperty cp, int cmin) {
             this.predicate = cp.predicate;
+            this.cls = cp.predicate instanceof CharClass ?
+                (CharClass)cp.predicate : null;
             this.cmin = cmin;
             this.posIndex = -1;
         }
         boolean match(Matcher matcher, int i,  CharSequence seq) {
+            // check if we already tried and failed at "i" in the past.
+            // If yes, every longer run failed as well.
+            if (posIndex != -1 && matcher.memoContains(posIndex, i)) {
+                return !possessive && cmin == 0 && next.match(matcher, i, seq);
+            }
+
+            int start = i;
             int n = 0;
             int to = matcher.to;
             // greedy, all the way down
             while (i < to) {
                 int ch = Character.codePointAt(seq, i);
-                if (!predicate.is(ch))
+                if (!(cls != null ? cls.is(ch) : predicate.is(ch)))
                    break;
                 i += Character.charCount(ch);
                 n++;
+                if (posIndex != -1 && matcher.memoContains(posIndex, i))
+                    return backOff(matcher, start, i, n, seq);
             }
             if (i >= to) {
                 matcher.hitEnd = true;
             }
+            matcher.step(n);
+            if (possessive)
+                return matchPossessive(matcher, start, i, n, seq);
             while (n >= cmin) {
+                matcher.step();
                 if (next.match(matcher, i, seq))
                     return true;
+
+                // save the failed position
+                if (posIndex != -1) {
+                    matcher.memoAdd(posIndex, i);
+                }
                 if (n == cmin)
                     return false;
                  // backing off if match fails
@@ -4317,6 +5261,64 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             return false;
         }
 
+        /**
+         * Matches the rest of the pattern after a possessive run from
+         * start that has read n chars up to i. A possessive run records
+         * its failure at every position it read rather than at its end:
+         * a run from any of them, or one that reaches any of them, ends
+         * where it did, so it fails as well. A later start inside the run
+         * then fails at once, and one before it stops where it begins.
+         */
+        boolean matchPossessive(Matcher matcher, int start, int i, int n,
+                                CharSequence seq) {
+            if (n < cmin)
+                return false;
+            if (next.match(matcher, i, seq))
+                return true;
+            if (posIndex != -1)
+                memoRun(matcher, start, i, seq);
+            return false;
+        }
+
+        /**
+         * Records a failure at each position from start up to i.
+         */
+        void memoRun(Matcher matcher, int start, int i, CharSequence seq) {
+            while (start < i) {
+                matcher.memoAdd(posIndex, start);
+                start += Character.charCount(Character.codePointAt(seq, start));
+            }
+        }
+
+        /**
+         * Goes on from a run from start that has read n chars up to i, a
+         * position at which an earlier run failed. That run ended where
+         * this one would, since a run stops at the first char the
+         * predicate rejects, and backed off from there to i, failing at
+         * every position on the way. So only the positions before i are
+         * left to try, and the rest of the run need not be read again: a
+         * search in which each start reaches the same run reads it once.
+         * A possessive run has none left to try.
+         */
+        boolean backOff(Matcher matcher, int start, int i, int n,
+                        CharSequence seq) {
+            matcher.step(n);
+            if (possessive) {
+                memoRun(matcher, start, i, seq);
+                return false;
+            }
+            while (n > cmin) {
+                int ch = Character.codePointBefore(seq, i);
+                i -= Character.charCount(ch);
+                n--;
+                matcher.step();
+                if (next.match(matcher, i, seq))
+                    return true;
+                matcher.memoAdd(posIndex, i);
+            }
+            return false;
+        }
+
         boolean study(TreeInfo info) {
             info.minLength += cmin;
             if (info.maxValid) {
@@ -4335,33 +5337,68 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
 
         boolean match(Matcher matcher, int i,  CharSequence seq) {
             // check if we already tried and failed at "i" in the past.
-            // If yes, return false to stop exponential backtracking.
-            if (posIndex != -1 && matcher.localsPos[posIndex] == null) {
-                matcher.localsPos[posIndex] = new IntHashSet();
-            } else if (posIndex != -1 && matcher.localsPos[posIndex].contains(i)) {
-                return next.match(matcher, i, seq);
+            // If yes, every longer run failed as well, so only the
+            // empty run is left to try, and only if it is allowed.
+            if (posIndex != -1 && matcher.memoContains(posIndex, i)) {
+                return !possessive && cmin == 0 && next.match(matcher, i, seq);
             }
 
+            int start = i;
             int n = 0;
             int to = matcher.to;
-            while (i < to && predicate.is(seq.charAt(i))) {
-                i++; n++;
+            if (posIndex != -1) {
+                // see CharPropertyGreedy.backOff
+                while (i < to && (cls != null ? cls.is(seq.charAt(i))
+                                              : predicate.is(seq.charAt(i)))) {
+                    i++; n++;
+                    if (matcher.memoContains(posIndex, i))
+                        return backOff(matcher, start, i, n, seq);
+                }
+            } else if (cls != null) {
+                while (i < to && cls.is(seq.charAt(i))) {
+                    i++; n++;
+                }
+            } else {
+                while (i < to && predicate.is(seq.charAt(i))) {
+                    i++; n++;
+                }
             }
             if (i >= to) {
                 matcher.hitEnd = true;
             }
+            matcher.step(n);
+            if (possessive)
+                return matchPossessive(matcher, start, i, n, seq);
             while (n >= cmin) {
+                matcher.step();
                 if (next.match(matcher, i, seq))
                     return true;
 
                 // save the failed position
                 if (posIndex != -1) {
-                    matcher.localsPos[posIndex].add(i);
+                    matcher.memoAdd(posIndex, i);
                 }
                 i--; n--;  // backing off if match fails
             }
             return false;
         }
+
+        boolean backOff(Matcher matcher, int start, int i, int n,
+                        CharSequence seq) {
+            matcher.step(n);
+            if (possessive) {
+                memoRun(matcher, start, i, seq);
+                return false;
+            }
+            while (n > cmin) {
+                i--; n--;
+                matcher.step();
+                if (next.match(matcher, i, seq))
+                    return true;
+                matcher.memoAdd(posIndex, i);
+            }
+            return false;
+        }
     }
 
     /**
@@ -4374,17 +5411,25 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         Qtype type;
         int cmin;
         int cmax;
+        int posIndex;
+        // set on a greedy Curly when backing off cannot help; see
+        // CharPropertyGreedy
+        boolean possessive;
 
         Curly(Node node, int cmin, int cmax, Qtype type) {
             this.atom = node;
             this.type = type;
             this.cmin = cmin;
             this.cmax = cmax;
+            this.posIndex = -1;
         }
         boolean match(Matcher matcher, int i, CharSequence seq) {
             if (Thread.currentThread().isInterrupted()) {
                 return false;
             }
+            matcher.step();
+            if (possessive && posIndex != -1)
+                return matchRun(matcher, i, seq);
 
             int j;
             for (j = 0; j < cmin; j++) {
@@ -4394,7 +5439,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                 }
                 return false;
             }
-            if (type == Qtype.GREEDY)
+            if (type == Qtype.GREEDY && !possessive)
                 return match0(matcher, i, j, seq);
             else if (type == Qtype.LAZY)
                 return match1(matcher, i, j, seq);
@@ -4419,8 +5464,12 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                 // Move up index and number matched
                 i = matcher.last;
                 j++;
-                // We are greedy so match as many as we can
+                // We are greedy so match as many as we can, up to a
+                // position known to fail, see CharPropertyGreedy.backOff
                 while (j < cmax) {
+                    if (cmax == MAX_REPS && posIndex != -1 &&
+                        matcher.memoContains(posIndex, i))
+                        break;
                     if (!atom.match(matcher, i, seq))
                         break;
                     if (i + k != matcher.last) {
@@ -4431,10 +5480,19 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                     i += k;
                     j++;
                 }
-                // Handle backing off if match fails
+                // Handle backing off if match fails. Only the positions
+                // past where this call started are saved: the rest of
+                // the pattern may see the first one differently.
                 while (j >= backLimit) {
-                   if (next.match(matcher, i, seq))
-                        return true;
+                    matcher.step();
+                    if (j == backLimit || posIndex == -1) {
+                        if (next.match(matcher, i, seq))
+                            return true;
+                    } else if (!matcher.memoContains(posIndex, i)) {
+                        if (next.match(matcher, i, seq))
+                            return true;
+                        matcher.memoAdd(posIndex, i);
+                    }
                     i -= k;
                     j--;
                 }
@@ -4446,10 +5504,19 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         // i is the index to start matching at
         // j is the number of atoms that have matched
         boolean match1(Matcher matcher, int i, int j, CharSequence seq) {
+            int start = i;
             for (;;) {
-                // Try finishing match without consuming any more
-                if (next.match(matcher, i, seq))
-                    return true;
+                matcher.step();
+                // Try finishing match without consuming any more,
+                // unless it already failed at "i" in the past
+                if (i == start || posIndex == -1) {
+                    if (next.match(matcher, i, seq))
+                        return true;
+                } else if (!matcher.memoContains(posIndex, i)) {
+                    if (next.match(matcher, i, seq))
+                        return true;
+                    matcher.memoAdd(posIndex, i);
+                }
                 // At the maximum, no match found
                 if (j >= cmax)
                     return false;
@@ -4474,6 +5541,44 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             }
             return next.match(matcher, i, seq);
         }
+        /**
+         * Matches a possessive run of one char class with no maximum,
+         * which is memoized as CharPropertyGreedy.matchPossessive is: it
+         * ends at the first char the class rejects, wherever in the run it
+         * starts, so once the rest of the pattern has failed after it, a
+         * run from or through any position it read fails as well.
+         */
+        boolean matchRun(Matcher matcher, int i, CharSequence seq) {
+            if (matcher.memoContains(posIndex, i))
+                return false;
+            int start = i;
+            int j = 0;
+            while (atom.match(matcher, i, seq)) {
+                i = matcher.last;
+                j++;
+                if (matcher.memoContains(posIndex, i)) {
+                    matcher.step(j);
+                    memoRun(matcher, start, i, seq);
+                    return false;
+                }
+            }
+            matcher.step(j);
+            if (j < cmin)
+                return false;
+            if (next.match(matcher, i, seq))
+                return true;
+            memoRun(matcher, start, i, seq);
+            return false;
+        }
+        /**
+         * Records a failure at each position from start up to i.
+         */
+        void memoRun(Matcher matcher, int start, int i, CharSequence seq) {
+            while (start < i) {
+                matcher.memoAdd(posIndex, start);
+                start += Character.charCount(Character.codePointAt(seq, start));
+            }
+        }
         boolean study(TreeInfo info) {
             // Save original info
             int minL = info.minLength;
@@ -4524,6 +5629,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         int localIndex;
         int groupIndex;
         boolean capture;
+        int posIndex;
 
         GroupCurly(Node node, int cmin, int cmax, Qtype type, int local,
                    int group, boolean capture) {
@@ -4534,11 +5640,13 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             this.localIndex = local;
             this.groupIndex = group;
             this.capture = capture;
+            this.posIndex = -1;
         }
         boolean match(Matcher matcher, int i, CharSequence seq) {
             if (Thread.currentThread().isInterrupted()) {
                 return false;
             }
+            matcher.step();
             int[] groups = matcher.groups;
             int[] locals = matcher.locals;
             int save0 = locals[localIndex];
@@ -4618,6 +5726,10 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                     i = i + k;
                     if (++j >= cmax)
                         break;
+                    // up to a position known to fail, see Curly.match0
+                    if (cmax == MAX_REPS && posIndex != -1 &&
+                        matcher.memoContains(posIndex, i))
+                        break;
                     if (!atom.match(matcher, i, seq))
                         break;
                     if (i + k != matcher.last) {
@@ -4627,12 +5739,20 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                     }
                 }
                 while (j > min) {
-                    if (next.match(matcher, i, seq)) {
-                        if (capture) {
-                            groups[groupIndex+1] = i;
-                            groups[groupIndex] = i - k;
+                    matcher.step();
+                    // skip the positions that already failed in the past
+                    if (posIndex == -1 ||
+                        !matcher.memoContains(posIndex, i)) {
+                        if (next.match(matcher, i, seq)) {
+                            if (capture) {
+                                groups[groupIndex+1] = i;
+                                groups[groupIndex] = i - k;
+                            }
+                            return true;
+                        }
+                        if (posIndex != -1) {
+                            matcher.memoAdd(posIndex, i);
                         }
-                        return true;
                     }
                     // backing off
                     i = i - k;
@@ -4653,9 +5773,17 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         }
         // Reluctant matching
         boolean match1(Matcher matcher, int i, int j, CharSequence seq) {
+            int start = i;
             for (;;) {
-                if (next.match(matcher, i, seq))
-                    return true;
+                matcher.step();
+                if (i == start || posIndex == -1) {
+                    if (next.match(matcher, i, seq))
+                        return true;
+                } else if (!matcher.memoContains(posIndex, i)) {
+                    if (next.match(matcher, i, seq))
+                        return true;
+                    matcher.memoAdd(posIndex, i);
+                }
                 if (j >= cmax)
                     return false;
                 if (!atom.match(matcher, i, seq))
@@ -4748,6 +5876,12 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         Node[] atoms = new Node[2];
         int size = 2;
         Node conn;
+        // Set by expr() when every alternative is a string of literal
+        // characters, to try them all in one pass over the input.
+        LiteralTrie trie;
+        // Otherwise, the alternatives to try for each ASCII character at
+        // the start, and last for any other character; see FirstChars.
+        int[][] dispatch;
         Branch(Node first, Node second, Node branchConn) {
             conn = branchConn;
             atoms[0] = first;
@@ -4764,6 +5898,24 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         }
 
         boolean match(Matcher matcher, int i, CharSequence seq) {
+            if (trie != null)
+                return trie.match(matcher, i, seq);
+            if (dispatch != null && i < matcher.to) {
+                char c = seq.charAt(i);
+                for (int n : dispatch[c < 128 ? c : 128]) {
+                    if (atoms[n] == null) {
+                        if (conn.next.match(matcher, i, seq))
+                            return true;
+                    } else if (atoms[n].match(matcher, i, seq)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            return matchAtoms(matcher, i, seq);
+        }
+
+        boolean matchAtoms(Matcher matcher, int i, CharSequence seq) {
             for (int n = 0; n < size; n++) {
                 if (atoms[n] == null) {
                     if (conn.next.match(matcher, i, seq))
@@ -4909,6 +6061,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             if (Thread.currentThread().isInterrupted()) {
                 return false;
             }
+            matcher.step();
             return loop.matchInit(matcher, i, seq);
         }
         boolean study(TreeInfo info) {
@@ -4937,6 +6090,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             if (Thread.currentThread().isInterrupted()) {
                 return false;
             }
+            matcher.step();
             // Avoid infinite loop in zero-length case.
             if (i > matcher.locals[beginIndex]) {
                 int count = matcher.locals[countIndex];
@@ -4962,7 +6116,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                     // If yes, then just return false wihtout trying
                     // again, to stop the exponential backtracking.
                     if (posIndex != -1 &&
-                        matcher.localsPos[posIndex].contains(i)) {
+                        matcher.memoContains(posIndex, i)) {
                         return next.match(matcher, i, seq);
                     }
                     matcher.locals[countIndex] = count + 1;
@@ -4974,7 +6128,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                     matcher.locals[countIndex] = count;
                     // save the failed position
                     if (posIndex != -1) {
-                        matcher.localsPos[posIndex].add(i);
+                        matcher.memoAdd(posIndex, i);
                     }
                 }
             }
@@ -4983,9 +6137,6 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         boolean matchInit(Matcher matcher, int i, CharSequence seq) {
             int save = matcher.locals[countIndex];
             boolean ret = false;
-            if (posIndex != -1 && matcher.localsPos[posIndex] == null) {
-                matcher.localsPos[posIndex] = new IntHashSet();
-            }
             if (0 < cmin) {
                 matcher.locals[countIndex] = 1;
                 ret = body.match(matcher, i, seq);
@@ -5021,6 +6172,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             if (Thread.currentThread().isInterrupted()) {
                 return false;
             }
+            matcher.step();
             // Check for zero length group
             if (i > matcher.locals[beginIndex]) {
                 int count = matcher.locals[countIndex];
@@ -5036,12 +6188,23 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                 if (next.match(matcher, i, seq))
                     return true;
                 if (count < cmax) {
+                    // One more iteration from "i" already failed in
+                    // the past, so it would fail again.
+                    if (posIndex != -1 &&
+                        matcher.memoContains(posIndex, i)) {
+                        return false;
+                    }
                     matcher.locals[countIndex] = count + 1;
                     boolean result = body.match(matcher, i, seq);
                     // If match failed we must backtrack, so
                     // the loop count should NOT be incremented
-                    if (!result)
+                    if (!result) {
                         matcher.locals[countIndex] = count;
+                        // save the failed position
+                        if (posIndex != -1) {
+                            matcher.memoAdd(posIndex, i);
+                        }
+                    }
                     return result;
                 }
                 return false;
@@ -5239,10 +6402,17 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
      */
     static final class Pos extends Node {
         Node cond;
+        int memoIndex;
         Pos(Node cond) {
             this.cond = cond;
+            this.memoIndex = -1;
         }
         boolean match(Matcher matcher, int i, CharSequence seq) {
+            // reuse the outcome of the condition at "i" if known
+            int known = matcher.lookaroundResult(memoIndex, i);
+            if (known >= 0)
+                return known == 1 && next.match(matcher, i, seq);
+
             int savedTo = matcher.to;
             boolean conditionMatched = false;
 
@@ -5255,6 +6425,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                 // Reinstate region boundaries
                 matcher.to = savedTo;
             }
+            matcher.lookaroundSave(memoIndex, i, conditionMatched);
             return conditionMatched && next.match(matcher, i, seq);
         }
     }
@@ -5264,10 +6435,18 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
      */
     static final class Neg extends Node {
         Node cond;
+        int memoIndex;
         Neg(Node cond) {
             this.cond = cond;
+            this.memoIndex = -1;
         }
         boolean match(Matcher matcher, int i, CharSequence seq) {
+            // reuse the outcome of the condition at "i" if known; any
+            // requireEnd it implies was already set in this search
+            int known = matcher.lookaroundResult(memoIndex, i);
+            if (known >= 0)
+                return known == 1 && next.match(matcher, i, seq);
+
             int savedTo = matcher.to;
             boolean conditionMatched = false;
 
@@ -5287,6 +6466,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                 // Reinstate region boundaries
                 matcher.to = savedTo;
             }
+            matcher.lookaroundSave(memoIndex, i, conditionMatched);
             return conditionMatched && next.match(matcher, i, seq);
         }
     }
@@ -5307,13 +6487,19 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
     static class Behind extends Node {
         Node cond;
         int rmax, rmin;
+        int memoIndex;
         Behind(Node cond, int rmax, int rmin) {
             this.cond = cond;
             this.rmax = rmax;
             this.rmin = rmin;
+            this.memoIndex = -1;
         }
 
         boolean match(Matcher matcher, int i, CharSequence seq) {
+            int known = matcher.lookaroundResult(memoIndex, i);
+            if (known >= 0)
+                return known == 1 && next.match(matcher, i, seq);
+
             int savedFrom = matcher.from;
             boolean conditionMatched = false;
             int startIndex = (!matcher.transparentBounds) ?
@@ -5330,6 +6516,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             }
             matcher.from = savedFrom;
             matcher.lookbehindTo = savedLBT;
+            matcher.lookaroundSave(memoIndex, i, conditionMatched);
             return conditionMatched && next.match(matcher, i, seq);
         }
     }
@@ -5343,6 +6530,10 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             super(cond, rmax, rmin);
         }
         boolean match(Matcher matcher, int i, CharSequence seq) {
+            int known = matcher.lookaroundResult(memoIndex, i);
+            if (known >= 0)
+                return known == 1 && next.match(matcher, i, seq);
+
             int rmaxChars = countChars(seq, i, -rmax);
             int rminChars = countChars(seq, i, -rmin);
             int savedFrom = matcher.from;
@@ -5364,6 +6555,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             }
             matcher.from = savedFrom;
             matcher.lookbehindTo = savedLBT;
+            matcher.lookaroundSave(memoIndex, i, conditionMatched);
             return conditionMatched && next.match(matcher, i, seq);
         }
     }
@@ -5374,13 +6566,19 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
     static class NotBehind extends Node {
         Node cond;
         int rmax, rmin;
+        int memoIndex;
         NotBehind(Node cond, int rmax, int rmin) {
             this.cond = cond;
             this.rmax = rmax;
             this.rmin = rmin;
+            this.memoIndex = -1;
         }
 
         boolean match(Matcher matcher, int i, CharSequence seq) {
+            int known = matcher.lookaroundResult(memoIndex, i);
+            if (known >= 0)
+                return known == 1 && next.match(matcher, i, seq);
+
             int savedLBT = matcher.lookbehindTo;
             int savedFrom = matcher.from;
             boolean conditionMatched = false;
@@ -5397,6 +6595,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             // Reinstate region boundaries
             matcher.from = savedFrom;
             matcher.lookbehindTo = savedLBT;
+            matcher.lookaroundSave(memoIndex, i, !conditionMatched);
             return !conditionMatched && next.match(matcher, i, seq);
         }
     }
@@ -5410,6 +6609,10 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             super(cond, rmax, rmin);
         }
         boolean match(Matcher matcher, int i, CharSequence seq) {
+            int known = matcher.lookaroundResult(memoIndex, i);
+            if (known >= 0)
+                return known == 1 && next.match(matcher, i, seq);
+
             int rmaxChars = countChars(seq, i, -rmax);
             int rminChars = countChars(seq, i, -rmin);
             int savedFrom = matcher.from;
@@ -5430,6 +6633,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             //Reinstate region boundaries
             matcher.from = savedFrom;
             matcher.lookbehindTo = savedLBT;
+            matcher.lookaroundSave(memoIndex, i, !conditionMatched);
             return !conditionMatched && next.match(matcher, i, seq);
         }
     }
@@ -5544,21 +6748,28 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
     static class BnM extends Node {
         int[] buffer;
         int[] lastOcc;
+        int[] occChars;
+        int[] occLast;
         int[] optoSft;
 
         /**
          * Pre calculates arrays needed to generate the bad character
-         * shift and the good suffix shift. Only the last seven bits
-         * are used to see if chars match; This keeps the tables small
-         * and covers the heavily used ASCII range, but occasionally
-         * results in an aliased match for the bad character shift.
+         * shift and the good suffix shift. The bad character shift
+         * covers every character: ASCII through a table and the rest
+         * through a sorted list of the few other characters the
+         * pattern contains.
+         *
+         * Case insensitive slices are searched for with the characters
+         * of the input folded the way the slice folds them. Literals
+         * shorter than four characters are left to Start, which looks
+         * for them with String.indexOf or its first character set.
          */
         static Node optimize(Node node) {
-            if (!(node instanceof Slice)) {
+            if (!(node instanceof SliceNode) || node instanceof SliceIS) {
                 return node;
             }
 
-            int[] src = ((Slice) node).buffer;
+            int[] src = ((SliceNode) node).buffer;
             int patternLength = src.length;
             // The BM algorithm requires a bit of overhead;
             // If the pattern is short don't use it, since
@@ -5568,14 +6779,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                 return node;
             }
             int i, j, k;
-            int[] lastOcc = new int[128];
             int[] optoSft = new int[patternLength];
-            // Precalculate part of the bad character shift
-            // It is a table for where in the pattern each
-            // lower 7-bit value occurs
-            for (i = 0; i < patternLength; i++) {
-                lastOcc[src[i]&0x7F] = i + 1;
-            }
             // Precalculate the good suffix shift
             // i is the shift amount being considered
 NEXT:       for (i = patternLength; i > 0; i--) {
@@ -5601,14 +6805,47 @@ NEXT:       for (i = patternLength; i > 0; i--) {
             // Set the guard value because of unicode compression
             optoSft[patternLength-1] = 1;
             if (node instanceof SliceS)
-                return new BnMS(src, lastOcc, optoSft, node.next);
-            return new BnM(src, lastOcc, optoSft, node.next);
-        }
-        BnM(int[] src, int[] lastOcc, int[] optoSft, Node next) {
+                return new BnMS(src, optoSft, node.next);
+            if (node instanceof SliceU)
+                return new BnMU(src, optoSft, node.next);
+            if (node instanceof SliceI)
+                return new BnMI(src, optoSft, node.next);
+            return new BnM(src, optoSft, node.next);
+        }
+        BnM(int[] src, int[] optoSft, Node next) {
             this.buffer = src;
-            this.lastOcc = lastOcc;
             this.optoSft = optoSft;
             this.next = next;
+            // Precalculate the bad character shift, a table for where
+            // in the pattern each character occurs last
+            lastOcc = new int[128];
+            int n = 0;
+            int[] chars = new int[src.length];
+            for (int i = 0; i < src.length; i++) {
+                if (src[i] < 128)
+                    lastOcc[src[i]] = i + 1;
+                else
+                    chars[n++] = src[i];
+            }
+            occChars = IntStream.of(chars).limit(n).sorted().distinct().toArray();
+            occLast = new int[occChars.length];
+            for (int i = 0; i < src.length; i++) {
+                int x = src[i] < 128 ? -1 : Arrays.binarySearch(occChars, src[i]);
+                if (x >= 0)
+                    occLast[x] = i + 1;
+            }
+        }
+        /**
+         * Returns one past the last index at which the character occurs
+         * in the pattern, or 0 if it does not occur.
+         */
+        final int lastOcc(int ch) {
+            if (ch < 128)
+                return lastOcc[ch];
+            if (occChars.length == 0)
+                return 0;
+            int x = Arrays.binarySearch(occChars, ch);
+            return x < 0 ? 0 : occLast[x];
         }
         boolean match(Matcher matcher, int i, CharSequence seq) {
             int[] src = buffer;
@@ -5623,7 +6860,7 @@ NEXT:       while (i <= last) {
                     if (ch != src[j]) {
                         // Shift search to the right by the maximum of the
                         // bad character shift and the good suffix shift
-                        i += Math.max(j + 1 - lastOcc[ch&0x7F], optoSft[j]);
+                        i += Math.max(j + 1 - lastOcc(ch), optoSft[j]);
                         continue NEXT;
                     }
                 }
@@ -5651,6 +6888,65 @@ NEXT:       while (i <= last) {
         }
     }
 
+    /**
+     * Case insensitive version of BnM(), for a SliceI. A character of
+     * the input matches the pattern if it or its lower case is equal to
+     * the pattern character, so it can be shifted past on either.
+     */
+    static class BnMI extends BnM {
+        BnMI(int[] src, int[] optoSft, Node next) {
+            super(src, optoSft, next);
+        }
+        int toLower(int c) {
+            return ASCII.toLower(c);
+        }
+        boolean match(Matcher matcher, int i, CharSequence seq) {
+            int[] src = buffer;
+            int patternLength = src.length;
+            int last = matcher.to - patternLength;
+
+            // Loop over all possible match positions in text
+NEXT:       while (i <= last) {
+                // Loop over pattern from right to left
+                for (int j = patternLength - 1; j >= 0; j--) {
+                    int ch = seq.charAt(i+j);
+                    if (ch != src[j]) {
+                        int lower = toLower(ch);
+                        if (lower != src[j]) {
+                            int occ = Math.max(lastOcc(ch), lastOcc(lower));
+                            i += Math.max(j + 1 - occ, optoSft[j]);
+                            continue NEXT;
+                        }
+                    }
+                }
+                // Entire pattern matched starting at i
+                matcher.first = i;
+                boolean ret = next.match(matcher, i + patternLength, seq);
+                if (ret) {
+                    matcher.first = i;
+                    matcher.groups[0] = matcher.first;
+                    matcher.groups[1] = matcher.last;
+                    return true;
+                }
+                i++;
+            }
+            matcher.hitEnd = true;
+            return false;
+        }
+    }
+
+    /**
+     * Version of BnMI() for a SliceU, using unicode case folding.
+     */
+    static final class BnMU extends BnMI {
+        BnMU(int[] src, int[] optoSft, Node next) {
+            super(src, optoSft, next);
+        }
+        int toLower(int c) {
+            return Character.toLowerCase(Character.toUpperCase(c));
+        }
+    }
+
     /**
      * Supplementary support version of BnM(). Unpaired surrogates are
      * also handled by this class.
@@ -5658,8 +6954,8 @@ NEXT:       while (i <= last) {
     static final class BnMS extends BnM {
         int lengthInChars;
 
-        BnMS(int[] src, int[] lastOcc, int[] optoSft, Node next) {
-            super(src, lastOcc, optoSft, next);
+        BnMS(int[] src, int[] optoSft, Node next) {
+            super(src, optoSft, next);
             for (int cp : buffer) {
                 lengthInChars += Character.charCount(cp);
             }
@@ -5679,7 +6975,7 @@ NEXT:       while (i <= last) {
                     if (ch != src[x]) {
                         // Shift search to the right by the maximum of the
                         // bad character shift and the good suffix shift
-                        int n = Math.max(x + 1 - lastOcc[ch&0x7F], optoSft[x]);
+                        int n = Math.max(x + 1 - lastOcc(ch), optoSft[x]);
                         i += countChars(seq, i, n);
                         continue NEXT;
                     }
@@ -5801,7 +7097,248 @@ NEXT:       while (i <= last) {
      * A bmp/optimized predicate of single
      */
     static BmpCharPredicate Single(int c) {
-        return ch -> ch == c;
+        return new SingleChar(c);
+    }
+
+    /**
+     * The predicate of a single BMP character, kept as a class so that
+     * the optimizer can tell which character it is.
+     */
+    static final class SingleChar implements BmpCharPredicate {
+        final int c;
+        SingleChar(int c) {
+            this.c = c;
+        }
+        public boolean is(int ch) {
+            return ch == c;
+        }
+    }
+
+    /**
+     * The predicate of the characters of a class below 256, kept as a
+     * class so that the optimizer can list them.
+     */
+    static final class Latin1Chars implements BmpCharPredicate {
+        final boolean[] bits;
+        Latin1Chars(boolean[] bits) {
+            this.bits = bits;
+        }
+        public boolean is(int ch) {
+            return ch < 256 && bits[ch];
+        }
+    }
+
+    /**
+     * A character class flattened into a bitmap of its characters below 256
+     * and a sorted array of the ranges above, so that a class built from
+     * ranges, sets and intersections is tested with one lookup instead of
+     * a chain of predicates.
+     */
+    static class CharClass implements CharPredicate {
+        // sorted, disjoint, inclusive [lower, upper] pairs
+        final int[] ranges;
+        final long[] latin1 = new long[4];
+        final int[] starts;
+        final int[] ends;
+
+        CharClass(int[] ranges) {
+            this.ranges = ranges;
+            int n = 0;
+            for (int k = 0; k < ranges.length; k += 2) {
+                int upper = Math.min(ranges[k + 1], 255);
+                for (int c = ranges[k]; c <= upper; c++)
+                    latin1[c >>> 6] |= 1L << c;
+                if (ranges[k + 1] > 255)
+                    n++;
+            }
+            starts = new int[n];
+            ends = new int[n];
+            n = 0;
+            for (int k = 0; k < ranges.length; k += 2) {
+                if (ranges[k + 1] > 255) {
+                    starts[n] = Math.max(ranges[k], 256);
+                    ends[n++] = ranges[k + 1];
+                }
+            }
+        }
+
+        public final boolean is(int ch) {
+            if (ch < 256)
+                return ch >= 0 && (latin1[ch >>> 6] & (1L << ch)) != 0;
+            int lo = 0;
+            int hi = starts.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ch < starts[mid])
+                    hi = mid - 1;
+                else if (ch > ends[mid])
+                    lo = mid + 1;
+                else
+                    return true;
+            }
+            return false;
+        }
+
+        public CharPredicate negate() {
+            return new CharClass(complement(ranges));
+        }
+
+        static CharClass of(int[] ranges, boolean bmp) {
+            return bmp ? new BmpCharClass(ranges) : new CharClass(ranges);
+        }
+
+        /**
+         * Returns the flat form of the given predicate, or null if it
+         * cannot be listed without testing every code point.
+         */
+        static CharClass of(CharPredicate p) {
+            if (p instanceof CharClass)
+                return (CharClass)p;
+            if (p instanceof SingleChar) {
+                int c = ((SingleChar)p).c;
+                return new BmpCharClass(new int[] { c, c });
+            }
+            return null;
+        }
+
+        /**
+         * Returns the flat form of the characters set in a bit class.
+         */
+        static BmpCharClass latin1(boolean[] bits) {
+            return listed(256, ch -> bits[ch]);
+        }
+
+        /**
+         * Returns the flat form of an ASCII-only predicate.
+         */
+        static BmpCharClass ascii(BmpCharPredicate p) {
+            return listed(128, p);
+        }
+
+        private static BmpCharClass listed(int limit, BmpCharPredicate p) {
+            int[] ranges = new int[limit];
+            int n = 0;
+            for (int c = 0; c < limit; c++) {
+                if (!p.is(c))
+                    continue;
+                if (n > 0 && ranges[n - 1] == c - 1) {
+                    ranges[n - 1] = c;
+                } else {
+                    ranges[n++] = c;
+                    ranges[n++] = c;
+                }
+            }
+            return new BmpCharClass(Arrays.copyOf(ranges, n));
+        }
+
+        static int[] union(int[] a, int[] b) {
+            int[] r = new int[a.length + b.length];
+            int n = 0;
+            int i = 0;
+            int j = 0;
+            while (i < a.length || j < b.length) {
+                int lower, upper;
+                if (j == b.length || i < a.length && a[i] <= b[j]) {
+                    lower = a[i++];
+                    upper = a[i++];
+                } else {
+                    lower = b[j++];
+                    upper = b[j++];
+                }
+                if (n > 0 && lower <= r[n - 1] + 1) {
+                    r[n - 1] = Math.max(r[n - 1], upper);
+                } else {
+                    r[n++] = lower;
+                    r[n++] = upper;
+                }
+            }
+            return Arrays.copyOf(r, n);
+        }
+
+        static int[] intersect(int[] a, int[] b) {
+            int[] r = new int[a.length + b.length];
+            int n = 0;
+            int i = 0;
+            int j = 0;
+            while (i < a.length && j < b.length) {
+                int lower = Math.max(a[i], b[j]);
+                int upper = Math.min(a[i + 1], b[j + 1]);
+                if (lower <= upper) {
+                    r[n++] = lower;
+                    r[n++] = upper;
+                }
+                if (a[i + 1] < b[j + 1])
+                    i += 2;
+                else
+                    j += 2;
+            }
+            return Arrays.copyOf(r, n);
+        }
+
+        static int[] complement(int[] a) {
+            int[] r = new int[a.length + 2];
+            int n = 0;
+            int next = 0;
+            for (int k = 0; k < a.length; k += 2) {
+                if (a[k] > next) {
+                    r[n++] = next;
+                    r[n++] = a[k] - 1;
+                }
+                next = a[k + 1] + 1;
+            }
+            if (next <= Character.MAX_CODE_POINT) {
+                r[n++] = next;
+                r[n++] = Character.MAX_CODE_POINT;
+            }
+            return Arrays.copyOf(r, n);
+        }
+    }
+
+    /**
+     * A flattened character class that never matches a surrogate.
+     */
+    static final class BmpCharClass extends CharClass
+        implements BmpCharPredicate {
+        BmpCharClass(int[] ranges) {
+            super(ranges);
+        }
+    }
+
+    /**
+     * Returns the union of two class predicates, flattened when both sides
+     * can be listed.
+     */
+    private static CharPredicate union(CharPredicate p1, CharPredicate p2) {
+        CharClass c1 = CharClass.of(p1);
+        CharClass c2 = CharClass.of(p2);
+        if (c1 == null || c2 == null)
+            return p1.union(p2);
+        return CharClass.of(CharClass.union(c1.ranges, c2.ranges),
+                            c1 instanceof BmpCharPredicate &&
+                            c2 instanceof BmpCharPredicate);
+    }
+
+    /**
+     * Returns the intersection of two class predicates, flattened when
+     * both sides can be listed.
+     */
+    private static CharPredicate and(CharPredicate p1, CharPredicate p2) {
+        CharClass c1 = CharClass.of(p1);
+        CharClass c2 = CharClass.of(p2);
+        if (c1 == null || c2 == null)
+            return p1.and(p2);
+        return CharClass.of(CharClass.intersect(c1.ranges, c2.ranges),
+                            c1 instanceof BmpCharPredicate &&
+                            c2 instanceof BmpCharPredicate);
+    }
+
+    /**
+     * Returns the complement of a class predicate, flattened when it can
+     * be listed.
+     */
+    private static CharPredicate negate(CharPredicate p) {
+        CharClass c = CharClass.of(p);
+        return c == null ? p.negate() : c.negate();
     }
 
     /**
@@ -5830,8 +7367,8 @@ NEXT:       while (i <= last) {
         if (upper < Character.MIN_HIGH_SURROGATE ||
             lower > Character.MAX_HIGH_SURROGATE &&
             upper < Character.MIN_SUPPLEMENTARY_CODE_POINT)
-            return (BmpCharPredicate)(ch -> inRange(lower, ch, upper));
-        return ch -> inRange(lower, ch, upper);
+            return new BmpCharClass(new int[] { lower, upper });
+        return new CharClass(new int[] { lower, upper });
     }
 
    /**
@@ -5879,7 +7416,7 @@ NEXT:       while (i <= last) {
      * @see     Matcher#find
      */
     public Predicate<String> asPredicate() {
-        return s -> matcher(s).find();
+        return s -> matcher(s).test(false);
     }
 
     /**
@@ -5899,7 +7436,7 @@ NEXT:       while (i <= last) {
      * @see     Matcher#matches
      */
     public Predicate<String> asMatchPredicate() {
-        return s -> matcher(s).matches();
+        return s -> matcher(s).test(true);
     }
 
     /**
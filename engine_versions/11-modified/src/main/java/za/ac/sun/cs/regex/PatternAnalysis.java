@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package za.ac.sun.cs.regex;
+
+import java.util.List;
+
+/**
+ * The result of analyzing a pattern for ambiguity, as returned by
+ * {@link Pattern#analyze()}.
+ *
+ * <p> A pattern is ambiguous when it can match the same input in more
+ * than one way. A backtracking matcher that fails to match an input tries
+ * every one of these ways before it gives up, so the kind of ambiguity
+ * bounds the time it takes. A pattern such as {@code (a|aa)*b} has
+ * exponential degree of ambiguity: the number of ways to match a run of
+ * {@code a}s grows exponentially with its length. A pattern such as
+ * {@code a*a*b} has infinite but polynomial degree of ambiguity: the
+ * number of ways grows as a power of the length. </p>
+ *
+ * <p> Instances of this class are immutable and are safe for use by
+ * multiple concurrent threads. </p>
+ *
+ * @see Pattern#analyze()
+ */
+public final class PatternAnalysis {
+
+    /**
+     * How the time a backtracking matcher may take grows with the length
+     * of the input.
+     */
+    public static enum Complexity {
+        /**
+         * The pattern has no infinite ambiguity. Matching takes time linear
+         * in the length of the input, times a factor that depends on the
+         * pattern alone.
+         */
+        LINEAR,
+
+        /**
+         * The pattern has infinite degree of ambiguity, bounded by a
+         * polynomial: matching may take time proportional to the length
+         * of the input to the power {@link PatternAnalysis#degree()} + 1.
+         */
+        POLYNOMIAL,
+
+        /**
+         * The pattern has exponential degree of ambiguity: matching may
+         * take time exponential in the length of the input.
+         */
+        EXPONENTIAL
+    }
+
+    private final Complexity complexity;
+    private final int degree;
+    private final List<String> nodes;
+    private final ExploitString exploitString;
+    private final boolean exact;
+
+    PatternAnalysis(Complexity complexity, int degree, List<String> nodes,
+                    boolean exact) {
+        this(complexity, degree, nodes, null, exact);
+    }
+
+    PatternAnalysis(Complexity complexity, int degree, List<String> nodes,
+                    ExploitString exploitString, boolean exact) {
+        this.complexity = complexity;
+        this.degree = degree;
+        this.nodes = List.copyOf(nodes);
+        this.exploitString = exploitString;
+        this.exact = exact;
+    }
+
+    /**
+     * Returns how the time a backtracking matcher may take grows with
+     * the length of the input.
+     *
+     * @return  The complexity of matching this pattern
+     */
+    public Complexity complexity() {
+        return complexity;
+    }
+
+    /**
+     * Returns the degree of a polynomially ambiguous pattern: the number
+     * of repetitions, one after the other, that can each read the same
+     * growing part of the input. It is 0 unless the complexity is
+     * {@link Complexity#POLYNOMIAL}.
+     *
+     * @return  The degree of the polynomial ambiguity
+     */
+    public int degree() {
+        return degree;
+    }
+
+    /**
+     * Returns the repetitions that cause the ambiguity, as they appear in
+     * the pattern. For exponential ambiguity these are the repetitions
+     * that can read an input in two ways; for polynomial ambiguity, the
+     * {@link #degree()} + 1 repetitions that take turns reading it. The
+     * list is empty if the complexity is {@link Complexity#LINEAR}.
+     *
+     * @return  The source text of the offending repetitions
+     */
+    public List<String> nodes() {
+        return nodes;
+    }
+
+    /**
+     * Returns an input on which a backtracking matcher takes the time
+     * given by {@link #complexity()} to fail. It exploits the first of
+     * the {@link #nodes()} if the complexity is exponential, and all of
+     * them if it is polynomial. It may take less time on a pattern that
+     * was not analyzed exactly.
+     *
+     * @return  The exploit string, or {@code null} if the complexity is
+     *          {@link Complexity#LINEAR} or no input that makes every
+     *          way of matching fail was found
+     */
+    public ExploitString exploitString() {
+        return exploitString;
+    }
+
+    /**
+     * Tells whether the analysis covered the whole pattern. It does not
+     * look inside lookarounds, it takes back references to match nothing,
+     * and it only considers characters in the Basic Multilingual Plane.
+     * Very large patterns are analyzed with their counted repetitions cut
+     * short, or in part.
+     *
+     * @return  {@code false} if the pattern uses constructs that were
+     *          approximated, or was too large to analyze in full
+     */
+    public boolean isExact() {
+        return exact;
+    }
+
+    /**
+     * Returns the string representation of this analysis: the complexity,
+     * the degree if polynomial, and the offending repetitions.
+     *
+     * @return  The string representation of this analysis
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(complexity);
+        if (complexity == Complexity.POLYNOMIAL)
+            sb.append(" degree=").append(degree);
+        if (!nodes.isEmpty())
+            sb.append(" nodes=").append(nodes);
+        if (!exact)
+            sb.append(" (approximate)");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,1293 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package za.ac.sun.cs.regex;
+
+import java.util.Arrays;
+
+import za.ac.sun.cs.regex.Pattern.CharPredicate;
+import za.ac.sun.cs.regex.Pattern.Node;
+
+/**
+ * Runs a compiled pattern as a Pike VM, in time proportional to the
+ * length of the program times the length of the input, instead of
+ * backtracking through the node tree.
+ *
+ * The node tree is translated into a program for a nondeterministic
+ * automaton. All threads advance over the input in lock step, one char
+ * or surrogate pair at a time, and are kept in the order the backtracker
+ * would try them. A thread that reaches an instruction already reached
+ * by a thread of higher priority at the same text index is dropped, so
+ * there is at most one thread per instruction, and the first thread to
+ * reach the end of the program cuts off all those of lower priority.
+ * This gives the same leftmost-first match, with the same groups, as the
+ * backtracker. The same program can also be run depth first, see
+ * backtrack.
+ *
+ * Besides the group bounds, every thread records the text index at which
+ * the current iteration of each repetition started. The backtracker ends
+ * a repetition once an iteration matches the empty string, and the VM
+ * does the same. Inside an unbounded repetition whose body can match the
+ * empty string, a thread that has just started an iteration can still end
+ * it empty, while one that started it earlier cannot, so they are told
+ * apart: each such repetition around an instruction doubles the threads
+ * it may hold at a text index.
+ *
+ * A lookahead is run as a program of its own, depth first, where a thread
+ * reaches it; the instructions it runs at each text index are remembered
+ * until it holds, so that the lookaheads of a search share their work.
+ *
+ * Back references, lookbehinds, possessive quantifiers, independent
+ * groups, grapheme constructs and canonical equivalence cannot be run
+ * this way; for such patterns compile returns UNSUPPORTED. Each of them
+ * needs a thread to see more than the text index it is at: the text
+ * behind it, or where the first way to match an atom ends. So do
+ * lookaheads with groups, and the few other places where the backtracker
+ * keeps groups set by a path that went on to fail, as no thread is left
+ * to carry them. A program in which a char that is read on its own may be
+ * a surrogate, which the backtracker can take from the middle of a pair,
+ * is not run on texts containing surrogates.
+ */
+final class PikeVM {
+
+    /**
+     * The stand-in for the VM of a pattern that it cannot run.
+     */
+    static final PikeVM UNSUPPORTED = new PikeVM(0);
+
+    /**
+     * The largest program compiled. Counted repetitions are unrolled, so
+     * without a limit a pattern such as (a|b){1,100000} would need a huge
+     * program, and per step work, to run.
+     */
+    static final int MAX_PROGRAM = 1 << 14;
+
+    // Reads one char, or a code point as y tells, that satisfies the
+    // predicate in data.
+    static final int CHAR   = 0;
+    // Continues at x, then at y with lower priority.
+    static final int SPLIT  = 1;
+    // Continues at x.
+    static final int JMP    = 2;
+    // Stores the text index in slot x.
+    static final int SAVE   = 3;
+    // Continues at y if slot x holds the text index, else at the next
+    // instruction. Ends a repetition whose iteration matched nothing.
+    static final int CHECK  = 4;
+    // Continues if the zero width assertion in data holds.
+    static final int ASSERT = 5;
+    // Continues unless the next char is a '\n'.
+    static final int NOTLF  = 6;
+    // The end of the program.
+    static final int MATCH  = 7;
+    // Reads from x to y chars that satisfy the predicate in data, y being
+    // Pattern.MAX_REPS if there is no upper bound. Only emitted by
+    // compileSmall, for ShiftAnd to count with; the VM cannot run it.
+    static final int COUNT  = 8;
+    // Continues at y if the lookahead in data, whose program starts at the
+    // next instruction and ends at a MATCH with y 1, holds.
+    static final int LOOK   = 9;
+
+    // How a CHAR reads, in its y: one char, as BMP properties and slices
+    // do, a code point, or a code point that fails on reading past the
+    // end of the region, as the slices with supplementary chars do
+    static final int UNIT = 0, POINT = 1, POINT_IN_REGION = 2;
+
+    /**
+     * The most unbounded repetitions whose body can match nothing that an
+     * instruction may lie in, see fresh.
+     */
+    private static final int MAX_FRESH = 3;
+
+    /**
+     * The fewest chars a repetition of one char must be able to read for
+     * compileSmall to emit a COUNT for it instead of unrolling it.
+     */
+    static final int MIN_COUNTED = 8;
+
+    // The data of a CHECK whose iteration can match nothing, either
+    // outright or only where some assertion holds
+    static final Object EMPTY = "empty",
+        EMPTY_IF_ASSERTED = "empty if asserted";
+
+    // Assertion kinds, in x of an ASSERT
+    private static final int BEGIN = 0, END = 1, CARET = 2, UNIXCARET = 3,
+        DOLLAR = 4, UNIXDOLLAR = 5, LASTMATCH = 6, BOUND = 7;
+
+    int[] op = new int[16];
+    int[] x = new int[16];
+    int[] y = new int[16];
+    Object[] data = new Object[16];
+    int size;
+
+    /**
+     * The number of slots per thread: first the bounds of every group,
+     * group 0 included, then the start of the current iteration of each
+     * repetition.
+     */
+    private int slots;
+
+    /**
+     * The number of slots that hold group bounds.
+     */
+    private final int groupSlots;
+
+    /**
+     * Nesting depth of atoms that the backtracker matches on their own,
+     * taking the first way they match: those of Ques, Curly and
+     * GroupCurly.
+     */
+    private int atomic;
+
+    /**
+     * Nesting depth of Loop bodies.
+     */
+    private int loops;
+
+    /**
+     * Whether repetitions of one char are emitted as COUNT instructions.
+     */
+    private final boolean counting;
+
+    /**
+     * The most CHAR and COUNT instructions the program may have, and
+     * whether it may have assertions, see compileSmall.
+     */
+    private final int maxPositions;
+    private final boolean assertions;
+
+    /**
+     * The number of CHAR and COUNT instructions emitted.
+     */
+    private int positions;
+
+    /**
+     * The slot, first instruction and CHECK of each unbounded repetition
+     * whose body can match nothing, as emitted.
+     */
+    private int[] nullable = new int[0];
+
+    /**
+     * For each instruction, the slots of the unbounded repetitions whose
+     * body can match nothing that it lies in, or null if there are none.
+     * Whether each of those holds the current text index is part of what
+     * tells threads apart, so that there are keys of them per text index.
+     */
+    private int[][] fresh;
+    private int keys;
+
+    /**
+     * Whether a CHAR that reads one char may take a surrogate, and whether
+     * the program has lookaheads.
+     */
+    boolean splitsPairs;
+    private boolean looks;
+
+    /**
+     * Whether searches skip the starts between the chars of a surrogate
+     * pair, as StartS does.
+     */
+    private boolean pairStarts;
+
+    private PikeVM(int groupCount) {
+        this(groupCount, false, Integer.MAX_VALUE, true);
+    }
+
+    private PikeVM(int groupCount, boolean counting, int maxPositions,
+                   boolean assertions) {
+        slots = groupSlots = groupCount * 2;
+        this.counting = counting;
+        this.maxPositions = maxPositions;
+        this.assertions = assertions;
+    }
+
+    /**
+     * Thrown while compiling a construct the VM cannot run.
+     */
+    private static final class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Returns the VM for the given pattern, or UNSUPPORTED if the pattern
+     * uses a construct the VM cannot run.
+     */
+    static PikeVM compile(Pattern p) {
+        return compile(new PikeVM(Math.max(p.capturingGroupCount, 1)), p);
+    }
+
+    /**
+     * Returns a program for the given pattern with no assertions and at
+     * most maxPositions CHAR and COUNT instructions, or UNSUPPORTED. If
+     * counting is true, the large counted repetitions of one char are
+     * COUNT instructions, which the VM cannot run; only the automata that
+     * tell whether there is a match read them. Compiling stops at the
+     * first instruction that rules the pattern out, so telling that a
+     * pattern does not qualify costs little more than reading it up to
+     * its first assertion.
+     */
+    static PikeVM compileSmall(Pattern p, int maxPositions,
+                               boolean counting) {
+        return compile(new PikeVM(Math.max(p.capturingGroupCount, 1),
+                                  counting, maxPositions, false), p);
+    }
+
+    private static PikeVM compile(PikeVM vm, Pattern p) {
+        try {
+            vm.compile(p.matchRoot, null);
+            vm.link();
+        } catch (Unsupported e) {
+            return UNSUPPORTED;
+        }
+        vm.pairStarts = p.root instanceof Pattern.StartS;
+        return vm;
+    }
+
+    /**
+     * Works out which threads to tell apart, see fresh.
+     */
+    private void link() {
+        keys = size;
+        if (nullable.length == 0)
+            return;
+        fresh = new int[size][];
+        int depth = 0;
+        for (int n = 0; n < nullable.length; n += 3) {
+            for (int pc = nullable[n + 1]; pc <= nullable[n + 2]; pc++) {
+                int[] regs = fresh[pc] == null ? new int[1]
+                    : Arrays.copyOf(fresh[pc], fresh[pc].length + 1);
+                regs[regs.length - 1] = nullable[n];
+                fresh[pc] = regs;
+                depth = Math.max(depth, regs.length);
+            }
+        }
+        if (depth > MAX_FRESH)
+            throw new Unsupported();
+        keys = size << depth;
+    }
+
+    //
+    // Compiler
+    //
+
+    private int emit(int o, int a, int b, Object d) {
+        if (size == MAX_PROGRAM ||
+            (o == CHAR || o == COUNT) && ++positions > maxPositions ||
+            (o == ASSERT || o == NOTLF || o == LOOK) && !assertions)
+            throw new Unsupported();
+        if (size == op.length) {
+            op = Arrays.copyOf(op, size * 2);
+            x = Arrays.copyOf(x, size * 2);
+            y = Arrays.copyOf(y, size * 2);
+            data = Arrays.copyOf(data, size * 2);
+        }
+        op[size] = o;
+        x[size] = a;
+        y[size] = b;
+        data[size] = d;
+        return size++;
+    }
+
+    private void emitChar(CharPredicate p) {
+        emitChar(p, UNIT);
+    }
+
+    private void emitChar(CharPredicate p, int reads) {
+        if (reads == UNIT && !splitsPairs && takesSurrogate(p))
+            splitsPairs = true;
+        emit(CHAR, 0, reads, p);
+    }
+
+    /**
+     * Tells if the predicate holds for some surrogate char.
+     */
+    private static boolean takesSurrogate(CharPredicate p) {
+        if (p instanceof Pattern.CharClass) {
+            int[] ranges = ((Pattern.CharClass)p).ranges;
+            for (int k = 0; k < ranges.length; k += 2) {
+                if (ranges[k] <= Character.MAX_SURROGATE &&
+                    ranges[k + 1] >= Character.MIN_SURROGATE)
+                    return true;
+            }
+            return false;
+        }
+        for (int c = Character.MIN_SURROGATE; c <= Character.MAX_SURROGATE; c++) {
+            if (p.is(c))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Emits the code for the nodes from node on, up to but not including
+     * stop, or up to the end of the pattern.
+     */
+    private void compile(Node node, Node stop) {
+        while (node != stop) {
+            if (node == Pattern.lastAccept) {
+                emit(MATCH, 0, 0, null);
+                return;
+            } else if (node instanceof Pattern.GroupHead) {
+                int g = ((Pattern.GroupHead)node).tail.groupIndex;
+                if (g > 0)
+                    emit(SAVE, g, 0, null);
+                node = node.next;
+            } else if (node instanceof Pattern.GroupTail) {
+                int g = ((Pattern.GroupTail)node).groupIndex;
+                if (g > 0)
+                    emit(SAVE, g + 1, 0, null);
+                node = node.next;
+            } else if (node instanceof Pattern.BranchConn) {
+                node = node.next;
+            } else if (node instanceof Pattern.CharProperty) {
+                emitChar(((Pattern.CharProperty)node).predicate,
+                         node instanceof Pattern.BmpCharProperty ? UNIT
+                                                                 : POINT);
+                node = node.next;
+            } else if (node instanceof Pattern.CharPropertyGreedy) {
+                Pattern.CharPropertyGreedy cpg = (Pattern.CharPropertyGreedy)node;
+                int reads = node instanceof Pattern.BmpCharPropertyGreedy
+                    ? UNIT : POINT;
+                for (int k = 0; k < cpg.cmin; k++)
+                    emitChar(cpg.predicate, reads);
+                int split = emit(SPLIT, size + 1, 0, null);
+                emitChar(cpg.predicate, reads);
+                emit(JMP, split, 0, null);
+                y[split] = size;
+                node = node.next;
+            } else if (node instanceof Pattern.SliceNode) {
+                slice((Pattern.SliceNode)node);
+                node = node.next;
+            } else if (node instanceof Pattern.LineEnding) {
+                lineEnding();
+                node = node.next;
+            } else if (node instanceof Pattern.Begin) {
+                emit(ASSERT, BEGIN, 0, node);
+                node = node.next;
+            } else if (node instanceof Pattern.End) {
+                emit(ASSERT, END, 0, node);
+                node = node.next;
+            } else if (node instanceof Pattern.Caret) {
+                emit(ASSERT, CARET, 0, node);
+                node = node.next;
+            } else if (node instanceof Pattern.UnixCaret) {
+                emit(ASSERT, UNIXCARET, 0, node);
+                node = node.next;
+            } else if (node instanceof Pattern.Dollar) {
+                emit(ASSERT, DOLLAR, 0, node);
+                node = node.next;
+            } else if (node instanceof Pattern.UnixDollar) {
+                emit(ASSERT, UNIXDOLLAR, 0, node);
+                node = node.next;
+            } else if (node instanceof Pattern.LastMatch) {
+                emit(ASSERT, LASTMATCH, 0, node);
+                node = node.next;
+            } else if (node instanceof Pattern.Bound) {
+                emit(ASSERT, BOUND, 0, node);
+                node = node.next;
+            } else if (node instanceof Pattern.Pos) {
+                look(((Pattern.Pos)node).cond, node);
+                node = node.next;
+            } else if (node instanceof Pattern.Neg) {
+                look(((Pattern.Neg)node).cond, node);
+                node = node.next;
+            } else if (node instanceof Pattern.Branch) {
+                branch((Pattern.Branch)node);
+                node = ((Pattern.Branch)node).conn.next;
+            } else if (node instanceof Pattern.Ques) {
+                ques((Pattern.Ques)node);
+                node = node.next;
+            } else if (node instanceof Pattern.Curly) {
+                Pattern.Curly c = (Pattern.Curly)node;
+                if (c.type == Pattern.Qtype.POSSESSIVE)
+                    throw new Unsupported();
+                if (counted(c.atom, Pattern.accept, c.cmin, c.cmax)) {
+                    node = node.next;
+                    continue;
+                }
+                repeat(() -> atom(c.atom, Pattern.accept), c.cmin, c.cmax,
+                       c.type == Pattern.Qtype.GREEDY, false);
+                node = node.next;
+            } else if (node instanceof Pattern.GroupCurly) {
+                Pattern.GroupCurly gc = (Pattern.GroupCurly)node;
+                // when a later iteration of the loop runs it again, the
+                // backtracker leaves the group of the first iteration
+                // behind on the way out
+                if (gc.type == Pattern.Qtype.POSSESSIVE ||
+                    gc.capture && loops > 0)
+                    throw new Unsupported();
+                Node tail = tailOf(gc);
+                if (counted(gc.atom, tail, gc.cmin, gc.cmax)) {
+                    node = node.next;
+                    continue;
+                }
+                int reg = slots;
+                int start = size;
+                repeat(() -> {
+                    if (gc.capture)
+                        emit(SAVE, gc.groupIndex, 0, null);
+                    atom(gc.atom, tail);
+                    if (gc.capture)
+                        emit(SAVE, gc.groupIndex + 1, 0, null);
+                }, gc.cmin, gc.cmax, gc.type == Pattern.Qtype.GREEDY, false);
+                // the backtracker gives the group back the bounds it had
+                // before an iteration that matched nothing
+                for (int pc = start; gc.capture && pc < size; pc++) {
+                    if (op[pc] == CHECK && x[pc] == reg && data[pc] != null)
+                        throw new Unsupported();
+                }
+                node = node.next;
+            } else if (node instanceof Pattern.Prolog) {
+                Pattern.Loop loop = ((Pattern.Prolog)node).loop;
+                repeat(() -> {
+                    loops++;
+                    compile(loop.body, loop);
+                    loops--;
+                }, loop.cmin, loop.cmax, !(loop instanceof Pattern.LazyLoop),
+                       true);
+                node = loop.next;
+            } else {
+                throw new Unsupported();
+            }
+        }
+    }
+
+    /**
+     * Emits a COUNT for a repetition of atom, up to stop, between cmin and
+     * cmax times, if this is a program for counting and the atom is one
+     * char read often enough to be worth counting. Returns false, having
+     * emitted nothing, otherwise.
+     */
+    private boolean counted(Node atom, Node stop, int cmin, int cmax) {
+        if (!counting || !(atom instanceof Pattern.CharProperty) ||
+            atom.next != stop)
+            return false;
+        int reads = cmax == Pattern.MAX_REPS ? cmin : cmax;
+        if (reads < MIN_COUNTED)
+            return false;
+        emit(COUNT, cmin, cmax, ((Pattern.CharProperty)atom).predicate);
+        return true;
+    }
+
+    /**
+     * Compiles the atom of a Curly or GroupCurly. The backtracker keeps
+     * the groups an atom sets even when the repetition then fails, which
+     * threads cannot do, so atoms with groups are not supported.
+     */
+    private void atom(Node atom, Node stop) {
+        int start = size;
+        atomic++;
+        compile(atom, stop);
+        atomic--;
+        for (int pc = start; pc < size; pc++) {
+            if (op[pc] == SAVE && x[pc] < groupSlots)
+                throw new Unsupported();
+        }
+    }
+
+    private void slice(Pattern.SliceNode node) {
+        for (int c : node.buffer) {
+            if (node instanceof Pattern.SliceI) {
+                emitChar(ch -> c == ch || c == ASCII.toLower(ch));
+            } else if (node instanceof Pattern.SliceU) {
+                emitChar(ch -> c == ch ||
+                         c == Character.toLowerCase(Character.toUpperCase(ch)));
+            } else if (node instanceof Pattern.SliceIS) {
+                Pattern.SliceIS sis = (Pattern.SliceIS)node;
+                emitChar(ch -> c == ch || c == sis.toLower(ch),
+                         POINT_IN_REGION);
+            } else if (node instanceof Pattern.SliceS) {
+                emitChar(ch -> c == ch, POINT_IN_REGION);
+            } else {
+                emitChar(ch -> c == ch);
+            }
+        }
+    }
+
+    /**
+     * Emits a lookahead on cond, whose program follows the LOOK. The
+     * backtracker keeps the groups set by a lookahead that held even when
+     * the path through it goes on to fail, so lookaheads with groups are
+     * not supported.
+     */
+    private void look(Node cond, Node node) {
+        int look = emit(LOOK, 0, 0, node);
+        compile(cond, Pattern.accept);
+        emit(MATCH, 0, 1, null);
+        for (int pc = look + 1; pc < size; pc++) {
+            if (op[pc] == SAVE && x[pc] < groupSlots)
+                throw new Unsupported();
+        }
+        y[look] = size;
+        looks = true;
+    }
+
+    /**
+     * A \R: a "\r\n", tried first, or any single line terminator. Taken
+     * as an atom, the lone '\r' only matches when no '\n' follows.
+     */
+    private void lineEnding() {
+        int split = emit(SPLIT, size + 1, 0, null);
+        emitChar(ch -> ch == '\r');
+        emitChar(ch -> ch == '\n');
+        int jmp = emit(JMP, 0, 0, null);
+        y[split] = size;
+        if (atomic > 0) {
+            int split2 = emit(SPLIT, size + 1, 0, null);
+            emitChar(ch -> ch == '\r');
+            emit(NOTLF, 0, 0, null);
+            int jmp2 = emit(JMP, 0, 0, null);
+            y[split2] = size;
+            emitChar(ch -> ch == 0x0A || ch == 0x0B || ch == 0x0C ||
+                     ch == 0x85 || ch == 0x2028 || ch == 0x2029);
+            x[jmp2] = size;
+        } else {
+            emitChar(ch -> ch == 0x0A || ch == 0x0B || ch == 0x0C ||
+                     ch == 0x0D || ch == 0x85 || ch == 0x2028 ||
+                     ch == 0x2029);
+        }
+        x[jmp] = size;
+    }
+
+    private void branch(Pattern.Branch b) {
+        int[] jumps = new int[b.size];
+        for (int n = 0; n < b.size; n++) {
+            int split = -1;
+            if (n < b.size - 1)
+                split = emit(SPLIT, size + 1, 0, null);
+            if (b.atoms[n] != null)
+                compile(b.atoms[n], b.conn);
+            jumps[n] = emit(JMP, 0, 0, null);
+            if (split != -1)
+                y[split] = size;
+        }
+        for (int n = 0; n < b.size; n++)
+            x[jumps[n]] = size;
+    }
+
+    private void ques(Pattern.Ques q) {
+        if (q.type != Pattern.Qtype.GREEDY && q.type != Pattern.Qtype.LAZY)
+            throw new Unsupported();
+        int split = emit(SPLIT, size + 1, size + 1, null);
+        atomic++;
+        compile(q.atom, Pattern.accept);
+        atomic--;
+        if (q.type == Pattern.Qtype.GREEDY)
+            y[split] = size;
+        else
+            x[split] = size;
+    }
+
+    /**
+     * Emits a repetition of the code emitted by body, between cmin and
+     * cmax times, unrolling all but an unbounded tail. An iteration that
+     * matches the empty string ends the repetition; if checkRequired is
+     * false, the cmin required iterations are exempt, as they are for
+     * Curly and GroupCurly.
+     */
+    private void repeat(Runnable body, int cmin, int cmax, boolean greedy,
+                        boolean checkRequired) {
+        int reg = slots++;
+        int[] exits = new int[16];
+        int count = 0;
+        for (int k = 0; k < cmin; k++) {
+            emit(SAVE, reg, 0, null);
+            int start = size;
+            body.run();
+            if (checkRequired) {
+                exits = grow(exits, count);
+                exits[count++] = check(reg, start);
+            }
+        }
+        int loop = -1;
+        for (int k = cmin; k < cmax; k++) {
+            int split = greedy ? emit(SPLIT, size + 1, 0, null)
+                               : emit(SPLIT, 0, size + 1, null);
+            exits = grow(exits, count);
+            exits[count++] = split;
+            emit(SAVE, reg, 0, null);
+            int start = size;
+            body.run();
+            exits = grow(exits, count);
+            exits[count++] = check(reg, start);
+            if (cmax == Pattern.MAX_REPS) {
+                // a thread that loops back without reading anything must
+                // not find the body's instructions taken by the thread it
+                // came from, or the empty iteration the backtracker tries
+                // first is lost
+                if (data[exits[count - 1]] != null) {
+                    int n = nullable.length;
+                    nullable = Arrays.copyOf(nullable, n + 3);
+                    nullable[n] = reg;
+                    nullable[n + 1] = start;
+                    nullable[n + 2] = exits[count - 1];
+                }
+                loop = split;
+                break;
+            }
+        }
+        if (loop != -1)
+            emit(JMP, loop, 0, null);
+        for (int n = 0; n < count; n++) {
+            int pc = exits[n];
+            if (op[pc] == SPLIT && !greedy)
+                x[pc] = size;
+            else
+                y[pc] = size;
+        }
+    }
+
+    /**
+     * Emits the CHECK that ends an iteration of a repetition whose body
+     * starts at start. Its data tells whether the body can match nothing:
+     * null if it cannot, else EMPTY or, when every way to match nothing
+     * passes an assertion, EMPTY_IF_ASSERTED.
+     */
+    private int check(int reg, int start) {
+        int pc = emit(CHECK, reg, 0, null);
+        // 2 if reached without passing an assertion, 1 if only by
+        // passing one
+        int[] seen = new int[pc - start + 1];
+        int[] work = new int[16];
+        int sp = 0;
+        work[sp++] = start;
+        work[sp++] = 2;
+        while (sp > 0) {
+            int free = work[--sp];
+            int at = work[--sp];
+            if (at < start || at > pc || seen[at - start] >= free)
+                continue;
+            seen[at - start] = free;
+            if (at == pc)
+                continue;
+            if (sp + 4 > work.length)
+                work = Arrays.copyOf(work, work.length * 2);
+            switch (op[at]) {
+            case CHAR:
+            case MATCH:
+                break;
+            case COUNT:
+                if (x[at] == 0) {
+                    work[sp++] = at + 1;
+                    work[sp++] = free;
+                }
+                break;
+            case JMP:
+                work[sp++] = x[at];
+                work[sp++] = free;
+                break;
+            case SPLIT:
+                work[sp++] = x[at];
+                work[sp++] = free;
+                work[sp++] = y[at];
+                work[sp++] = free;
+                break;
+            case CHECK:
+                work[sp++] = y[at];
+                work[sp++] = free;
+                work[sp++] = at + 1;
+                work[sp++] = free;
+                break;
+            case ASSERT:
+            case NOTLF:
+                work[sp++] = at + 1;
+                work[sp++] = 1;
+                break;
+            case LOOK:
+                work[sp++] = y[at];
+                work[sp++] = 1;
+                break;
+            default:
+                work[sp++] = at + 1;
+                work[sp++] = free;
+            }
+        }
+        if (seen[pc - start] > 0)
+            data[pc] = seen[pc - start] == 2 ? EMPTY : EMPTY_IF_ASSERTED;
+        return pc;
+    }
+
+    private static int[] grow(int[] a, int count) {
+        return count == a.length ? Arrays.copyOf(a, count * 2) : a;
+    }
+
+    /**
+     * Finds the GroupTail that ends the atom of a GroupCurly.
+     */
+    private static Node tailOf(Pattern.GroupCurly gc) {
+        Node n = gc.atom;
+        while (n != null) {
+            if (n instanceof Pattern.GroupTail &&
+                ((Pattern.GroupTail)n).localIndex == gc.localIndex)
+                return n;
+            if (n instanceof Pattern.Branch)
+                n = ((Pattern.Branch)n).conn;
+            else if (n instanceof Pattern.Prolog)
+                n = ((Pattern.Prolog)n).loop;
+            else if (n == Pattern.accept || n == Pattern.lastAccept)
+                break;
+            n = n.next;
+        }
+        throw new Unsupported();
+    }
+
+    //
+    // Execution
+    //
+
+    /**
+     * The threads at one text index, in priority order, with their slots.
+     * A thread is known by its key: its instruction, and whether the
+     * iterations around it that can match nothing have just started, see
+     * fresh.
+     */
+    private static final class Threads {
+        final int[] sparse;
+        final int[] dense;
+        int[] caps;
+        int count;
+
+        Threads(int keys, int size, int slots) {
+            sparse = new int[keys];
+            dense = new int[keys];
+            caps = new int[size * slots];
+        }
+
+        boolean contains(int key) {
+            int k = sparse[key];
+            return k < count && dense[k] == key;
+        }
+
+        int add(int key) {
+            sparse[key] = count;
+            dense[count] = key;
+            return count++;
+        }
+    }
+
+    /**
+     * One bit per key and text index, and the words that have bits set,
+     * so that clearing it takes no longer than setting them did.
+     */
+    private static final class Bitmap {
+        long[] words = new long[0];
+        int[] set = new int[16];
+        int count;
+
+        /**
+         * Makes room for the given number of bits, all clear.
+         */
+        void fit(long bits) {
+            int n = (int)((bits + 63) >>> 6);
+            if (words.length < n)
+                words = new long[n];
+        }
+
+        /**
+         * Sets the bit, returning false if it was set already.
+         */
+        boolean mark(int bit) {
+            int w = bit >>> 6;
+            long word = words[w];
+            if ((word & (1L << bit)) != 0)
+                return false;
+            if (word == 0) {
+                if (count == set.length)
+                    set = Arrays.copyOf(set, count * 2);
+                set[count++] = w;
+            }
+            words[w] = word | 1L << bit;
+            return true;
+        }
+
+        void clear() {
+            for (int k = 0; k < count; k++)
+                words[set[k]] = 0L;
+            count = 0;
+        }
+    }
+
+    /**
+     * The storage a matcher needs to run this VM, kept between searches.
+     */
+    final class State {
+        // the threads at the current text index and at the next two, as
+        // a surrogate pair is read at once
+        private Threads clist = new Threads(keys, size, slots);
+        private Threads nlist = new Threads(keys, size, slots);
+        private Threads plist = new Threads(keys, size, slots);
+        private final int[] caps = new int[slots];
+        private final int[] best = new int[slots];
+        // frames of (pc, -1, 0) to explore and (-1, slot, value) to
+        // restore a slot
+        private int[] stack = new int[48];
+        // frames of backtrack: (pc, index) for a choice still open and
+        // (~slot, value) to restore a slot
+        private int[] track = new int[64];
+        // the keys run by backtrack at each text index, and those run by
+        // the lookaheads, if there is room for them; both are indexed
+        // from base, the index the search started at
+        private final Bitmap seen = new Bitmap();
+        private final Bitmap looked = new Bitmap();
+        private boolean lookMemo;
+        private int base;
+
+        PikeVM vm() {
+            return PikeVM.this;
+        }
+    }
+
+    /**
+     * Looks for a match starting at from, or at the first index after
+     * from that has one unless anchored, and sets up the matcher with it
+     * as the backtracker would. Threads that read past the end of the
+     * region set hitEnd, and the assertions set hitEnd and requireEnd as
+     * they do when backtracking; as the VM tries its alternatives in a
+     * different order, both may end up set where the backtracker leaves
+     * them clear.
+     */
+    boolean match(Matcher matcher, State st, int from, boolean anchored,
+                  CharSequence seq) {
+        int to = matcher.to;
+        boolean matched = false;
+        int end = -1;
+        prepare(matcher, st, from);
+        Threads clist = st.clist;
+        Threads nlist = st.nlist;
+        Threads plist = st.plist;
+        clist.count = nlist.count = plist.count = 0;
+        for (int pos = from; ; pos++) {
+            if (!matched && pos <= to &&
+                (pos == from || !anchored && startsAt(pos, seq))) {
+                Arrays.fill(st.caps, -1);
+                st.caps[0] = pos;
+                add(st, clist, 0, pos, matcher, seq);
+            }
+            if (clist.count == 0 && nlist.count == 0 && plist.count == 0 &&
+                (matched || anchored || pos >= to))
+                break;
+            for (int k = 0; k < clist.count; k++) {
+                int pc = clist.dense[k] % size;
+                if (op[pc] == MATCH) {
+                    if (matcher.acceptMode == Matcher.ENDANCHOR && pos != to)
+                        continue;
+                    System.arraycopy(clist.caps, k * slots, st.best, 0, slots);
+                    matched = true;
+                    end = pos;
+                    // threads of lower priority are cut off
+                    break;
+                }
+                // the list also marks the instructions passed on the way
+                if (op[pc] != CHAR)
+                    continue;
+                int next = read(matcher, pc, pos, seq);
+                if (next >= 0) {
+                    // all threads that read here read as far, but for
+                    // those that started in the middle of a pair
+                    System.arraycopy(clist.caps, k * slots, st.caps, 0, slots);
+                    add(st, next == pos + 1 ? nlist : plist, pc + 1, next,
+                        matcher, seq);
+                }
+            }
+            Threads done = clist;
+            clist = nlist;
+            nlist = plist;
+            plist = done;
+            plist.count = 0;
+        }
+        st.clist = clist;
+        st.nlist = nlist;
+        st.plist = plist;
+        st.looked.clear();
+        if (!matched) {
+            if (!anchored)
+                matcher.hitEnd = true;
+            return false;
+        }
+        found(matcher, st.best, end);
+        return true;
+    }
+
+    /**
+     * Makes room in st to remember what the lookaheads of a search from
+     * from have run, unless the text is too long for it.
+     */
+    private void prepare(Matcher matcher, State st, int from) {
+        st.base = from;
+        long bits = (long)keys * (matcher.getTextLength() - from + 2);
+        st.lookMemo = looks && bits <= Matcher.MEMO_BITMAP_LIMIT;
+        if (st.lookMemo)
+            st.looked.fit(bits);
+    }
+
+    /**
+     * Tells if a search tries a start at text index pos after its first;
+     * StartS skips those between the chars of a surrogate pair.
+     */
+    private boolean startsAt(int pos, CharSequence seq) {
+        return !pairStarts || pos >= seq.length() ||
+            !Character.isLowSurrogate(seq.charAt(pos)) ||
+            !Character.isHighSurrogate(seq.charAt(pos - 1));
+    }
+
+    /**
+     * Runs the CHAR at pc at text index pos, returning the index after
+     * what it read, or -1 if it fails. A code point is read as
+     * CharProperty and SliceS read one, so that it may end past the end
+     * of the region.
+     */
+    private int read(Matcher matcher, int pc, int pos, CharSequence seq) {
+        if (pos >= matcher.to) {
+            matcher.hitEnd = true;
+            return -1;
+        }
+        CharPredicate p = (CharPredicate)data[pc];
+        if (y[pc] == UNIT)
+            return p.is(seq.charAt(pos)) ? pos + 1 : -1;
+        int c = Character.codePointAt(seq, pos);
+        if (!p.is(c))
+            return -1;
+        int next = pos + Character.charCount(c);
+        if (y[pc] == POINT_IN_REGION && next > matcher.to) {
+            matcher.hitEnd = true;
+            return -1;
+        }
+        return next;
+    }
+
+    /**
+     * Returns the key of a thread at pc, with the given slots, at text
+     * index pos.
+     */
+    private int key(int pc, int[] caps, int pos) {
+        int[] regs = fresh == null ? null : fresh[pc];
+        if (regs == null)
+            return pc;
+        int key = pc;
+        for (int k = 0; k < regs.length; k++) {
+            if (caps[regs[k]] == pos)
+                key += size << k;
+        }
+        return key;
+    }
+
+    /**
+     * Sets up the matcher with the match ending at end whose slots are in
+     * caps.
+     */
+    private void found(Matcher matcher, int[] caps, int end) {
+        int[] groups = matcher.groups;
+        System.arraycopy(caps, 2, groups, 2, groupSlots - 2);
+        matcher.first = caps[0];
+        matcher.last = end;
+        groups[0] = matcher.first;
+        groups[1] = end;
+    }
+
+    /**
+     * Looks for a match as match does, but by backtracking through the
+     * program depth first, which tries the alternatives in the order the
+     * backtracker does, and so sets hitEnd and requireEnd as it would.
+     * The choices still open, and the slots to restore on going back to
+     * one, are kept on a stack in st instead of the call stack, so that
+     * no input is too long to match.
+     *
+     * Unless the region is too long for it, a bitmap records the keys
+     * run at each text index. Whatever follows was tried by the path that
+     * got there first, so a later path that gets there gives up, as its
+     * thread would be dropped by the VM, and no instruction runs twice at
+     * the same index with the same iterations just started.
+     */
+    boolean backtrack(Matcher matcher, State st, int from, boolean anchored,
+                      CharSequence seq) {
+        int to = matcher.to;
+        prepare(matcher, st, from);
+        // a code point may end one past the end of the region
+        long bits = (long)keys * (to - from + 2);
+        Bitmap seen = null;
+        if (bits <= Matcher.MEMO_BITMAP_LIMIT) {
+            st.seen.fit(bits);
+            seen = st.seen;
+        }
+        int end = -1;
+        for (int pos = from; ; pos++) {
+            if (pos == from || startsAt(pos, seq)) {
+                Arrays.fill(st.caps, -1);
+                st.caps[0] = pos;
+                end = run(matcher, st, 0, pos, seen, seq, 0);
+                if (end >= 0 || anchored)
+                    break;
+            }
+            if (pos >= to)
+                break;
+        }
+        st.seen.clear();
+        st.looked.clear();
+        if (end < 0) {
+            if (!anchored)
+                matcher.hitEnd = true;
+            return false;
+        }
+        found(matcher, st.caps, end);
+        return true;
+    }
+
+    /**
+     * Runs the program from pc at text index pos, going back to the last
+     * choice left open whenever an instruction fails, with the choices
+     * kept on st.track above sp0. Returns the index at which the first
+     * path to reach MATCH ends, with its slots in st.caps, or -1 if there
+     * is none. The MATCH that ends a lookahead restores the slots its
+     * path has set. The keys run are marked in seen, if not null.
+     */
+    private int run(Matcher matcher, State st, int pc, int pos,
+                    Bitmap seen, CharSequence seq, int sp0) {
+        int to = matcher.to;
+        int[] caps = st.caps;
+        int[] track = st.track;
+        int sp = sp0;
+        for (;;) {
+            fail: {
+                // as in add, whether a CHECK passes depends on the slots
+                if (seen != null && op[pc] != CHECK &&
+                    !seen.mark((pos - st.base) * keys + key(pc, caps, pos)))
+                    break fail;
+                switch (op[pc]) {
+                case CHAR:
+                    pos = read(matcher, pc, pos, seq);
+                    if (pos < 0)
+                        break fail;
+                    pc++;
+                    continue;
+                case SPLIT:
+                    if (sp + 2 > track.length)
+                        st.track = track = Arrays.copyOf(track, track.length * 2);
+                    track[sp++] = y[pc];
+                    track[sp++] = pos;
+                    pc = x[pc];
+                    continue;
+                case JMP:
+                    pc = x[pc];
+                    continue;
+                case SAVE:
+                    if (sp + 2 > track.length)
+                        st.track = track = Arrays.copyOf(track, track.length * 2);
+                    track[sp++] = ~x[pc];
+                    track[sp++] = caps[x[pc]];
+                    caps[x[pc]] = pos;
+                    pc++;
+                    continue;
+                case CHECK:
+                    pc = caps[x[pc]] == pos ? y[pc] : pc + 1;
+                    continue;
+                case ASSERT:
+                    if (!check(x[pc], data[pc], matcher, pos, seq))
+                        break fail;
+                    pc++;
+                    continue;
+                case NOTLF:
+                    if (pos >= to) {
+                        matcher.hitEnd = true;
+                    } else if (seq.charAt(pos) == '\n') {
+                        break fail;
+                    }
+                    pc++;
+                    continue;
+                case LOOK:
+                    if (!look(matcher, st, pc, pos, sp, seq))
+                        break fail;
+                    // the lookahead may have grown it
+                    track = st.track;
+                    pc = y[pc];
+                    continue;
+                default:
+                    if (y[pc] != 0) {
+                        while (sp > sp0) {
+                            int b = track[--sp];
+                            int a = track[--sp];
+                            if (a < 0)
+                                caps[~a] = b;
+                        }
+                        return pos;
+                    }
+                    if (matcher.acceptMode == Matcher.ENDANCHOR && pos != to)
+                        break fail;
+                    return pos;
+                }
+            }
+            // go back to the last choice, restoring the slots set since
+            for (;;) {
+                if (sp == sp0)
+                    return -1;
+                int b = track[--sp];
+                int a = track[--sp];
+                if (a < 0) {
+                    caps[~a] = b;
+                } else {
+                    pc = a;
+                    pos = b;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells if the lookahead at pc holds at text index pos, running its
+     * program depth first with the choices kept above sp. Like Pos and
+     * Neg, it reads up to the end of the text if the bounds are
+     * transparent. What a lookahead that failed has run fails again for
+     * any other, so it is remembered for the rest of the search; once one
+     * holds, what it ran is forgotten.
+     */
+    private boolean look(Matcher matcher, State st, int pc, int pos, int sp,
+                         CharSequence seq) {
+        boolean negative = data[pc] instanceof Pattern.Neg;
+        int savedTo = matcher.to;
+        if (matcher.transparentBounds)
+            matcher.to = matcher.getTextLength();
+        // if a negative lookahead holds, more input could make it fail
+        if (negative && pos >= matcher.to)
+            matcher.requireEnd = true;
+        boolean held = run(matcher, st, pc + 1, pos,
+                           st.lookMemo ? st.looked : null, seq, sp) >= 0;
+        matcher.to = savedTo;
+        if (held)
+            st.looked.clear();
+        return held != negative;
+    }
+
+    /**
+     * Adds the thread at pc with the slots in st.caps to list, following
+     * jumps, splits and zero width instructions in priority order, so
+     * that only threads at CHAR and MATCH instructions are stored.
+     */
+    private void add(State st, Threads list, int pc0, int pos,
+                     Matcher matcher, CharSequence seq) {
+        int[] caps = st.caps;
+        int[] stack = st.stack;
+        int sp = 0;
+        stack[sp++] = pc0;
+        stack[sp++] = -1;
+        stack[sp++] = 0;
+        while (sp > 0) {
+            int value = stack[--sp];
+            int slot = stack[--sp];
+            int pc = stack[--sp];
+            if (pc < 0) {
+                caps[slot] = value;
+                continue;
+            }
+            for (;;) {
+                if (op[pc] == CHECK) {
+                    pc = caps[x[pc]] == pos ? y[pc] : pc + 1;
+                    continue;
+                }
+                int key = key(pc, caps, pos);
+                if (list.contains(key))
+                    break;
+                int k = list.add(key);
+                switch (op[pc]) {
+                case JMP:
+                    pc = x[pc];
+                    continue;
+                case SPLIT:
+                    if (sp + 3 > stack.length)
+                        st.stack = stack = Arrays.copyOf(stack, stack.length * 2);
+                    stack[sp++] = y[pc];
+                    stack[sp++] = -1;
+                    stack[sp++] = 0;
+                    pc = x[pc];
+                    continue;
+                case SAVE:
+                    if (sp + 3 > stack.length)
+                        st.stack = stack = Arrays.copyOf(stack, stack.length * 2);
+                    stack[sp++] = -1;
+                    stack[sp++] = x[pc];
+                    stack[sp++] = caps[x[pc]];
+                    caps[x[pc]] = pos;
+                    pc++;
+                    continue;
+                case ASSERT:
+                    if (!check(x[pc], data[pc], matcher, pos, seq))
+                        break;
+                    pc++;
+                    continue;
+                case NOTLF:
+                    if (pos >= matcher.to) {
+                        matcher.hitEnd = true;
+                    } else if (seq.charAt(pos) == '\n') {
+                        break;
+                    }
+                    pc++;
+                    continue;
+                case LOOK:
+                    if (!look(matcher, st, pc, pos, 0, seq))
+                        break;
+                    pc = y[pc];
+                    continue;
+                default:
+                    // CHAR and MATCH wait for the next step
+                    if (list.caps.length < (k + 1) * slots)
+                        list.caps = Arrays.copyOf(list.caps,
+                                                  Math.max(list.caps.length * 2,
+                                                           (k + 1) * slots));
+                    System.arraycopy(caps, 0, list.caps, k * slots, slots);
+                    break;
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Tells if the assertion of the given kind holds at text index i.
+     */
+    static boolean check(int kind, Object node, Matcher matcher,
+                         int i, CharSequence seq) {
+        switch (kind) {
+        case BEGIN:
+            return ((Pattern.Begin)node).check(matcher, i, seq);
+        case END:
+            return ((Pattern.End)node).check(matcher, i, seq);
+        case CARET:
+            return ((Pattern.Caret)node).check(matcher, i, seq);
+        case UNIXCARET:
+            return ((Pattern.UnixCaret)node).check(matcher, i, seq);
+        case DOLLAR:
+            return ((Pattern.Dollar)node).check(matcher, i, seq);
+        case UNIXDOLLAR:
+            return ((Pattern.UnixDollar)node).check(matcher, i, seq);
+        case LASTMATCH:
+            return ((Pattern.LastMatch)node).check(matcher, i, seq);
+        default:
+            Pattern.Bound b = (Pattern.Bound)node;
+            return (b.check(matcher, i, seq) & b.type) > 0;
+        }
+    }
+}
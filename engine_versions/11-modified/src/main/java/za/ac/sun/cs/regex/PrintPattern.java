@@ -135,7 +135,8 @@ class PrintPattern {
                 return;  // stop here, body.next -> loop
             } else if (node instanceof Pattern.Curly) {
                 Pattern.Curly c = (Pattern.Curly)node;
-                str = "Curly " + c.type + " " + toStringRange(c.cmin, c.cmax);
+                str = "Curly " + (c.possessive ? Pattern.Qtype.POSSESSIVE : c.type) +
+                      " " + toStringRange(c.cmin, c.cmax);
                 print(node, str, depth);
                 walk(c.atom, depth);
                 print("/Curly", depth);
@@ -195,7 +196,8 @@ class PrintPattern {
                     pstr = gcp.predicate.toString();
                 else
                     pstr = "Single \"" + pstr + "\"";
-                str = name + " " + pstr + ((gcp.cmin == 0) ? "*" : "+");
+                str = name + " " + pstr + ((gcp.cmin == 0) ? "*" : "+") +
+                      (gcp.possessive ? "+" : "");
                 print(node, str, depth);
             } else if (node instanceof Pattern.BackRef) {
                 str = "GroupBackRef " + ((Pattern.BackRef)node).groupIndex / 2;
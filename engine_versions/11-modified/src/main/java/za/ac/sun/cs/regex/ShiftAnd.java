@@ -0,0 +1,424 @@
+/*
+ * Copyright (c) 2016, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package za.ac.sun.cs.regex;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import za.ac.sun.cs.regex.Pattern.CharPredicate;
+
+/**
+ * Tells whether a small pattern matches by running the program of its
+ * Pike VM as a bit-parallel Glushkov automaton. Every CHAR instruction
+ * of the program is a position, and the positions the threads wait at
+ * are kept as the bits of a long, so programs of at most MAX_POSITIONS
+ * of them are run this way. Reading a char is a table lookup and an and
+ * of the positions that accept it; the positions that follow are mostly
+ * the next one in the program, reached with a shift, and the few others
+ * are or-ed in from a table.
+ *
+ * When unrolling its repetitions gives the program too many positions,
+ * it is compiled for counting instead, so that a large counted repetition
+ * of one char is a single COUNT position rather than a position per
+ * iteration. Its threads all read the same chars, so they differ only in
+ * how many they have read; the position keeps the set of those counts,
+ * as the text indexes the threads entered at, oldest first. A char the
+ * position accepts adds one to every count at once, without touching
+ * the set, and the counts that reach the upper bound are dropped from
+ * its front; any other char empties it. The threads may leave once the
+ * oldest count reaches the lower bound. A set holds at most one entry per
+ * char read since its oldest thread entered, and only while they are
+ * within the bounds, so it grows with the threads that are live, not
+ * with the bounds.
+ *
+ * Like the lazy DFA, it can only tell whether there is a match. It also
+ * tells whether a thread is left waiting for a char at the end of the
+ * region, which is whether the backtracker would have hit the end while
+ * failing to match, as it then tries every way to. Programs with
+ * assertions, and texts containing surrogate chars, are left to the
+ * other engines.
+ *
+ * The automaton does not change once built, so it is safe for use by
+ * multiple concurrent threads. A search takes the counting sets for
+ * itself, and a search that finds them taken makes its own.
+ */
+final class ShiftAnd {
+
+    /**
+     * The results of run.
+     */
+    static final int NO = 0, YES = 1, UNKNOWN = -1;
+
+    /**
+     * Where a match may lie for run: the whole region, a prefix of it,
+     * or anywhere in it.
+     */
+    static final int WHOLE = 0, PREFIX = 1, ANYWHERE = 2;
+
+    /**
+     * The most CHAR and COUNT instructions a program may have, so that
+     * its positions fit in a long.
+     */
+    static final int MAX_POSITIONS = 64;
+
+    /**
+     * The stand-in for the automaton of a pattern that does not fit one.
+     */
+    static final ShiftAnd UNSUPPORTED = new ShiftAnd(0);
+
+    // the predicates of the positions
+    private final CharPredicate[] predicates;
+    // the positions that accept each ASCII char
+    private final long[] ascii = new long[128];
+    // the positions the start of the program reaches
+    private long first;
+    // the positions after which the program can end
+    private long accept;
+    // whether the program can end without reading a char
+    private boolean nullable;
+    // the positions followed by the next position
+    private long shifts;
+    // the positions followed by others, and those others
+    private long jumps;
+    private final long[] follows;
+    // the COUNT positions, with their bounds, the positions that follow
+    // them, and those after which the program can end
+    private long counts;
+    private final int[] lower;
+    private final int[] upper;
+    private long countAccept;
+
+    private final AtomicReference<CountingSet[]> idle =
+        new AtomicReference<>();
+
+    private ShiftAnd(int positions) {
+        predicates = new CharPredicate[positions];
+        follows = new long[positions];
+        lower = new int[positions];
+        upper = new int[positions];
+    }
+
+    /**
+     * Returns the automaton for the given pattern, or UNSUPPORTED if its
+     * program has an assertion or too many positions, or the pattern
+     * cannot be compiled to a program at all.
+     */
+    static ShiftAnd compile(Pattern p) {
+        PikeVM vm = PikeVM.compileSmall(p, MAX_POSITIONS, false);
+        if (vm == PikeVM.UNSUPPORTED) {
+            // the repetitions may unroll to too many positions, or too
+            // large a program, so count the large ones instead
+            vm = PikeVM.compileSmall(p, MAX_POSITIONS, true);
+        }
+        return compile(vm);
+    }
+
+    private static ShiftAnd compile(PikeVM vm) {
+        if (vm == PikeVM.UNSUPPORTED)
+            return UNSUPPORTED;
+        int[] position = new int[vm.size];
+        int n = 0;
+        for (int pc = 0; pc < vm.size; pc++) {
+            if (vm.op[pc] == PikeVM.CHAR || vm.op[pc] == PikeVM.COUNT)
+                position[pc] = n++;
+        }
+        ShiftAnd sa = new ShiftAnd(n);
+        boolean[] seen = reach(vm, 0);
+        sa.first = mask(vm, position, seen);
+        sa.nullable = matches(vm, seen);
+        for (int pc = 0; pc < vm.size; pc++) {
+            if (vm.op[pc] != PikeVM.CHAR && vm.op[pc] != PikeVM.COUNT)
+                continue;
+            int k = position[pc];
+            CharPredicate p = (CharPredicate)vm.data[pc];
+            sa.predicates[k] = p;
+            for (int c = 0; c < 128; c++) {
+                if (p.is(c))
+                    sa.ascii[c] |= 1L << k;
+            }
+            seen = reach(vm, pc + 1);
+            long follow = mask(vm, position, seen);
+            if (vm.op[pc] == PikeVM.COUNT) {
+                sa.counts |= 1L << k;
+                sa.lower[k] = vm.x[pc];
+                sa.upper[k] = vm.y[pc];
+                sa.follows[k] = follow;
+                if (matches(vm, seen))
+                    sa.countAccept |= 1L << k;
+                continue;
+            }
+            if (matches(vm, seen))
+                sa.accept |= 1L << k;
+            if (k + 1 < n && (follow & (1L << (k + 1))) != 0) {
+                sa.shifts |= 1L << k;
+                follow &= ~(1L << (k + 1));
+            }
+            if (follow != 0) {
+                sa.jumps |= 1L << k;
+                sa.follows[k] = follow;
+            }
+        }
+        return sa;
+    }
+
+    /**
+     * Returns the instructions reached from start without reading a
+     * char.
+     */
+    private static boolean[] reach(PikeVM vm, int start) {
+        boolean[] seen = new boolean[vm.size];
+        int[] work = new int[vm.size];
+        int sp = 0;
+        seen[start] = true;
+        work[sp++] = start;
+        while (sp > 0) {
+            int pc = work[--sp];
+            int a, b = -1;
+            switch (vm.op[pc]) {
+            case PikeVM.CHAR:
+            case PikeVM.MATCH:
+                continue;
+            case PikeVM.COUNT:
+                // a repetition that may read nothing can be passed by
+                if (vm.x[pc] != 0)
+                    continue;
+                a = pc + 1;
+                break;
+            case PikeVM.JMP:
+                a = vm.x[pc];
+                break;
+            case PikeVM.SPLIT:
+                a = vm.x[pc];
+                b = vm.y[pc];
+                break;
+            case PikeVM.CHECK:
+                // only whether there is a match matters, see LazyDFA
+                a = pc + 1;
+                if (vm.data[pc] == PikeVM.EMPTY)
+                    b = vm.y[pc];
+                break;
+            default:
+                a = pc + 1;
+            }
+            if (!seen[a]) {
+                seen[a] = true;
+                work[sp++] = a;
+            }
+            if (b != -1 && !seen[b]) {
+                seen[b] = true;
+                work[sp++] = b;
+            }
+        }
+        return seen;
+    }
+
+    private static long mask(PikeVM vm, int[] position, boolean[] seen) {
+        long mask = 0L;
+        for (int pc = 0; pc < vm.size; pc++) {
+            if (seen[pc] && (vm.op[pc] == PikeVM.CHAR ||
+                             vm.op[pc] == PikeVM.COUNT))
+                mask |= 1L << position[pc];
+        }
+        return mask;
+    }
+
+    private static boolean matches(PikeVM vm, boolean[] seen) {
+        for (int pc = 0; pc < vm.size; pc++) {
+            if (seen[pc] && vm.op[pc] == PikeVM.MATCH)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Tells if the pattern matches the region of the matcher from the
+     * text index from on, where mode says. Sets hitEnd if a thread is
+     * left waiting for a char at the end of the region. Returns UNKNOWN
+     * if the text holds a surrogate where it would be read.
+     */
+    int run(Matcher matcher, int from, int mode, CharSequence seq) {
+        if (nullable && mode != WHOLE)
+            return YES;
+        if (counts == 0L)
+            return run(null, matcher, from, mode, seq);
+        CountingSet[] sets = idle.getAndSet(null);
+        if (sets == null) {
+            sets = new CountingSet[predicates.length];
+            for (long m = counts; m != 0L; m &= m - 1)
+                sets[Long.numberOfTrailingZeros(m)] = new CountingSet();
+        }
+        try {
+            for (long m = counts; m != 0L; m &= m - 1)
+                sets[Long.numberOfTrailingZeros(m)].clear();
+            return run(sets, matcher, from, mode, seq);
+        } finally {
+            idle.set(sets);
+        }
+    }
+
+    private int run(CountingSet[] sets, Matcher matcher, int from, int mode,
+                    CharSequence seq) {
+        int to = matcher.to;
+        long ready = first;
+        if (sets != null)
+            ready = enter(sets, ready, from);
+        boolean matched = nullable;
+        int lastChar = -1;
+        long lastMask = 0L;
+        for (int pos = from; pos < to; pos++) {
+            if (ready == 0L)
+                return NO;
+            char c = seq.charAt(pos);
+            long d;
+            if (c < 128) {
+                d = ready & ascii[c];
+            } else {
+                if (Character.isSurrogate(c))
+                    return UNKNOWN;
+                if (c != lastChar) {
+                    lastChar = c;
+                    lastMask = mask(c);
+                }
+                d = ready & lastMask;
+            }
+            matched = (d & accept) != 0L;
+            ready = (d & shifts) << 1;
+            for (long m = d & jumps; m != 0L; m &= m - 1)
+                ready |= follows[Long.numberOfTrailingZeros(m)];
+            if (sets != null) {
+                for (long m = counts; m != 0L; m &= m - 1) {
+                    int k = Long.numberOfTrailingZeros(m);
+                    CountingSet set = sets[k];
+                    if ((d & (1L << k)) == 0L) {
+                        set.clear();
+                        continue;
+                    }
+                    // the counts after reading c are pos + 1 - entry
+                    int oldest = pos + 1 - set.oldest();
+                    if (oldest >= lower[k]) {
+                        ready |= follows[k];
+                        if ((countAccept & (1L << k)) != 0L)
+                            matched = true;
+                    }
+                    if (upper[k] == Pattern.MAX_REPS)
+                        // counts past the lower bound are all alike
+                        set.dropFrom(pos + 1 - lower[k], true);
+                    else
+                        set.dropFrom(pos + 1 - upper[k], false);
+                }
+            }
+            if (matched && mode != WHOLE)
+                return YES;
+            if (mode == ANYWHERE)
+                ready |= first;
+            if (sets != null)
+                ready = enter(sets, ready, pos + 1);
+        }
+        if (ready != 0L)
+            matcher.hitEnd = true;
+        return matched ? YES : NO;
+    }
+
+    /**
+     * Adds a thread with a count of zero to the COUNT positions set in
+     * ready, entered at the text index pos, and returns ready with the
+     * COUNT positions that hold threads set.
+     */
+    private long enter(CountingSet[] sets, long ready, int pos) {
+        for (long m = counts; m != 0L; m &= m - 1) {
+            int k = Long.numberOfTrailingZeros(m);
+            CountingSet set = sets[k];
+            if ((ready & (1L << k)) != 0L)
+                set.add(pos);
+            else if (!set.isEmpty())
+                ready |= 1L << k;
+        }
+        return ready;
+    }
+
+    /**
+     * Returns the positions that accept the non-ASCII char c.
+     */
+    private long mask(char c) {
+        long mask = 0L;
+        for (int k = 0; k < predicates.length; k++) {
+            if (predicates[k].is(c))
+                mask |= 1L << k;
+        }
+        return mask;
+    }
+
+    /**
+     * The text indexes the threads at a COUNT position entered at, oldest
+     * first, in a ring that grows as needed.
+     */
+    private static final class CountingSet {
+        private int[] entries = new int[8];
+        private int head;
+        private int size;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        int oldest() {
+            return entries[head];
+        }
+
+        void add(int entry) {
+            int mask = entries.length - 1;
+            if (size > 0 && entries[(head + size - 1) & mask] == entry)
+                return;
+            if (size == entries.length) {
+                int[] grown = new int[entries.length * 2];
+                for (int n = 0; n < size; n++)
+                    grown[n] = entries[(head + n) & mask];
+                entries = grown;
+                head = 0;
+                mask = entries.length - 1;
+            }
+            entries[(head + size++) & mask] = entry;
+        }
+
+        /**
+         * Drops the threads that entered at or before limit. If keepOne is
+         * true, the newest of them is kept.
+         */
+        void dropFrom(int limit, boolean keepOne) {
+            int mask = entries.length - 1;
+            int keep = keepOne ? 1 : 0;
+            while (size > keep && entries[head] <= limit) {
+                if (keepOne && entries[(head + 1) & mask] > limit)
+                    break;
+                head = (head + 1) & mask;
+                size--;
+            }
+        }
+    }
+}
@@ -0,0 +1,1620 @@
+/*
+ * Copyright (c) 1999, 2018, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+/**
+ * @test
+ * @summary checks this engine against java.util.regex, and the cost of
+ * the searches its matching modes promise to bound
+ * @run main EngineTest
+ */
+
+package za.ac.sun.cs.regex.tests;
+
+import java.util.function.Function;
+import za.ac.sun.cs.regex.*;
+import java.util.Random;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Checks the matches of this engine, in every memo strategy and matcher
+ * mode, against those of java.util.regex, and the growth of the work its
+ * searches do.
+ */
+public class EngineTest {
+
+    private static boolean failure = false;
+    private static int failCount = 0;
+    private static String firstFailure = null;
+
+    /**
+     * Runs the tests on a thread with a deep stack: the plain backtracker
+     * recurses once per char of the exploit strings pumpScalingTest
+     * builds, more deeply than a default stack allows before the JIT has
+     * compiled it.
+     */
+    public static void main(String[] args) throws Exception {
+        Throwable[] thrown = new Throwable[1];
+        Thread t = new Thread(null, () -> {
+            try {
+                runTests();
+            } catch (Throwable e) {
+                thrown[0] = e;
+            }
+        }, "EngineTest", 1L << 28);
+        t.start();
+        t.join();
+        if (thrown[0] instanceof Exception)
+            throw (Exception)thrown[0];
+        if (thrown[0] != null)
+            throw (Error)thrown[0];
+    }
+
+    private static void runTests() throws Exception {
+        jdkCorpusTest();
+        memoStrategyTest();
+        literalSkipTest();
+        firstCharsTest();
+        adaptiveSwitchingTest();
+        lookaroundGroupsTest();
+        lazyDFATest();
+        lookaroundMemoTest();
+        pikeVMTest();
+        iterativeBacktrackingTest();
+        memoStoreTest();
+        memoResetTest();
+        backReferenceMemoTest();
+        curlyMemoTest();
+        analyzeTest();
+        exploitStringTest();
+        pumpScalingTest();
+        startSetTest();
+        boyerMooreTest();
+        literalTrieTest();
+        classTableTest();
+        shiftAndTest();
+        countingTest();
+        possessifyTest();
+        prefixFactoringTest();
+        memoReuseTest();
+
+        if (failure) {
+            throw new
+                RuntimeException("EngineTest failed, 1st failure: " +
+                                 firstFailure);
+        } else {
+            System.err.println("OKAY: All tests passed.");
+        }
+    }
+
+    private static void report(String testName) {
+        int spacesToAdd = 30 - testName.length();
+        StringBuffer paddedNameBuffer = new StringBuffer(testName);
+        for (int i=0; i<spacesToAdd; i++)
+            paddedNameBuffer.append(" ");
+        String paddedName = paddedNameBuffer.toString();
+        System.err.println(paddedName + ": " +
+                           (failCount==0 ? "Passed":"Failed("+failCount+")"));
+        if (failCount > 0) {
+            failure = true;
+
+            if (firstFailure == null) {
+                firstFailure = testName;
+            }
+        }
+
+        failCount = 0;
+    }
+
+    private static Pattern serializedPattern(Pattern p) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(p);
+        oos.close();
+        try (ObjectInputStream ois = new ObjectInputStream(
+                new ByteArrayInputStream(baos.toByteArray()))) {
+            return (Pattern)ois.readObject();
+        }
+    }
+
+    private static void explainFailure(String pattern, String data,
+                                       String expected, String actual) {
+        System.err.println("----------------------------------------");
+        System.err.println("Pattern = "+pattern);
+        System.err.println("Data = "+data);
+        System.err.println("Expected = " + expected);
+        System.err.println("Actual   = " + actual);
+    }
+
+    /**
+     * Reads a line from the input file. Keeps reading lines until a non
+     * empty non comment line is read. If the line contains a \n then
+     * these two characters are replaced by a newline char. If a \\uxxxx
+     * sequence is read then the sequence is replaced by the unicode char.
+     */
+    private static String grabLine(BufferedReader r) throws Exception {
+        int index = 0;
+        String line = r.readLine();
+        while (line.startsWith("//") || line.length() < 1)
+            line = r.readLine();
+        while ((index = line.indexOf("\\n")) != -1) {
+            StringBuffer temp = new StringBuffer(line);
+            temp.replace(index, index+2, "\n");
+            line = temp.toString();
+        }
+        while ((index = line.indexOf("\\u")) != -1) {
+            StringBuffer temp = new StringBuffer(line);
+            String value = temp.substring(index+2, index+6);
+            char aChar = (char)Integer.parseInt(value, 16);
+            String unicodeChar = "" + aChar;
+            temp.replace(index, index+6, unicodeChar);
+            line = temp.toString();
+        }
+
+        return line;
+    }
+
+    // Checks against java.util.regex
+
+    /**
+     * A way to set up a matcher of this engine before it searches, and
+     * whether it has to leave hitEnd and requireEnd as java.util.regex
+     * does.
+     */
+    private static final class Mode {
+        final String name;
+        final Function<Matcher, Matcher> setUp;
+        final boolean exactEnds;
+
+        Mode(String name, Function<Matcher, Matcher> setUp, boolean exactEnds) {
+            this.name = name;
+            this.setUp = setUp;
+            this.exactEnds = exactEnds;
+        }
+    }
+
+    /**
+     * The modes checkAgainstJdk matches in, besides backtracking with
+     * each memo strategy.
+     */
+    private static final List<Mode> modes = List.of(
+        new Mode("Pike VM", m -> m.usePikeVM(true), false),
+        new Mode("iterative", m -> m.useIterativeBacktracking(true), true),
+        new Mode("look around memo", m -> m.useLookaroundMemo(true), true),
+        new Mode("lazy DFA", m -> m.useLazyDFA(true), true),
+        new Mode("adaptive", m -> m.useAdaptiveSwitching(true), true));
+
+    /**
+     * Matches regex against input with this engine, in every mode and
+     * with every memo strategy, and with java.util.regex, and counts a
+     * failure for each way in which they do not find the same matches
+     * with the same groups, or leave hitEnd and requireEnd different.
+     * Besides the matches of find, those of matches, lookingAt, and of
+     * find in a region one code point in from each end are compared.
+     */
+    private static void checkAgainstJdk(String regex, int flags,
+                                        String input) {
+        java.util.regex.Pattern jp = java.util.regex.Pattern.compile(regex, flags);
+        String expected = trace(jp.matcher(input), input, true);
+        String coarse = trace(jp.matcher(input), input, false);
+        List<Object> setUps = new ArrayList<>();
+        setUps.add(null);
+        setUps.addAll(Arrays.asList(Pattern.MemoStrategy.values()));
+        setUps.addAll(modes);
+        for (Object setUp : setUps) {
+            String name = "backtracking";
+            Pattern p;
+            Function<Matcher, Matcher> f = m -> m;
+            boolean ends = true;
+            if (setUp instanceof Pattern.MemoStrategy) {
+                name = setUp + " memo";
+                p = Pattern.compile(regex, flags, (Pattern.MemoStrategy)setUp);
+            } else {
+                p = Pattern.compile(regex, flags);
+                if (setUp != null) {
+                    Mode mode = (Mode)setUp;
+                    name = mode.name;
+                    f = mode.setUp;
+                    ends = mode.exactEnds;
+                }
+            }
+            String actual;
+            try {
+                actual = trace(f.apply(p.matcher(input)), input, ends);
+            } catch (RuntimeException | StackOverflowError e) {
+                actual = e.toString();
+            }
+            if (!actual.equals(ends ? expected : coarse)) {
+                explainFailure(regex + " (" + name + ")", input,
+                               ends ? expected : coarse, actual);
+                failCount++;
+            }
+        }
+    }
+
+    private static String trace(java.util.regex.Matcher m, String input,
+                                boolean ends) {
+        StringBuilder sb = new StringBuilder();
+        for (int k = 0; k < 2; k++) {
+            if (k == 1) {
+                if (input.codePointCount(0, input.length()) < 2)
+                    break;
+                m.region(input.offsetByCodePoints(0, 1),
+                         input.offsetByCodePoints(input.length(), -1));
+            }
+            while (m.find())
+                sb.append(groups(m)).append(ends(ends, m.hitEnd(), m.requireEnd())).append(';');
+            sb.append(ends(ends, m.hitEnd(), false)).append('|');
+        }
+        m.reset();
+        boolean found = m.matches();
+        sb.append(found ? groups(m) : " none").append(ends(ends, m.hitEnd(), found && m.requireEnd())).append('|');
+        m.reset();
+        found = m.lookingAt();
+        sb.append(found ? groups(m) : " none").append(ends(ends, m.hitEnd(), found && m.requireEnd()));
+        return sb.toString();
+    }
+
+    private static String trace(Matcher m, String input, boolean ends) {
+        StringBuilder sb = new StringBuilder();
+        for (int k = 0; k < 2; k++) {
+            if (k == 1) {
+                if (input.codePointCount(0, input.length()) < 2)
+                    break;
+                m.region(input.offsetByCodePoints(0, 1),
+                         input.offsetByCodePoints(input.length(), -1));
+            }
+            while (m.find())
+                sb.append(groups(m)).append(ends(ends, m.hitEnd(), m.requireEnd())).append(';');
+            sb.append(ends(ends, m.hitEnd(), false)).append('|');
+        }
+        m.reset();
+        boolean found = m.matches();
+        sb.append(found ? groups(m) : " none").append(ends(ends, m.hitEnd(), found && m.requireEnd())).append('|');
+        m.reset();
+        found = m.lookingAt();
+        sb.append(found ? groups(m) : " none").append(ends(ends, m.hitEnd(), found && m.requireEnd()));
+        return sb.toString();
+    }
+
+    // requireEnd has no meaning when no match was found
+    private static String ends(boolean ends, boolean hitEnd, boolean requireEnd) {
+        return ends ? " " + hitEnd + " " + requireEnd : "";
+    }
+
+    private static String groups(java.util.regex.MatchResult r) {
+        StringBuilder sb = new StringBuilder();
+        for (int g = 0; g <= r.groupCount(); g++)
+            sb.append(' ').append(r.start(g)).append(',').append(r.end(g));
+        return sb.toString();
+    }
+
+    private static String groups(MatchResult r) {
+        StringBuilder sb = new StringBuilder();
+        for (int g = 0; g <= r.groupCount(); g++)
+            sb.append(' ').append(r.start(g)).append(',').append(r.end(g));
+        return sb.toString();
+    }
+
+    /**
+     * Runs checkAgainstJdk on the cases of the test files, with their
+     * inputs and with a few random strings of the code points in the
+     * pattern and input. The strings are drawn from a generator seeded
+     * with the pattern, so that a failure can be repeated.
+     */
+    private static void jdkCorpusTest() throws Exception {
+        for (String fileName : List.of("TestCases.txt", "BMPTestCases.txt",
+                                       "SupplementaryTestCases.txt")) {
+            File testCases = new File(
+                    System.getProperty("user.dir", ".") + "/src/main/java/za/ac/sun/cs/regex/tests",
+                    fileName);
+            BufferedReader r = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(testCases)));
+            while (r.readLine() != null) {
+                String patternString = grabLine(r);
+                String dataString = grabLine(r);
+                grabLine(r);
+                String regex = patternString;
+                int flags = 0;
+                if (patternString.startsWith("'")) {
+                    int break1 = patternString.lastIndexOf("'");
+                    String flagString = patternString.substring(break1 + 1);
+                    regex = patternString.substring(1, break1);
+                    if (flagString.equals("i"))
+                        flags = Pattern.CASE_INSENSITIVE;
+                    else if (flagString.equals("m"))
+                        flags = Pattern.MULTILINE;
+                }
+                try {
+                    java.util.regex.Pattern.compile(regex, flags);
+                } catch (java.util.regex.PatternSyntaxException e) {
+                    continue;
+                }
+                checkAgainstJdk(regex, flags, dataString);
+                Random random = new Random(regex.hashCode());
+                int[] cps = (regex.replaceAll("[\\\\\\[\\](){}*+?|^$.]", "")
+                             + dataString + "a .\n").codePoints().toArray();
+                for (int k = 0; k < 8; k++) {
+                    StringBuilder sb = new StringBuilder();
+                    for (int n = random.nextInt(12); n > 0; n--)
+                        sb.appendCodePoint(cps[random.nextInt(cps.length)]);
+                    checkAgainstJdk(regex, flags, sb.toString());
+                }
+            }
+            r.close();
+            report("java.util.regex: " + fileName);
+        }
+    }
+
+    private static void memoStrategyTest() throws Exception {
+        if (Pattern.compile("a").memoStrategy() != Pattern.MemoStrategy.ALL)
+            failCount++;
+        try {
+            Pattern.compile("a", 0, null);
+            failCount++;
+        } catch (NullPointerException npe) {}
+        String as = "a".repeat(2000);
+        for (Pattern.MemoStrategy strategy : Pattern.MemoStrategy.values()) {
+            Pattern p = Pattern.compile("(a|aa)*b", 0, strategy);
+            if (p.memoStrategy() != strategy)
+                failCount++;
+            if (serializedPattern(p).memoStrategy() != strategy)
+                failCount++;
+            // exponential without the memo
+            if (p.matcher(as).find())
+                failCount++;
+        }
+        // char sets taken from class ranges, and from tests below 256
+        String es = "\u00e9".repeat(2000);
+        for (Pattern.MemoStrategy strategy : Pattern.MemoStrategy.values()) {
+            for (String regex : new String[] { "([\\w\u00e9]|[\u00e0-\u00ff]{2})*b",
+                                               "(\\p{L}|\\p{IsLatin}{2})*b",
+                                               "(\u00e9|[^\\x00-\\x7f]\u00e9)*b" }) {
+                if (Pattern.compile(regex, 0, strategy).matcher(es).find())
+                    failCount++;
+            }
+        }
+        checkAgainstJdk("(\\p{L}|\\p{IsLatin}{2})*b", 0, "\u00e9\u00e9\u00e9b");
+        checkAgainstJdk("(a|aa)*b", 0, "aaaaaaaaaaaaaaaaaaab");
+        checkAgainstJdk("(a|aa)*b", 0, "aaaaaaaaaaaaaaaaaaaa");
+        checkAgainstJdk("(a*)*b", 0, "aaaaaaaaaaaaaaaa");
+        checkAgainstJdk("(x+x+)+y", 0, "xxxxxxxxxxxxxxxxy");
+        checkAgainstJdk("(x+x+)+y", 0, "xxxxxxxxxxxxxxxx");
+        checkAgainstJdk("^(\\w+\\s?)*$", 0, "hello world foo bar baz!");
+        checkAgainstJdk("(?:(a)|b)*c", 0, "ababababd abc");
+        report("Memo strategies");
+    }
+
+    /**
+     * Start jumps to a required literal; the jump back from it must not
+     * pass a possible start, however long the alternatives and
+     * repetitions in front of it are, nor one whose look around would
+     * have hit the end.
+     */
+    private static void literalSkipTest() throws Exception {
+        checkAgainstJdk("(x|ab+)c", 0, "aabbbbc");
+        checkAgainstJdk("(?:bb|ab+)c", 0, "aabbbbc");
+        checkAgainstJdk("(?:abc*\\w)?b", 0, "babab");
+        checkAgainstJdk("(?:a{2,3}|b)xyz", 0, "caaaxyzbxyz");
+        checkAgainstJdk("(?:ab){1,1000000}c", 0, "abababababc");
+        checkAgainstJdk("a.*?q", 0, "zzzaqaaq");
+        checkAgainstJdk("\\pLbc", 0, "x\ud801\udc00bc");
+        checkAgainstJdk("(.)([^a])xyz", 0, "\ud801\udc00\ud802\udc00xyz");
+        checkAgainstJdk("(?:\\r\\n|\\R)xyz", 0, "a\r\nxyz\nxyz");
+        checkAgainstJdk("(?:(?=z.*$)|y)bc", 0, "zyyyybcz");
+        checkAgainstJdk("(?=z.*$)a?bc", 0, "zyyyybcz");
+        checkAgainstJdk("(?<=(?=.*\\b)a)bc", 0, "zabxaybcz");
+        // without an xyz in the text, no start is tried
+        checkReads(Pattern.compile("(?:ab|ba)+xyz"), "abba".repeat(512), false, 1);
+        report("Literal skip");
+    }
+
+    /**
+     * Start passes over the positions a match cannot start at, and a
+     * Branch tries only the alternatives that can start with the next
+     * character; neither may skip a look around or a $ that would have
+     * hit the end.
+     */
+    private static void firstCharsTest() throws Exception {
+        Matcher m = Pattern.compile("(|(?=c+)a)").matcher("c");
+        if (m.matches() || !m.hitEnd())
+            failCount++;
+        checkAgainstJdk("(|(?=c+)a)", 0, "c");
+        checkAgainstJdk("(|(?!(.+)))", 0, " ");
+        checkAgainstJdk("(?:x|(?<=a)b|c)d", 0, "xabdcbd");
+        checkAgainstJdk("(?=a+b)ab|c", 0, "aaac");
+        checkAgainstJdk("$a", 0, "ba\n");
+        checkAgainstJdk("(?:b|$\n)a", 0, "ab\r\n");
+        checkAgainstJdk("(?:cat|dog|cow)s", 0, "a dogs cows cat");
+        checkAgainstJdk("[a-c]x|\\d+y", 0, "zz12y bx 9");
+        checkAgainstJdk("\\w+@", 0, "foo bar@baz");
+        // only the last alternative is tried at each h
+        checkReads(Pattern.compile("(?:a\\d|b\\d|c\\d|d\\d|e\\d|f\\d|g\\d|h\\d)*!"),
+                   "h1".repeat(512) + "?", true, 2.5);
+        report("First characters");
+    }
+
+    /**
+     * With adaptive switching, a search that runs over its budget of
+     * steps, or out of stack, starts over on the Pike VM and finds the
+     * same matches.
+     */
+    private static void adaptiveSwitchingTest() throws Exception {
+        Pattern p = Pattern.compile("\\b(a|aa)*b$");
+        for (int n : new int[] { 10_000, 100_000, 1_000_000 }) {
+            String input = "a".repeat(n) + "b ";
+            try {
+                Matcher m = p.matcher(input).useAdaptiveSwitching(true);
+                if (m.find() || !m.hitEnd())
+                    failCount++;
+                m.reset(input.trim());
+                if (!m.matches() || m.start(1) != n - 1 || !m.requireEnd())
+                    failCount++;
+            } catch (StackOverflowError e) {
+                failCount++;
+            }
+        }
+        Matcher m = Pattern.compile("(a|aa)*b").matcher("a".repeat(30))
+                           .useAdaptiveSwitching(true);
+        if (!m.hasAdaptiveSwitching() || m.find())
+            failCount++;
+        checkAgainstJdk("(a|aa)*c", 0, "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaac");
+        checkAgainstJdk("(a|aa)*c", 0, "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaa");
+        checkAgainstJdk("(x+x+)+y|x", 0, "xxxxxxxxxxxxxxxxxxxxxxxxxx");
+        checkAgainstJdk("(\\w+\\s?)*$", 0, "aaaaaaaaaaaaaaaaaaaaaaaaa!");
+        // the chars a run reads count, so a run read again from every
+        // position switches too
+        for (String regex : List.of("a*a*b", "(a*)*b")) {
+            long[] reads = new long[2];
+            for (int k = 0; k < 2; k++) {
+                CountingSequence cs = new CountingSequence(
+                    "a".repeat(512 << 4 * k));
+                m = Pattern.compile(regex).matcher(cs)
+                    .useAdaptiveSwitching(true);
+                if (m.matches() || m.lookingAt())
+                    failCount++;
+                reads[k] = cs.reads;
+            }
+            if (reads[1] >= 20 * reads[0]) {
+                System.err.println(regex + ": " + Arrays.toString(reads));
+                failCount++;
+            }
+        }
+        Function<Matcher, Matcher> adaptive =
+            mm -> mm.useAdaptiveSwitching(true);
+        checkLinearReads("(a*)*b", "a", "!", adaptive);
+        // the budget is shared by all the finds over the text, so each
+        // one taking a little less than the budget of the rest of it
+        // does not add up to quadratic time
+        checkLinearFind("(a|aa)*c|b", "aaaaaaaaaaaaaaab", "", adaptive);
+        for (int k : new int[] { 12, 16, 20 }) {
+            CountingSequence cs = new CountingSequence(
+                ("a".repeat(k) + "b").repeat(1000));
+            m = Pattern.compile("(a|aa)*c|b").matcher(cs)
+                .useAdaptiveSwitching(true);
+            int found = 0;
+            while (m.find())
+                found++;
+            if (found != 1000 || cs.reads >= 200L * cs.length()) {
+                System.err.println(k + ": " + found + " " + cs.reads);
+                failCount++;
+            }
+        }
+        report("Adaptive switching");
+    }
+
+    /**
+     * What a group in a look around captures stays in the groups when
+     * the match around it fails, and java.util.regex reports it in a
+     * later match that leaves the group alone. Skipping attempts, through
+     * the memo or by where a match can start, must not change that.
+     */
+    private static void lookaroundGroupsTest() throws Exception {
+        Matcher m = Pattern.compile("(?:b+(?<!(b)).*)?").matcher("abb");
+        if (!m.find(1) || m.start() != 1 || m.start(1) != 1 || m.end(1) != 2)
+            failCount++;
+        checkAgainstJdk("(?:b+(?<!(b)).*)?", 0, "!\n<abb :bb:");
+        checkAgainstJdk("b+(?<!(b))|(?<=(a|bc))", 0, "a bb!\na");
+        checkAgainstJdk("(?:[ab]*?(?<!(b)))*?c(?<!(b))|bc*", 0, "bb!b:");
+        checkAgainstJdk("(?<=(a|bc))(?!((?:[ab]+c$|a|c{2}^$|[ab]{2})?" +
+                        "(?!ac*?b|b+$$|aab*?)(?<!(b))|(?<=(a|bc))" +
+                        "(?!a{1,3}a?$)|.(a$|^[ab]{2}a+))+(?=c+[ab]?$))",
+                        0, "<!3!aba");
+        checkAgainstJdk("(?:(?=(a))\\w)*!|z", 0, "abcz");
+        checkAgainstJdk("(?:x(?=(\\w+))|y)+q|(a)", 0, "xxyxa");
+        checkAgainstJdk("((?=(a|b))\\w)*c|d", 0, "abababd");
+        report("Groups in look arounds");
+    }
+
+    /**
+     * The lazy DFA answers whether a search will find anything, and where
+     * the first match may start; a search it says no to, or that skips
+     * starts, has to leave hitEnd as the backtracker would.
+     */
+    private static void lazyDFATest() throws Exception {
+        Matcher m = Pattern.compile("^a").matcher("b ").useLazyDFA(true);
+        if (!m.hasLazyDFA() || m.find() || m.hitEnd())
+            failCount++;
+        m = Pattern.compile("x[ab]*y").matcher("xabab").useLazyDFA(true);
+        if (m.find() || !m.hitEnd())
+            failCount++;
+        checkAgainstJdk("^", 0, "a. \n.");
+        checkAgainstJdk("\\A(?:a|b)c", 0, "acbc");
+        checkAgainstJdk("^(a|ab)(c|bcd)(d*)", 0, "abcd");
+        checkAgainstJdk("(?m)^ab$", 0, "ab\nab\nb");
+        checkAgainstJdk("(a|b)*abb", 0, "babababbbabba");
+        checkAgainstJdk("\\bfoo\\b|bar$", 0, "foobar foo");
+        m = Pattern.compile("(a|aa)*b").matcher("a".repeat(5000))
+            .useLazyDFA(true);
+        if (m.find() || !m.hitEnd())
+            failCount++;
+        // starts skipped, except those that would hit the end
+        checkAgainstJdk("[a-z]*?\\d|$", 0, "abc!def");
+        checkAgainstJdk("x*y|z", 0, "xxxz xxxy xx");
+        checkAgainstJdk("ab|c\\b", 0, "ab abc c");
+        checkAgainstJdk("(?:a|b)+c|b$", 0, "ababb\nab");
+        checkAgainstJdk("(?m)a+$|b", 0, "aaa\nab");
+        // a lazy repetition has no memo, so the backtracker alone tries
+        // every start in full
+        Function<Matcher, Matcher> dfa = m2 -> m2.useLazyDFA(true);
+        checkLinearFind("[a-z]*?\\d|$", "a", "!", dfa);
+        checkLinearFind("[a-z]{0,300}\\d|$", "a", "!", dfa);
+        checkLinearFind("(\\w+\\s?)*$", "a b ", "!", dfa);
+        checkLinearFind("\\w+@", "ab ", "a@", dfa);
+        report("Lazy DFA");
+    }
+
+    /**
+     * Look arounds that are reached again at the same index, from inside
+     * a repetition or after backtracking, reuse their outcomes.
+     */
+    private static void lookaroundMemoTest() throws Exception {
+        Matcher m = Pattern.compile("(?=a)").matcher("a");
+        if (m.hasLookaroundMemo() || !m.useLookaroundMemo(true).hasLookaroundMemo())
+            failCount++;
+        String policy = "(?=^.{12,25}$)(?=(?:.*?\\d){2})(?=.*[a-z])"
+            + "(?=.*[A-Z])(?!.*\\s).*";
+        checkAgainstJdk(policy, 0, "abcDEF123456");
+        checkAgainstJdk(policy, 0, "abcDEF 123456");
+        checkAgainstJdk(policy, 0, "abcdefghijk12");
+        checkAgainstJdk("(?:(?=\\w*\\d)\\w)*!", 0, "ab1c!ab!");
+        checkAgainstJdk("(?:\\w(?<!b))+c|b", 0, "aabaac");
+        checkAgainstJdk("(?:(?!ab)\\w)+(?=c)", 0, "xaabxc");
+        checkAgainstJdk("((?=(a))a)+b|a", 0, "aaab");
+        checkAgainstJdk("(?:(?=[^x]*y)\\w)*\\d", 0, "abcyab9y");
+        // the look ahead reads to the end from every index
+        String s = "a".repeat(20000);
+        m = Pattern.compile("(?:(?=a*b)a)*c").matcher(s).useLookaroundMemo(true);
+        if (m.find() || !m.hitEnd())
+            failCount++;
+        // a look behind reached along many paths is run once per index
+        checkLinearFind("(?:a|aa)*(?<=a{1,40})c", "a", "!c",
+                        mm -> mm.useLookaroundMemo(true));
+        // a look ahead to the end runs once per index, not once per path
+        String regex = "(?:(?=\\w*\\d)\\w)*!";
+        long[] reads = new long[2];
+        for (int k = 0; k < 2; k++) {
+            CountingSequence cs = new CountingSequence("ab".repeat(512) + "1x!");
+            m = Pattern.compile(regex).matcher(cs).useLookaroundMemo(k == 1);
+            if (!m.find() || m.start() != 1026)
+                failCount++;
+            reads[k] = cs.reads;
+        }
+        if (5 * reads[1] >= 3 * reads[0]) {
+            System.err.println(regex + ": " + Arrays.toString(reads));
+            failCount++;
+        }
+        report("Look around memo");
+    }
+
+    /**
+     * The Pike VM finds the matches and groups backtracking finds, in time
+     * linear in the input, and leaves patterns it cannot run to the
+     * backtracker.
+     */
+    private static void pikeVMTest() throws Exception {
+        Matcher m = Pattern.compile("a").matcher("a");
+        if (m.hasPikeVM() || !m.usePikeVM(true).hasPikeVM())
+            failCount++;
+        checkAgainstJdk("(a|ab)(c|bcd)(d*)", 0, "abcd");
+        checkAgainstJdk("(a*)+?b|(a)", 0, "aaab aa");
+        checkAgainstJdk("(?:(a)|(b))+", 0, "abba");
+        checkAgainstJdk("x{2,4}?(y|z{1,3})", 0, "xxxxxzzzz");
+        checkAgainstJdk("(?i)(K|\\w)+s", 0, "kKs\u212As");
+        // an iteration that matches nothing ends the repetition
+        checkAgainstJdk("(a|b|)*c", 0, "abxabc ab");
+        checkAgainstJdk("(a*)*b|(a?)+?", 0, "aab aa");
+        checkAgainstJdk("(?:(a)|b?)+c", 0, "abbac");
+        checkAgainstJdk("(?:a|(^)|b)*?c", 0, "abc\nabc");
+        // lookaheads run where a thread reaches them
+        checkAgainstJdk("(a|b)*(?=c)|b(?!a)", 0, "abcab ba b");
+        checkAgainstJdk("(?:a(?=[ab]*c)|b)+", 0, "aabab abc");
+        // surrogate pairs are read at once
+        checkAgainstJdk("(.)\\P{So}", 0, "\ud83d\ude00x\ude00y a");
+        checkAgainstJdk("\\x{1F600}+|(a|.)*?b", 0, "\ud83d\ude00\ud83d\ude00ab");
+        checkAgainstJdk("(?i)\\x{10400}|\ud83d", 0, "\ud801\udc28\ud83d\ude00");
+        // left to the backtracker
+        checkAgainstJdk("(a+)\\1b", 0, "aaaab aab");
+        checkAgainstJdk("(?<=a)b+", 0, "abbcab");
+        checkAgainstJdk("a++b|a", 0, "aaab aa");
+        String as = "a".repeat(100000);
+        m = Pattern.compile("(a|aa)*b").matcher(as).usePikeVM(true);
+        if (m.find())
+            failCount++;
+        m.reset(as + "b");
+        if (!m.find() || m.start(1) != 99999 || m.end() != 100001)
+            failCount++;
+        Function<Matcher, Matcher> pike = mm -> mm.usePikeVM(true);
+        checkLinearReads("(a*)*b", "a", "!", pike);
+        checkLinearReads("(a|b|)*c", "ab", "", pike);
+        checkLinearFind("(?:a|b)*(?=c)", "ab", "", pike);
+        // what a failed lookahead read is not read again
+        checkLinearFind("a(?=[ab]*c)", "ab", "", pike);
+        checkLinearFind("(.)+\\d", "\ud83d\ude00", "", pike);
+        report("Pike VM");
+    }
+
+    /**
+     * Iterative backtracking keeps its choices on a stack of its own, so
+     * that long inputs do not overflow the call stack.
+     */
+    private static void iterativeBacktrackingTest() throws Exception {
+        Matcher m = Pattern.compile("a").matcher("a");
+        if (m.hasIterativeBacktracking()
+            || !m.useIterativeBacktracking(true).hasIterativeBacktracking())
+            failCount++;
+        checkAgainstJdk("(a|ab)(c|bcd)(d*)", 0, "abcd");
+        checkAgainstJdk("(a|b)*?b(a*)", 0, "aababa");
+        checkAgainstJdk("(?:(a)|b)*c|(b)", 0, "ababcbb");
+        checkAgainstJdk("^(\\w+\\s?)*$", 0, "hello world foo bar baz!");
+        checkAgainstJdk("x{2,4}?(y|z{1,3})$", 0, "xxxxxzzzz");
+        StringBuilder sb = new StringBuilder();
+        Random random = new Random(25);
+        for (int i = 0; i < 1000000; i++)
+            sb.append(random.nextBoolean() ? 'a' : 'b');
+        String s = sb.toString();
+        onSmallStack(() -> {
+            Matcher mm = Pattern.compile("(a|b)*").matcher(s)
+                .useIterativeBacktracking(true);
+            if (!mm.matches() || mm.start(1) != s.length() - 1)
+                failCount++;
+            mm = Pattern.compile("(a|b)*c").matcher(s)
+                .useIterativeBacktracking(true);
+            if (mm.find() || !mm.hitEnd())
+                failCount++;
+        });
+        // lookaheads, repetitions whose body can match nothing and
+        // supplementary chars are run iteratively too
+        String ab = "ab".repeat(50000);
+        checkDeep("(a|b)*(?=c)", ab, "c", 100000, 99999, 100000);
+        checkDeep("(a|b|)*c", ab, "c", 100001, 100000, 100000);
+        checkDeep("(a|b)*\\x{1F600}", ab, "\ud83d\ude00", 100002, 99999, 100000);
+        report("Iterative backtracking");
+    }
+
+    /**
+     * Checks that iterative backtracking finds no match of regex in the
+     * given deep input, and the given bounds of the match and of group 1
+     * once tail is appended to it, without overflowing a small stack.
+     */
+    private static void checkDeep(String regex, String input, String tail,
+                                  int end, int start1, int end1) {
+        onSmallStack(() -> {
+            Matcher m = Pattern.compile(regex).matcher(input)
+                .useIterativeBacktracking(true);
+            if (m.find() || !m.hitEnd())
+                failCount++;
+            m.reset(input + tail);
+            if (!m.find() || m.start() != 0 || m.end() != end
+                || m.start(1) != start1 || m.end(1) != end1)
+                failCount++;
+        });
+    }
+
+    /**
+     * Runs r on a thread with a stack of 1MB, counting a failure if it
+     * overflows.
+     */
+    private static void onSmallStack(Runnable r) {
+        Thread t = new Thread(null, () -> {
+            try {
+                r.run();
+            } catch (StackOverflowError e) {
+                failCount++;
+            }
+        }, "small stack", 1L << 20);
+        t.start();
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            failCount++;
+        }
+    }
+
+    /**
+     * The memo is a bitmap when the memoized nodes times the text length
+     * fit the limit, and hash sets otherwise; both must answer alike.
+     */
+    private static void memoStoreTest() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++)
+            sb.append(i == 0 ? "" : "|").append("[ab0-9]*").append(i);
+        String regex = sb.toString();
+        Pattern p = Pattern.compile(regex);
+        java.util.regex.Pattern jp = java.util.regex.Pattern.compile(regex);
+        String s = "ab".repeat(5000);
+        // 2000 nodes times 10000 chars is over the limit of the bitmap
+        for (String input : List.of(s + "1999", s + "2000", s + "19",
+                                    s, "ab1999", "ab2000", "")) {
+            Matcher m = p.matcher(input);
+            java.util.regex.Matcher jm = jp.matcher(input);
+            boolean found = m.matches();
+            if (found != jm.matches() || found && m.end() != jm.end())
+                failCount++;
+            m.reset();
+            jm.reset();
+            found = m.lookingAt();
+            if (found != jm.lookingAt() || found && m.end() != jm.end())
+                failCount++;
+        }
+        // the memo of the longer text is over the limit of the bitmap
+        checkLinearReads(regex, "ab".repeat(10), "!", m -> m);
+        checkAgainstJdk("(?:[ab0-9]*1|[ab0-9]*2)+3", 0, "ab1ab2ab123");
+        checkAgainstJdk("(?:[ab0-9]*1|[ab0-9]*2)+3", 0, "ab1ab2ab12");
+        checkAgainstJdk("((a|b)*c|(a|b)*d)*e", 0, "abcabdabcf");
+        report("Memo store");
+    }
+
+    /**
+     * The memo is forgotten between searches without clearing the whole
+     * table, so nothing one search recorded may leak into the next, nor
+     * into a search of another text.
+     */
+    private static void memoResetTest() throws Exception {
+        String regex = "((a|b)*c|(a|b)*d)*e|[ab]*f";
+        Matcher m = Pattern.compile(regex).matcher("");
+        java.util.regex.Matcher jm = java.util.regex.Pattern.compile(regex)
+            .matcher("");
+        String s = "abcabdabce".repeat(2000);
+        for (String input : List.of("abcabdabcf", s, "abcab",
+                                    s.replace('e', 'f'), "ababe", s, "")) {
+            m.reset(input);
+            jm.reset(input);
+            if (!trace(m, input, true).equals(trace(jm, input, true)))
+                failCount++;
+        }
+        // many short matches over a long text
+        m = Pattern.compile("(?:a|b)*c").matcher("abbac".repeat(50000));
+        int count = 0;
+        while (m.find()) {
+            if (m.start() != 5 * count || m.end() != 5 * count + 5)
+                failCount++;
+            count++;
+        }
+        if (count != 50000)
+            failCount++;
+        // clearing a memo of two dozen nodes times the text before each of
+        // the searches would make sixteen times the text take hundreds of
+        // times as long; the short text goes first to warm up, and the
+        // caches leave the long one some slack
+        StringBuilder sb = new StringBuilder("(?:a|b)*c");
+        for (char c = 'd'; c <= 'z'; c++)
+            sb.append("|(?:a|b)*").append(c);
+        Pattern p = Pattern.compile(sb.toString());
+        long[] nanos = { Long.MAX_VALUE, Long.MAX_VALUE };
+        for (int k = 0; k < 16; k++) {
+            String input = "abbac".repeat(1000 << 4 * (k & 1));
+            long start = System.nanoTime();
+            m = p.matcher(input);
+            count = 0;
+            while (m.find())
+                count++;
+            nanos[k & 1] = Math.min(nanos[k & 1], System.nanoTime() - start);
+            if (count != input.length() / 5)
+                failCount++;
+        }
+        if (nanos[1] >= 160 * nanos[0]) {
+            System.err.println(sb + ": " + Arrays.toString(nanos));
+            failCount++;
+        }
+        report("Memo reset");
+    }
+
+    /**
+     * Patterns with back references memoize too, keyed by the groups the
+     * references read.
+     */
+    private static void backReferenceMemoTest() throws Exception {
+        checkAgainstJdk("(x)(a|aa)*\\1", 0, "xaaaaaaaaaaaaaaaaaab");
+        checkAgainstJdk("(x)(a|aa)*\\1", 0, "xaaaaaaaaaaaaaaaaaax");
+        checkAgainstJdk("(a|b)(a|aa)*\\1", 0, "baaaaaaaaaaaaaaaaaaab");
+        checkAgainstJdk("(\\w)(a|aa)*\\1\\1", 0, "xaaaaaaaaaaaaaaaaaax");
+        checkAgainstJdk("(?<q>x|y)(a|aa)*\\k<q>", 0, "yaaaaaaaaaaaaaaaaaaxy");
+        checkAgainstJdk("((a)|b)*\\2c", 0, "ababbbac abbbc");
+        checkAgainstJdk("(a*)*\\1b", 0, "aaaaaaaaaaaaaaaaaaa");
+        checkAgainstJdk("(?i)(a)(a|aa)*\\1", 0, "AaaaaaaaaaaaaaaaaaaA");
+        // exponential without the memo
+        String as = "a".repeat(200);
+        Matcher m = Pattern.compile("(x)(a|aa)*\\1").matcher("x" + as + "b");
+        if (m.find())
+            failCount++;
+        m.reset("x" + as + "x");
+        if (!m.find() || m.start() != 0 || m.end() != 202)
+            failCount++;
+        m = Pattern.compile("(?<q>x)(a|aa)*(a|aa)*\\k<q>").matcher("x" + as);
+        if (m.find())
+            failCount++;
+        // and linear with it, from every start
+        long[] reads = new long[2];
+        for (int k = 0; k < 2; k++) {
+            CountingSequence cs = new CountingSequence(
+                "b" + "a".repeat(32 << 4 * k) + "c");
+            if (Pattern.compile("(b)(a|aa)*\\1").matcher(cs).find())
+                failCount++;
+            reads[k] = cs.reads;
+        }
+        if (reads[1] >= 20 * reads[0]) {
+            System.err.println("(b)(a|aa)*\\1: " + Arrays.toString(reads));
+            failCount++;
+        }
+        report("Memo with back references");
+    }
+
+    /**
+     * Counted repetitions, reluctant group loops and repetitions of
+     * supplementary character classes are memoized like greedy loops.
+     */
+    private static void curlyMemoTest() throws Exception {
+        checkAgainstJdk("(a|aa){0,1000}[bd]", 0, "aaaaaaaaaaaaac");
+        checkAgainstJdk("(a|aa){3,5}[bd]", 0, "aaaaaaaaaab");
+        checkAgainstJdk("(a{1,3}){1,300}[bd]", 0, "aaaaaaaaaaaaac");
+        checkAgainstJdk("\\w{1,30}\\w{1,30}[bd]", 0, "aaaaaaaaab aac");
+        checkAgainstJdk("(ab|a){2,5}?b", 0, "aababababb");
+        checkAgainstJdk("(a|aa)*?[bd]", 0, "aaaaaaaaaaaaaac");
+        checkAgainstJdk("(a|aa)+?[bd]", 0, "aaaaaaaab");
+        checkAgainstJdk("(?:(a)|b)*?c|(b)", 0, "abbac bb");
+        checkAgainstJdk("[\\x{10400}a]*[\\x{10400}a]*[bd]", 0,
+                        "\ud801\udc00a\ud801\udc00aac\ud801\udc00b");
+        // exponential or polynomial without the memo
+        String as = "a".repeat(200);
+        for (String regex : List.of("(a|aa)*?[bd]", "(?:a|aa)+?[bd]",
+                                    "(a|aa){2,}?[bd]", "\\w{1,300}\\w{1,300}[bd]")) {
+            if (Pattern.compile(regex).matcher(as + "c").find())
+                failCount++;
+        }
+        String fifty = as.substring(150) + "c";
+        if (Pattern.compile("(a|aa){0,1000}[bd]").matcher(fifty).find() ||
+            Pattern.compile("(a{1,3}){1,300}[bd]").matcher(fifty).find())
+            failCount++;
+        String bs = "\ud801\udc00a".repeat(100);
+        if (Pattern.compile("[\\x{10400}a]*[\\x{10400}a]*[\\x{10400}a]*[bd]")
+            .matcher(bs + "c").find())
+            failCount++;
+        // a greedy run stops at a position known to fail, rather than
+        // read the rest of the text again from every start
+        checkLinearFind("[ab]{2,}(?=c)", "ab", "!c");
+        checkLinearFind("(ab){2,}c", "ab", "!c");
+        checkLinearFind("(?:\\w(?=a))+c", "a", "!c");
+        checkLinearReads("(a|aa)*?[bd]", "a", "cb", m -> m);
+        // a counted group loop is keyed by its count as well, some
+        // hundred thousand entries here, which must not pile up in a few
+        // slots of the memo's hash table: four times the input may take
+        // sixteen times as long, not hundreds
+        long[] nanos = new long[2];
+        for (int k = 0; k < 2; k++) {
+            String input = "a".repeat(100 << 2 * k) + "cb";
+            nanos[k] = Long.MAX_VALUE;
+            for (int n = 0; n < 3; n++) {
+                long start = System.nanoTime();
+                Matcher m = Pattern.compile("(a|aa){0,1000}[bd]").matcher(input);
+                if (!m.find() || m.start() != input.length() - 1)
+                    failCount++;
+                nanos[k] = Math.min(nanos[k], System.nanoTime() - start);
+            }
+        }
+        if (nanos[1] >= 64 * nanos[0]) {
+            System.err.println("(a|aa){0,1000}[bd]: " + Arrays.toString(nanos));
+            failCount++;
+        }
+        report("Memo of repetitions");
+    }
+
+    private static void checkAnalysis(String regex,
+                                      PatternAnalysis.Complexity complexity,
+                                      int degree, List<String> nodes,
+                                      boolean exact) {
+        PatternAnalysis pa = Pattern.compile(regex).analyze();
+        if (pa.complexity() != complexity || pa.degree() != degree ||
+            !pa.nodes().equals(nodes) || pa.isExact() != exact ||
+            (complexity == PatternAnalysis.Complexity.LINEAR)
+                != (pa.exploitString() == null)) {
+            System.err.println(regex + ": " + pa);
+            failCount++;
+        }
+    }
+
+    /**
+     * analyze() tells exponential from polynomial ambiguity, and names
+     * the repetitions that cause it.
+     */
+    private static void analyzeTest() throws Exception {
+        PatternAnalysis.Complexity linear = PatternAnalysis.Complexity.LINEAR;
+        PatternAnalysis.Complexity polynomial = PatternAnalysis.Complexity.POLYNOMIAL;
+        PatternAnalysis.Complexity exponential = PatternAnalysis.Complexity.EXPONENTIAL;
+        for (String regex : List.of("abc", "x*", "(a|b)*c", "\\d+\\.\\d+\\.\\d+",
+                                    "\\w+@\\w+\\.com"))
+            checkAnalysis(regex, linear, 0, List.of(), true);
+        checkAnalysis("(a|aa)*b", exponential, 0, List.of("(a|aa)*"), true);
+        checkAnalysis("^(a+)+$", exponential, 0, List.of("(a+)+"), true);
+        checkAnalysis("(\\w+\\s?)*$", exponential, 0, List.of("(\\w+\\s?)*"), true);
+        checkAnalysis("([a-z]+)*@", exponential, 0, List.of("([a-z]+)*"), true);
+        checkAnalysis("a*a*b", polynomial, 1, List.of("a*", "a*"), true);
+        checkAnalysis("\\w+\\d+", polynomial, 1, List.of("\\w+", "\\d+"), true);
+        checkAnalysis("a*a*a*b", polynomial, 2, List.of("a*", "a*", "a*"), true);
+        checkAnalysis(".*a.*a.*b", polynomial, 2, List.of(".*", ".*", ".*"), true);
+        // look arounds and back references are approximated
+        checkAnalysis("(?=a)(a|aa)*b", exponential, 0, List.of("(a|aa)*"), false);
+        checkAnalysis("(a|aa)*\\1", exponential, 0, List.of("(a|aa)*"), false);
+        String s = Pattern.compile("a*a*b").analyze().toString();
+        if (!s.equals("POLYNOMIAL degree=1 nodes=[a*, a*]"))
+            failCount++;
+        if (!Pattern.compile("(?=a)a").analyze().toString()
+            .equals("LINEAR (approximate)"))
+            failCount++;
+        report("Ambiguity analysis");
+    }
+
+    /**
+     * A text that counts how often its chars are read, as a measure of how
+     * much a matcher backtracks over it.
+     */
+    private static final class CountingSequence implements CharSequence {
+        final String s;
+        long reads;
+
+        CountingSequence(String s) {
+            this.s = s;
+        }
+
+        public int length() {
+            return s.length();
+        }
+
+        public char charAt(int i) {
+            reads++;
+            return s.charAt(i);
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            return s.subSequence(start, end);
+        }
+
+        public String toString() {
+            return s;
+        }
+    }
+
+    /**
+     * Counts the chars java.util.regex reads to fail on the exploit
+     * string with each pump repeated n times. A back reference in an
+     * alternative that never matches turns off its own memo, which would
+     * otherwise keep group loops linear.
+     */
+    private static long charsRead(String regex, ExploitString e, int n) {
+        int refs = java.util.regex.Pattern.compile(regex).matcher("")
+            .groupCount() + 1;
+        java.util.regex.Pattern jp = java.util.regex.Pattern.compile(
+                "(?:" + regex + ")|(?!)()\\" + refs);
+        CountingSequence cs = new CountingSequence(e.build(n));
+        if (jp.matcher(cs).matches() || Pattern.compile(regex).matcher(cs.s).matches())
+            failCount++;
+        return cs.reads;
+    }
+
+    /**
+     * The exploit strings analyze() derives fail to match, and take
+     * exponential or polynomial time to do so.
+     */
+    private static void exploitStringTest() throws Exception {
+        for (String regex : List.of("(a|aa)*b", "^(a+)+$", "(\\w+\\s?)*$",
+                                    "([a-z]+)*@", "(a|a)*", "(a{1,3})*b")) {
+            ExploitString e = Pattern.compile(regex).analyze().exploitString();
+            if (e.degree() != 0 || e.separators().size() != 1 ||
+                e.pumps().size() != 1)
+                failCount++;
+            // at least twice as many for each more pump
+            if (charsRead(regex, e, 8) < 16 * charsRead(regex, e, 4))
+                failCount++;
+        }
+        for (String regex : List.of("a*a*b", "\\w+\\d+", "\\d+\\.?\\d+$",
+                                    "a*a*a*b", ".*a.*a.*b")) {
+            PatternAnalysis pa = Pattern.compile(regex).analyze();
+            ExploitString e = pa.exploitString();
+            int d = pa.degree();
+            if (e.degree() != d || e.separators().size() != d ||
+                e.pumps().size() != d)
+                failCount++;
+            // about 2^(d + 1) times as many for twice the pumps
+            if (4 * charsRead(regex, e, 64) < 3 * (2 << d) * charsRead(regex, e, 32))
+                failCount++;
+        }
+        ExploitString e = Pattern.compile("(\n|\n\n)*\"").analyze()
+            .exploitString();
+        if (!e.build(2).equals("\n\n\n\n\n\n\n") ||
+            !e.exampleString().equals(e.build(42)) ||
+            !e.toJson().equals("{\"degree\": 0, \"separators\": [\"\\n\"], "
+                               + "\"pumps\": [\"\\n\\n\\n\"], \"suffix\": \"\", "
+                               + "\"exampleString\": \""
+                               + "\\n".repeat(127) + "\"}"))
+            failCount++;
+        report("Exploit strings");
+    }
+
+    /**
+     * The memo keeps exponentially ambiguous patterns from taking
+     * exponential time on their exploit strings, as pumping them more and
+     * more often shows. A group loop whose body reads a bounded number of
+     * chars stays linear, one whose body is itself an unbounded repetition
+     * at most quadratic.
+     */
+    private static void pumpScalingTest() throws Exception {
+        for (String regex : List.of("(a|aa)*b", "([a-z]+)*@", "(a|a)*",
+                                    "(a{1,3})*b"))
+            checkPumpScaling(regex, 20);
+        for (String regex : List.of("^(a+)+$", "(\\w+\\s?)*$", "(?:a*)*b"))
+            checkPumpScaling(regex, 300);
+        report("Pump scaling");
+    }
+
+    /**
+     * Checks that this engine reads less than limit times as many chars
+     * to fail on the exploit string of regex with its pumps repeated 16
+     * times as often.
+     */
+    private static void checkPumpScaling(String regex, int limit) {
+        ExploitString e = Pattern.compile(regex).analyze().exploitString();
+        long[] reads = new long[5];
+        for (int k = 0; k < reads.length; k++) {
+            CountingSequence cs = new CountingSequence(e.build(32 << k));
+            if (Pattern.compile(regex).matcher(cs).matches())
+                failCount++;
+            reads[k] = cs.reads;
+        }
+        if (reads[4] >= limit * reads[0]) {
+            System.err.println(regex + ": " + Arrays.toString(reads));
+            failCount++;
+        }
+    }
+
+    /**
+     * Start skips the positions whose char no match can begin with; it
+     * must not skip one a case-insensitive or supplementary match begins
+     * at.
+     */
+    private static void startSetTest() throws Exception {
+        checkAgainstJdk("<a\\s*href=", 0, "<p><a  href=x><A href=y><a\thref=");
+        checkAgainstJdk("[0-9]{9}", 0, "tel 12345678, 123456789 0");
+        checkAgainstJdk("(?i)kb|xy", 0, "KB kb \u212Ab XY");
+        checkAgainstJdk("(?iu)kb|xy", 0, "KB kb \u212Ab XY");
+        checkAgainstJdk("(?iu)\u00dfa|\u0130", 0, "\u1e9ea \u00dfA i\u0130");
+        checkAgainstJdk("\\x{10400}b|c", 0, "a\ud801\udc00bc\ud801b");
+        checkAgainstJdk("[\\x{10400}-\\x{10410}]+", 0, "a\ud801\udc00\ud801\udc05b");
+        checkAgainstJdk("\\Rx", 0, "a\r\nxb\nx");
+        checkAgainstJdk("(?:a|b)?c", 0, "xxcac");
+        checkAgainstJdk("\\bword", 0, "sword word");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++)
+            sb.append("<div class=\"c").append(i).append("\">text</div>\n");
+        String html = sb.append("<a href=\"x\">").toString();
+        int start = html.length() - 12;
+        Matcher m = Pattern.compile("<a\\s*href=").matcher(html);
+        if (!m.find() || m.start() != start || m.find())
+            failCount++;
+        java.util.regex.Matcher jm = java.util.regex.Pattern
+            .compile("<a\\s*href=").matcher(html);
+        m.region(0, start + 4);
+        jm.region(0, start + 4);
+        if (m.find() || jm.find() || m.hitEnd() != jm.hitEnd())
+            failCount++;
+        // no char of the text can start a match, so none is tried
+        checkReads(Pattern.compile("(?:ab|cd|ef|gh)\\d"), "xyz ".repeat(512),
+                   false, 1);
+        report("Start sets");
+    }
+
+    /**
+     * Patterns that are one literal are searched for with Boyer-Moore,
+     * whose bad character shift must not take one char for another, and
+     * which folds case for case-insensitive literals.
+     */
+    private static void boyerMooreTest() throws Exception {
+        // \u0141 and A have the same low seven bits
+        checkAgainstJdk("\u0141bcd", 0, "Abcd\u0141bcdxAbcd\u0141bc");
+        checkAgainstJdk("Abcd", 0, "\u0141bcdAbcd\u0141bcd");
+        checkAgainstJdk("ab\u4e2dab", 0, "ab\u4e2d\u4e2dab\u4e2dab\u4e2da");
+        checkAgainstJdk("(?i)keyword", 0, "xxKeYwOrDyy keyword KEYWOR");
+        checkAgainstJdk("(?i)\u00e9cole", 0, "\u00c9COLE \u00e9COLE");
+        checkAgainstJdk("(?iu)\u00e9cole", 0, "\u00c9COLE \u00e9COLE");
+        checkAgainstJdk("(?iu)kelvin", 0, "\u212Aelvin KELVIN");
+        checkAgainstJdk("(?iu)\u03c3\u03b1\u03c3", 0, "\u03a3\u0391\u03a3 \u03c3\u03b1\u03c2");
+        checkAgainstJdk("abcab", 0, "abcabcabcab abcab");
+        checkAgainstJdk("\ud801\udc00abc", 0, "a\ud801\udc00abc\udc00abc");
+        Random random = new Random(17);
+        String chars = "abA\u0141";
+        for (int k = 0; k < 200; k++) {
+            StringBuilder literal = new StringBuilder();
+            for (int n = 4 + random.nextInt(4); n > 0; n--)
+                literal.append(chars.charAt(random.nextInt(chars.length())));
+            StringBuilder text = new StringBuilder();
+            for (int n = random.nextInt(60); n > 0; n--)
+                text.append(chars.charAt(random.nextInt(chars.length())));
+            int flags = random.nextInt(3);
+            checkAgainstJdk(literal.toString(),
+                            flags == 0 ? 0 : flags == 1 ? Pattern.CASE_INSENSITIVE
+                            : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE,
+                            text.toString());
+        }
+        // a case-insensitive literal shifts past the text like any other
+        checkReads(Pattern.compile("(?i)abcdefghijklmnop"),
+                   "xyz ABCDEFGHijklmno ".repeat(100), false, 0.25);
+        checkReads(Pattern.compile("(?iu)" + "\u03c3\u03b1".repeat(4)),
+                   "\u03a3\u0391\u03a3\u0391\u03a3\u0391\u03a3 ".repeat(300),
+                   false, 0.25);
+        report("Boyer-Moore");
+    }
+
+    /**
+     * Alternations of literals are matched through a trie, which must
+     * still try the alternatives in the order they are written.
+     */
+    private static void literalTrieTest() throws Exception {
+        String tlds = "(a[cdefgilmnoqrstuwxz]|b[abdefghijmnorstvwyz]|c[acdfghiklmnoruvxyz]"
+            + "|aero|arpa|biz|com|coop|edu|gov|info|int|mil|museum|name|net|org|pro)";
+        checkAgainstJdk("\\.(?:" + tlds.substring(1, tlds.length() - 1) + ")\\b", 0,
+                        "www.example.com ab.cz x.museumx y.ac.za z.bz .co.");
+        checkAgainstJdk(tlds + "$", 0, "arpa");
+        checkAgainstJdk("(?:ab|abc)d", 0, "abcd abd");
+        checkAgainstJdk("(a|ab|abc)(c|bcd)", 0, "abcd");
+        checkAgainstJdk("(x|ext|extension)\\.", 0, "file.extension. ext. x.");
+        checkAgainstJdk("(?:cat|ca|c)t", 0, "catt cat ct");
+        checkAgainstJdk("(?:a|b|)c", 0, "ac bc c dc");
+        checkAgainstJdk("(?:foo|bar)+baz", 0, "foobarfoobaz barbaz");
+        checkAgainstJdk("(?:\u00e9t\u00e9|\u00e9t)\u00e9", 0, "\u00e9t\u00e9\u00e9");
+        checkAgainstJdk("(?i)(?:get|post)/", 0, "GET/ Post/ put/");
+        checkAgainstJdk("(?:\\x{10400}a|b)c", 0, "\ud801\udc00ac bc");
+        Random random = new Random(18);
+        for (int k = 0; k < 200; k++) {
+            StringBuilder regex = new StringBuilder("(");
+            for (int n = 2 + random.nextInt(5); n > 0; n--) {
+                for (int len = random.nextInt(4); len > 0; len--) {
+                    int c = random.nextInt(3);
+                    regex.append(c == 0 ? "a" : c == 1 ? "b" : "[ab]");
+                }
+                regex.append(n > 1 ? "|" : ")");
+            }
+            regex.append(random.nextBoolean() ? "b" : "(a|b)*$");
+            StringBuilder text = new StringBuilder();
+            for (int n = random.nextInt(20); n > 0; n--)
+                text.append("ab".charAt(random.nextInt(2)));
+            checkAgainstJdk(regex.toString(), 0, text.toString());
+        }
+        // each word is read about once, not once for every word tried
+        String greek = "alpha|beta|gamma|delta|epsilon|zeta|eta|theta|iota"
+            + "|kappa|lambda|mu";
+        checkReads(Pattern.compile("(?:" + greek + ")*!"),
+                   greek.replace("|", "").repeat(40) + "?", true, 1.5);
+        report("Literal tries");
+    }
+
+    /**
+     * Character classes are flattened into bitmaps and range tables once
+     * they are parsed; every char of the BMP, and a sample of the
+     * supplementary ones, must be in the same classes as with
+     * java.util.regex.
+     */
+    private static void classTableTest() throws Exception {
+        List<String> classes = List.of(
+            "[a-zA-Z0-9!#$%&'*+/=?^_`{|}~-]", "[^a-z]", "[a-z&&[^aeiou]]",
+            "[\\w\\s]", "[^\\d\\p{Punct}]", "[\\p{L}&&[^\\p{Lu}]]",
+            "[\\u00c0-\\u024f\\u1e00-\\u1eff]", "[\\p{InGreek}\\p{IsCyrillic}]",
+            "(?i)[a-f\\u00e0]", "(?iu)[k\\u00e0-\\u00ef\\u03c3]", "(?U)[\\w&&[^\\d]]",
+            "[\\x{10400}-\\x{1044f}a-c]", "[^\\x{10000}-\\x{10ffff}]", "[\\p{Cs}x]");
+        int[] supplementary = { 0x10000, 0x10400, 0x10428, 0x1044f, 0x10450,
+                                0x1d400, 0x1f600, 0x10ffff };
+        for (String c : classes) {
+            Matcher m = Pattern.compile(c).matcher("");
+            java.util.regex.Matcher jm = java.util.regex.Pattern.compile(c)
+                .matcher("");
+            int failures = 0;
+            for (int ch = 0; ch <= 0xffff; ch++) {
+                String s = String.valueOf((char)ch);
+                if (m.reset(s).matches() != jm.reset(s).matches())
+                    failures++;
+            }
+            for (int cp : supplementary) {
+                String s = new String(Character.toChars(cp));
+                if (m.reset(s).matches() != jm.reset(s).matches())
+                    failures++;
+            }
+            if (failures > 0) {
+                System.err.println(c + ": " + failures + " chars differ");
+                failCount++;
+            }
+        }
+        checkAgainstJdk("[a-zA-Z0-9._%+-]+@[a-zA-Z0-9.-]+\\.[a-zA-Z]{2,}", 0,
+                        "mail j.doe+x@ex-ample.co.za or @bad.");
+        checkAgainstJdk("[^\\s,]+(?:,[^\\s,]+)*", 0, "a,b c,,d \u00e9,\u4e2d");
+        checkAgainstJdk("[\\p{L}&&[^a-z]]+", 0, "abC\u00c9\u00e9\u0416z");
+        report("Character class tables");
+    }
+
+    /**
+     * Small patterns are answered by a bit-parallel automaton before
+     * backtracking; it must agree with java.util.regex on whether there is
+     * a match, and leave hitEnd and requireEnd as it does.
+     */
+    private static void shiftAndTest() throws Exception {
+        checkAgainstJdk("[A-Z]{1,2}[0-9][0-9A-Z]? ?[0-9][A-Z]{2}", 0,
+                        "SW1A 1AA, EC1A1BB, W1A 0AX, 12345");
+        checkAgainstJdk("(?:97[89]-?)?\\d{1,5}-?\\d+-?\\d+-?[\\dX]", 0,
+                        "978-0-306-40615-7 0306406152 12-3");
+        checkAgainstJdk("\\d{4}", 0, "12 3456 789");
+        checkAgainstJdk("[a-f0-9]{8}-[a-f0-9]{4}", 0, "id deadbeef-cafe 0123456-abcd");
+        checkAgainstJdk("(?:ab|a)*c?d", 0, "abababad aaacd");
+        checkAgainstJdk("x(?:y|z)*", 0, "xyzzy x");
+        // around the 64 positions a word holds
+        for (int n : new int[] { 31, 32, 62, 63, 64, 65 }) {
+            String regex = "[ab]".repeat(n - 1) + "c";
+            checkAgainstJdk(regex, 0, "ab".repeat(n) + "c");
+            checkAgainstJdk(regex, 0, "ab".repeat(n) + "a");
+        }
+        Random random = new Random(21);
+        String[] atoms = { "a", "b", "[ab]", ".", "a?", "b*", "(?:ab|b)", "a+" };
+        for (int k = 0; k < 300; k++) {
+            StringBuilder regex = new StringBuilder();
+            for (int n = 1 + random.nextInt(6); n > 0; n--)
+                regex.append(atoms[random.nextInt(atoms.length)]);
+            if (random.nextInt(4) == 0)
+                regex.insert(0, '^');
+            if (random.nextInt(4) == 0)
+                regex.append('$');
+            StringBuilder text = new StringBuilder();
+            for (int n = random.nextInt(12); n > 0; n--)
+                text.append("ab\n".charAt(random.nextInt(3)));
+            checkAgainstJdk(regex.toString(), 0, text.toString());
+        }
+        // a pattern is matched without the automaton the first time, and
+        // with it from then on, to the same effect
+        String[][] cases = { { "[A-Z]{1,2}[0-9] ?[0-9][A-Z]{2}", "SW1A 1AA" },
+                             { "\\d{4}", "1234" }, { "\\d{4}", "123" },
+                             { "(?:ab|a)*c?d", "abababad" },
+                             { "(?:ab|a)*c?d", "ababab" } };
+        for (String[] c : cases) {
+            java.util.regex.Matcher jm =
+                java.util.regex.Pattern.compile(c[0]).matcher(c[1]);
+            String expected = jm.matches() + " " + jm.hitEnd() + " " +
+                jm.lookingAt() + " " + jm.hitEnd();
+            Pattern p = Pattern.compile(c[0]);
+            for (int k = 0; k < 3; k++) {
+                Matcher m = p.matcher(c[1]);
+                String actual = m.matches() + " " + m.hitEnd() + " " +
+                    m.lookingAt() + " " + m.hitEnd();
+                if (!actual.equals(expected))
+                    failCount++;
+            }
+            Pattern q = Pattern.compile(c[0]);
+            for (int k = 0; k < 3; k++) {
+                if (q.asMatchPredicate().test(c[1]) != jm.matches() ||
+                    q.asPredicate().test(c[1]) != jm.reset().find())
+                    failCount++;
+            }
+        }
+        // a search with no match reads the text once, rather than from
+        // every start
+        checkReads(Pattern.compile("[ab]*[ab]*[cd]"), "ab".repeat(512) + "!",
+                   false, 1);
+        checkReads(Pattern.compile("(?:ab|a)*[cd]"), "ab".repeat(512) + "!",
+                   false, 1);
+        report("Shift-And");
+    }
+
+    /**
+     * Large counted repetitions of one char class are counted by the
+     * bit-parallel automaton rather than unrolled; the counters of
+     * overlapping attempts must not take each other's counts.
+     */
+    private static void countingTest() throws Exception {
+        checkAgainstJdk("[0-9\\-\u2013 ]{10}", 0, "tel 021-555 1234 \u2013 0821234567");
+        checkAgainstJdk("([0-9A-Z \\.\\-]{1,32})", 0, "REF NO. AB-1234.5 x");
+        checkAgainstJdk("^.{12,25}$", 0, "abcdefghijkl");
+        checkAgainstJdk("^.{12,25}$", 0, "abcdefghijk");
+        checkAgainstJdk("a{100,150}b", 0, "a".repeat(99) + "b" + "a".repeat(151) + "b");
+        checkAgainstJdk("[ab]{8,}c", 0, "ababababc abababac");
+        checkAgainstJdk("a[ab]{20}b[ab]{20}", 0, "ab".repeat(30));
+        checkAgainstJdk("(?:x|[ab]{9,12})c", 0, "abababababababc xc");
+        checkAgainstJdk("[0-9]{64}", 0, "1".repeat(63) + "x" + "2".repeat(64));
+        Random random = new Random(22);
+        for (int k = 0; k < 300; k++) {
+            // too many positions to unroll
+            int min = 50 + random.nextInt(30);
+            int max = random.nextInt(3) == 0 ? -1 : min + 15 + random.nextInt(30);
+            String count = "{" + min + "," + (max < 0 ? "" : max) + "}";
+            String[] pre = { "", "a", "b", "^", "[ab]" };
+            String[] post = { "", "a", "b", "$", "c" };
+            String regex = pre[random.nextInt(pre.length)]
+                + (random.nextBoolean() ? "[ab]" : "a") + count
+                + post[random.nextInt(post.length)];
+            StringBuilder text = new StringBuilder();
+            for (int n = random.nextInt(140); n > 0; n--)
+                text.append("aaaab".charAt(random.nextInt(5)));
+            if (random.nextBoolean())
+                text.append('c');
+            checkAgainstJdk(regex, 0, text.toString());
+        }
+        // counting a run once, rather than from every start or for every
+        // count, is one read per char
+        checkReads(Pattern.compile("[ab]{200,}[cd]"), "ab".repeat(2048) + "!",
+                   false, 1);
+        checkReads(Pattern.compile("[ab]{100,150}[cd]"), "ab".repeat(2048) + "!",
+                   false, 1);
+        report("Counted repetitions");
+    }
+
+    /**
+     * A greedy repetition is made possessive when what follows can never
+     * take a char it gave back. Whatever looks at the chars without
+     * taking them, or may take them in another case, must keep it greedy.
+     */
+    private static void possessifyTest() throws Exception {
+        checkAgainstJdk("\\w+@", 0, "user@host a.b@c @");
+        checkAgainstJdk("[0-9]*[a-z]", 0, "123a 45 6B c");
+        checkAgainstJdk("[^\"]*\"", 0, "say \"hi\" \"");
+        checkAgainstJdk("\\d{2,5}x|\\d", 0, "1234567x 12x 1x");
+        checkAgainstJdk("\\w+\\d", 0, "abc123 abc");
+        checkAgainstJdk("\\d*\\.?\\d+", 0, "12.5 7 .3");
+        checkAgainstJdk("\\d+(x)?\\d", 0, "12x3 45");
+        checkAgainstJdk("(?:a+)b|(a+)+c", 0, "aab aaac");
+        checkAgainstJdk("(a)\\w+\\1", 0, "abca aba");
+        checkAgainstJdk("\\d+(?=\\d)", 0, "123 4");
+        checkAgainstJdk("\\d+(?!x)", 0, "12x 3x4");
+        checkAgainstJdk("\\d+(?<!2)", 0, "12 22 3");
+        checkAgainstJdk("\\d+(?<=1)x", 0, "11x 21x");
+        checkAgainstJdk("\\w+\\B", 0, "ab c");
+        checkAgainstJdk("\\d+\\b\\w", 0, "12a 1 2");
+        checkAgainstJdk("[a-z]+(?i)A", 0, "bca bcA");
+        checkAgainstJdk("(?iu)\\x{10400}+\\x{10428}", 0,
+                        "\ud801\udc00\ud801\udc00\ud801\udc28 \ud801\udc00\ud801\udc00");
+        checkAgainstJdk("[a-z]+(?:\\d|x)", 0, "abcx abc1 ab");
+        checkAgainstJdk("[a-z]*$", 0, "abc\ndef");
+        checkAgainstJdk("(?m)[a-z]*$", 0, "abc\ndef");
+        checkAgainstJdk("[^\\n]*\\R", 0, "ab\r\ncd\n");
+        checkAgainstJdk("[\\x{10400}a]{3,}b", 0,
+                        "\ud801\udc00a\ud801\udc00!b a\ud801\udc00ab aab");
+        checkAgainstJdk("(?:\\w{2,}\\G|a{2,}b)", 0, "aab aaab");
+        Random random = new Random(23);
+        String[] atoms = { "\\d+", "[a-c]*", "\\w{1,3}", "x", "1", "\\b", "\\B",
+                           "(?!a)", "(?=\\d)", "(?<=b)", "$", "(?i:A)", "(?:x|\\d)?" };
+        for (int k = 0; k < 300; k++) {
+            StringBuilder regex = new StringBuilder();
+            for (int n = 2 + random.nextInt(3); n > 0; n--)
+                regex.append(atoms[random.nextInt(atoms.length)]);
+            StringBuilder text = new StringBuilder();
+            for (int n = random.nextInt(12); n > 0; n--)
+                text.append("abcAx1 ".charAt(random.nextInt(7)));
+            checkAgainstJdk(regex.toString(), 0, text.toString());
+        }
+        // a possessive run with no maximum fails for every start inside
+        // it once it has failed for one
+        checkLinearFind("[ab]{2,}c", "ab", "!c");
+        checkLinearFind("\\w{3,}@", "ab", "!@");
+        checkReads(Pattern.compile("[ab]{200,}c"), "ab".repeat(2048) + "!c",
+                   false, 8);
+        // left unmemoized, a run is read once from each start rather than
+        // read and then backed off through
+        checkReads(Pattern.compile("\\d+x", 0, Pattern.MemoStrategy.PIVOT),
+                   "1".repeat(1024) + "!x", false, 600);
+        report("Possessive repetitions");
+    }
+
+    /**
+     * Alternatives that start with the same literal share one reading of
+     * it, and neighbouring single char alternatives become one class; the
+     * groups and the order the alternatives are tried in must not change.
+     */
+    private static void prefixFactoringTest() throws Exception {
+        checkAgainstJdk("(html|HTML)|(htm|HTM)", 0, "HTM html htmx HTML");
+        checkAgainstJdk("(x|ext\\w+|extension\\w+)", 0, "x extensions ext extensionz");
+        checkAgainstJdk("(?:ab(c)|ab(d)|a(b))e", 0, "abce abde abe ab");
+        checkAgainstJdk("(ab|c|ac)d", 0, "abd acd cd");
+        checkAgainstJdk("(?i)(abc|abd|ab)x", 0, "ABDx abX aBcx");
+        checkAgainstJdk("(?:a|[bc]|d|(e))+f", 0, "abcdef abcdf");
+        checkAgainstJdk("(|a|)b", 0, "ab b");
+        checkAgainstJdk("(?:foo\\d|foo|fo)+o", 0, "foo1foofoo fooo");
+        checkAgainstJdk("(?:abc|ab|a)(?:c|bc)", 0, "abcc abc ac");
+        checkAgainstJdk("(?:\\x{10400}a|\\x{10400}b)c", 0, "\ud801\udc00bc\ud801\udc00ac");
+        if (Pattern.compile("(?:ab|ab)*c").analyze().complexity()
+            != PatternAnalysis.Complexity.EXPONENTIAL)
+            failCount++;
+        Random random = new Random(24);
+        String[] tails = { "", "c", "(c)", "\\w*", "[bc]", "(?:b|c)?", "a" };
+        for (int k = 0; k < 300; k++) {
+            StringBuilder regex = new StringBuilder("(?:");
+            for (int n = 2 + random.nextInt(4); n > 0; n--) {
+                regex.append("aab".substring(0, random.nextInt(4)));
+                regex.append(tails[random.nextInt(tails.length)]);
+                regex.append(n > 1 ? "|" : ")");
+            }
+            if (random.nextBoolean())
+                regex.append(random.nextBoolean() ? "*" : "+").append('d');
+            StringBuilder text = new StringBuilder();
+            for (int n = random.nextInt(14); n > 0; n--)
+                text.append("aabcd".charAt(random.nextInt(5)));
+            checkAgainstJdk(regex.toString(), 0, text.toString());
+        }
+        // the shared abcd is read once, not once for every alternative
+        checkReads(Pattern.compile("(x)(?:abcd\\d+|abcd[x-z]+|abcd\\s+|abcd-+)*\\1"),
+                   "x" + "abcd-".repeat(512) + "x", true, 2);
+        report("Prefix factoring");
+    }
+
+    /**
+     * The memo entries of nodes that cannot reach a {@code \G} carry over
+     * from one find() to the next; those of nodes that can, and all of
+     * them after the matcher is reset or its region changes, must not.
+     */
+    private static void memoReuseTest() throws Exception {
+        checkAgainstJdk("(a|aa)*b", 0, "aaab aab ab b aaa");
+        checkAgainstJdk("(?:(a|aa)*\\G)?b", 0, "bab aab bb");
+        checkAgainstJdk("(a|aa)*\\Gb|c", 0, "bcab cb");
+        checkAgainstJdk("\\G(?:(a|b)*c)", 0, "abcbcacx abc");
+        checkAgainstJdk("(?:x(a|aa)*)?\\G(a|aa)*b", 0, "aabxab aab");
+        String regex = "(?:(a|aa)*\\Gc|(a|aa)*b)";
+        String input = "aaacaabacaaab";
+        Matcher m = Pattern.compile(regex).matcher(input);
+        java.util.regex.Matcher jm = java.util.regex.Pattern.compile(regex)
+            .matcher(input);
+        StringBuilder sb = new StringBuilder();
+        StringBuilder jsb = new StringBuilder();
+        for (int k = 0; k < 4; k++) {
+            switch (k) {
+                case 1: m.find(2); jm.find(2); break;
+                case 2: m.region(4, 12); jm.region(4, 12); break;
+                case 3: m.reset(); jm.reset(); break;
+            }
+            while (m.find())
+                sb.append(groups(m)).append(';');
+            while (jm.find())
+                jsb.append(groups(jm)).append(';');
+            sb.append('|');
+            jsb.append('|');
+        }
+        if (!sb.toString().equals(jsb.toString())) {
+            explainFailure(regex, input, jsb.toString(), sb.toString());
+            failCount++;
+        }
+        // every start reaches the same runs, which are read once
+        checkLinearFind("(?:a+)+b", "a", "!b@=z\\.x");
+        checkLinearFind("(\\w+\\s?)*$", "a", "!");
+        checkLinearFind("(\\w+\\s?)+$", "ab", "!");
+        checkLinearFind("a*a*b", "a", "!b");
+        checkLinearFind("(a+)+b|(?:ab*)+c", "ab", "!bc");
+        checkLinearFind("(?:a|b)*c|b", "ab", "!");
+        // a possessive run fails for every start inside it
+        checkLinearFind("[a-z]*\\d|$", "a", "!");
+        checkLinearFind("[a-z]+\\d|!", "ab", "!");
+        checkLinearFind("[ab]*c|b", "ab", "!");
+        checkLinearFind("\\p{L}{2,}\\d|x", "\u00e9", "!");
+        report("Memo across finds");
+    }
+
+    /**
+     * Checks that finding every match of regex in the unit repeated 512
+     * times and then the suffix reads less than 20 times as many chars
+     * as in the unit repeated 32 times, 16 times fewer.
+     */
+    private static void checkLinearFind(String regex, String unit,
+                                        String suffix) {
+        checkLinearFind(regex, unit, suffix, m -> m);
+    }
+
+    /**
+     * Checks the same with matchers set up by setUp.
+     */
+    private static void checkLinearFind(String regex, String unit,
+                                        String suffix,
+                                        Function<Matcher, Matcher> setUp) {
+        Pattern p = Pattern.compile(regex);
+        long[] reads = new long[2];
+        String[] found = new String[2];
+        for (int k = 0; k < 2; k++) {
+            CountingSequence cs = new CountingSequence(
+                unit.repeat(32 << 4 * k) + suffix);
+            Matcher m = setUp.apply(p.matcher(cs));
+            StringBuilder sb = new StringBuilder();
+            while (m.find())
+                sb.append(groups(m)).append(';');
+            reads[k] = cs.reads;
+            found[k] = sb.toString();
+            java.util.regex.Matcher jm = java.util.regex.Pattern
+                .compile(regex).matcher(cs.s);
+            sb.setLength(0);
+            while (jm.find())
+                sb.append(groups(jm)).append(';');
+            if (!sb.toString().equals(found[k])) {
+                explainFailure(regex, cs.s, sb.toString(), found[k]);
+                failCount++;
+            }
+        }
+        if (reads[1] >= 20 * reads[0]) {
+            System.err.println(regex + ": " + Arrays.toString(reads));
+            failCount++;
+        }
+    }
+
+    /**
+     * Checks that finding every match of the pattern in input, or
+     * matching all of input if matches is set, reads at most perChar
+     * chars for each char of it.
+     */
+    private static void checkReads(Pattern p, String input, boolean matches,
+                                   double perChar) {
+        CountingSequence cs = new CountingSequence(input);
+        Matcher m = p.matcher(cs);
+        if (matches) {
+            m.matches();
+        } else {
+            while (m.find())
+                ;
+        }
+        if (cs.reads > perChar * input.length()) {
+            System.err.println(p + ": " + cs.reads + " reads of "
+                               + input.length() + " chars");
+            failCount++;
+        }
+    }
+
+    /**
+     * Checks that matchers set up by setUp read less than 20 times as many
+     * chars to find every match of regex in the unit repeated 512 times as
+     * in it repeated 32 times, for patterns java.util.regex takes too long
+     * on to compare the matches with.
+     */
+    private static void checkLinearReads(String regex, String unit,
+                                         String suffix,
+                                         Function<Matcher, Matcher> setUp) {
+        Pattern p = Pattern.compile(regex);
+        long[] reads = new long[2];
+        for (int k = 0; k < 2; k++) {
+            CountingSequence cs = new CountingSequence(
+                unit.repeat(32 << 4 * k) + suffix);
+            Matcher m = setUp.apply(p.matcher(cs));
+            while (m.find())
+                ;
+            reads[k] = cs.reads;
+        }
+        if (reads[1] >= 20 * reads[0]) {
+            System.err.println(regex + ": " + Arrays.toString(reads));
+            failCount++;
+        }
+    }
+}